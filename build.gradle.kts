@@ -30,10 +30,6 @@ subprojects {
         withSourcesJar()
     }
 
-    configurations {
-        create("itImplementation").extendsFrom(implementation.get())
-    }
-
     sourceSets {
         create("it") {
             compileClasspath += sourceSets["main"].output
@@ -41,6 +37,13 @@ subprojects {
         }
     }
 
+    // Created along with the source set
+    configurations {
+        "itImplementation" {
+            extendsFrom(implementation.get())
+        }
+    }
+
     tasks.register<Test>("integrationTest") {
         testClassesDirs = sourceSets["it"].output.classesDirs
         classpath = sourceSets["it"].runtimeClasspath
@@ -55,8 +58,11 @@ subprojects {
         testImplementation("org.junit.jupiter:junit-jupiter:${project.extra["junitVersion"]}")
         testImplementation("org.mockito:mockito-core:5.8.0")
         testImplementation("org.mockito:mockito-junit-jupiter:5.8.0")
+        // Gradle 9 no longer provides the launcher
+        testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 
         "itImplementation"("org.junit.jupiter:junit-jupiter:${project.extra["junitVersion"]}")
+        "itRuntimeOnly"("org.junit.platform:junit-platform-launcher")
     }
 
     tasks.withType<Test> {
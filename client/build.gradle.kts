@@ -2,9 +2,42 @@ tasks.withType<JavaCompile> {
     options.compilerArgs.addAll(listOf("--add-exports", "java.base/sun.nio.ch=ALL-UNNAMED"))
 }
 
+tasks.withType<Javadoc> {
+    (options as StandardJavadocDocletOptions).addStringOption("-add-exports", "java.base/sun.nio.ch=ALL-UNNAMED")
+}
+
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output
+        runtimeClasspath += sourceSets["main"].output
+    }
+}
+
+configurations {
+    "jmhImplementation" {
+        extendsFrom(configurations.implementation.get())
+    }
+}
+
 dependencies {
     implementation("org.slf4j:slf4j-api:1.7.30")
     implementation("io.netty:netty-all:4.1.108.Final")
+    // Provided by kafka-clients at runtime. Each compression is disabled if unavailable
+    compileOnly("com.github.luben:zstd-jni:1.5.5-1")
+    compileOnly("org.lz4:lz4-java:1.8.0")
     testImplementation("org.apache.kafka:kafka-clients:${project.extra["kafkaVersion"]}")
     runtimeOnly("ch.qos.logback:logback-classic:1.4.12")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+// Run benchmarks by `./gradlew :client:jmh`. JMH options can be given by -PjmhArgs (e.g. -PjmhArgs="Write -f 1")
+tasks.register<JavaExec>("jmh") {
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass = "org.openjdk.jmh.Main"
+    jvmArgs("--add-exports", "java.base/sun.nio.ch=ALL-UNNAMED")
+    // Report allocations per operation along with the time
+    args("-prof", "gc")
+    (findProperty("jmhArgs") as String?)?.let { args(it.split(" ")) }
 }
@@ -0,0 +1,88 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost {@link TunnelingSelectorProvider} adds to NIO channels opened by non-Kafka code.
+ * <p>
+ * The detection runs on top of {@code stackDepth} extra frames, since callers in applications are
+ * usually deep in the stack. {@link #stackTrace} is the previous detection which scanned the entire stack,
+ * and {@link #openDefault} is the cost of opening a channel without the provider for reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallerDetectionBenchmark {
+    private static final String KAFKA_SELECTOR = "org.apache.kafka.common.network.Selector";
+
+    @Param({ "10", "100" })
+    private int stackDepth;
+
+    private final CallerDetector detector = new CallerDetector(Collections.singletonList(KAFKA_SELECTOR), 16);
+    private final SelectorProvider tunnelingProvider = new TunnelingSelectorProvider();
+    private final SelectorProvider defaultProvider = SelectorProvider.provider();
+
+    @Benchmark
+    public boolean callerDetector() {
+        return deep(stackDepth, detector::getAsBoolean);
+    }
+
+    @Benchmark
+    public boolean stackTrace() {
+        return deep(stackDepth, () -> {
+            for (StackTraceElement element : Thread.currentThread().getStackTrace()) {
+                if (KAFKA_SELECTOR.equals(element.getClassName())) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    @Benchmark
+    public boolean openTunneling() {
+        return deep(stackDepth, () -> open(tunnelingProvider));
+    }
+
+    @Benchmark
+    public boolean openDefault() {
+        return deep(stackDepth, () -> open(defaultProvider));
+    }
+
+    private static boolean open(SelectorProvider provider) {
+        try (SocketChannel channel = provider.openSocketChannel()) {
+            return channel.isOpen();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private interface Check {
+        boolean run();
+    }
+
+    private static boolean deep(int depth, Check check) {
+        if (depth == 0) {
+            return check.run();
+        }
+        return deep(depth - 1, check);
+    }
+}
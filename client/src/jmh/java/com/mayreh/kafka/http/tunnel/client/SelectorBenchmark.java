@@ -0,0 +1,160 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayreh.kafka.http.tunnel.client.TunnelingConfig.Protocol;
+
+/**
+ * Measures a poll of {@link TunnelingSelector} where one of the registered channels received a response,
+ * which is the common case of Kafka's network thread.
+ * <p>
+ * {@link #scan} reproduces the previous selector, which notified readiness by signalling a condition
+ * under the selector's lock and rescanned every registered key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorBenchmark {
+    @Param({ "10", "100", "1000" })
+    private int keys;
+
+    private TunnelingSelector selector;
+    private final List<StubChannel> channels = new ArrayList<>();
+    private int next;
+
+    private final ReentrantLock scanLock = new ReentrantLock();
+    private final Condition scanWaiter = scanLock.newCondition();
+    private final Set<SelectionKey> scanSelectedKeys = new HashSet<>();
+
+    /**
+     * Channel whose readiness is controlled by the benchmark, without a transport
+     */
+    private static class StubChannel extends TunnelingSocketChannel {
+        private volatile int ready;
+        private TunnelingSelectionKey key;
+
+        StubChannel() throws IOException {
+            super(SelectorProvider.provider(), SelectorProvider.provider());
+        }
+
+        @Override
+        public void register(TunnelingSelector selector) {
+            // noop
+        }
+
+        @Override
+        public void addSelectionKey(TunnelingSelectionKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public int readyOps() {
+            return ready;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        TunnelingConfig config = new TunnelingConfig(
+                "localhost", 8080, false, null, Protocol.HTTP1, false, Collections.emptyList(),
+                1024, 0, 0L, 0L, false, 5, 1024 * 1024, 0L);
+        selector = new TunnelingSelector(SelectorProvider.provider(), SelectorProvider.provider(), config, null);
+        for (int i = 0; i < keys; i++) {
+            StubChannel channel = new StubChannel();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channels.add(channel);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (StubChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+    }
+
+    private StubChannel nextChannel() {
+        StubChannel channel = channels.get(next);
+        next = (next + 1) % channels.size();
+        return channel;
+    }
+
+    @Benchmark
+    public int readyQueue() throws IOException {
+        StubChannel channel = nextChannel();
+        channel.ready = SelectionKey.OP_READ;
+        channel.key.enqueueIfReady();
+        int selected = selector.selectNow();
+        // Kafka reads the response entirely
+        channel.ready = 0;
+        return selected;
+    }
+
+    @Benchmark
+    public int scan() throws InterruptedException {
+        StubChannel channel = nextChannel();
+        channel.ready = SelectionKey.OP_READ;
+        scanLock.lock();
+        try {
+            scanWaiter.signalAll();
+        } finally {
+            scanLock.unlock();
+        }
+        int selected = scanSelectNow();
+        channel.ready = 0;
+        return selected;
+    }
+
+    private int scanSelectNow() throws InterruptedException {
+        scanLock.lock();
+        try {
+            scanSelectedKeys.clear();
+            for (SelectionKey key : selector.keys()) {
+                if (key.readyOps() != 0) {
+                    scanSelectedKeys.add(key);
+                }
+            }
+            if (!scanSelectedKeys.isEmpty()) {
+                return scanSelectedKeys.size();
+            }
+            scanWaiter.await(0, TimeUnit.MILLISECONDS);
+            for (SelectionKey key : selector.keys()) {
+                if (key.readyOps() != 0) {
+                    scanSelectedKeys.add(key);
+                }
+            }
+            return scanSelectedKeys.size();
+        } finally {
+            scanLock.unlock();
+        }
+    }
+}
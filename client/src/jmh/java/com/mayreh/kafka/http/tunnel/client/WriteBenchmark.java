@@ -0,0 +1,150 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeadersFactory;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Measures the cost of handing a Kafka request to the transport through {@link TunnelingSocketChannel#write},
+ * including building the HTTP request. Run with {@code -prof gc} (the default of the jmh task) to see
+ * the steady-state allocation per request as gc.alloc.rate.norm.
+ * <p>
+ * {@link #baseline} reproduces the write path before requests were assembled into pooled buffers:
+ * a per-byte copy into a heap buffer, another copy into a ByteBuf and headers formatted per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+    private static final InetSocketAddress BROKER = InetSocketAddress.createUnresolved("broker-1", 9092);
+
+    @Param({ "1024", "1048576" })
+    private int requestSize;
+
+    private TunnelingSocketChannel channel;
+    // Kafka writes a request as the size prefix and the payload by a gathering write
+    private ByteBuffer[] srcs;
+    private ByteBuffer prefix;
+    private ByteBuffer payload;
+
+    /**
+     * Builds the HTTP request same as {@link Http1Transport} and discards it
+     */
+    private static class DiscardingTransport implements TunnelTransport {
+        private final ProxyRequestFactory requestFactory = new ProxyRequestFactory(BROKER, "session");
+
+        @Override
+        public CompletableFuture<Void> connect(InetSocketAddress brokerAddress) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void send(ByteBuf request) {
+            requestFactory.newRequest(request).release();
+        }
+
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public void setAutoRead(boolean autoRead) {
+            // noop
+        }
+
+        @Override
+        public void close() {
+            // noop
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SelectorProvider provider = SelectorProvider.provider();
+        channel = new TunnelingSocketChannel(provider, provider);
+        channel.register(new DiscardingTransport(), null, null, 0);
+        channel.connect(BROKER);
+
+        prefix = ByteBuffer.allocate(4);
+        prefix.putInt(0, requestSize);
+        // Produce request header (api key 0) followed by a dummy body
+        payload = ByteBuffer.allocate(requestSize);
+        payload.putShort(0, (short) 0);
+        payload.putShort(2, (short) 9);
+        srcs = new ByteBuffer[] { prefix, payload };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        prefix.clear();
+        payload.clear();
+        return channel.write(srcs, 0, srcs.length);
+    }
+
+    @Benchmark
+    public int baseline() {
+        prefix.clear();
+        payload.clear();
+        int requestSize = prefix.getInt();
+        ByteBuffer writeBuffer = ByteBuffer.allocate(4 + requestSize);
+        writeBuffer.putInt(requestSize);
+        while (payload.hasRemaining() && writeBuffer.hasRemaining()) {
+            writeBuffer.put(payload.get());
+        }
+        writeBuffer.flip();
+        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(writeBuffer.remaining());
+        buf.writeBytes(writeBuffer);
+        FullHttpRequest request = new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1,
+                HttpMethod.POST,
+                "/proxy",
+                buf,
+                DefaultHttpHeadersFactory
+                        .headersFactory()
+                        .newHeaders()
+                        .add(HttpHeaderNames.HOST, String.format("%s:%d", BROKER.getHostString(), BROKER.getPort()))
+                        .add(HttpHeaderNames.CONTENT_LENGTH, buf.readableBytes())
+                        .add(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream"),
+                DefaultHttpHeadersFactory
+                        .trailersFactory()
+                        .newEmptyHeaders());
+        int written = request.content().readableBytes();
+        request.release();
+        return written;
+    }
+}
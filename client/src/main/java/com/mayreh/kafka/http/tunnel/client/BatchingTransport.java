@@ -0,0 +1,71 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * {@link TunnelTransport} which sends Kafka requests through the {@link FrameBatcher} of the selector,
+ * so that requests of multiple channels share HTTP exchanges.
+ * <p>
+ * Since an envelope carries responses of multiple channels, stopping reading responses per channel
+ * is not supported, so {@link ReadBudget} doesn't apply.
+ */
+@RequiredArgsConstructor
+class BatchingTransport implements TunnelTransport {
+    private final TunnelingSocketChannel owner;
+    private final TunnelingSelector selector;
+    private final FrameBatcher batcher;
+    // Unique within the selector, to let the server distinguish Kafka connections sharing envelopes
+    @Getter
+    @Accessors(fluent = true)
+    private final int channelId;
+    // host:port of the broker, encoded once per connection
+    @Getter
+    @Accessors(fluent = true)
+    private volatile byte[] broker;
+    private volatile Http2TunnelConnection connection;
+
+    @Override
+    public CompletableFuture<Void> connect(InetSocketAddress brokerAddress) {
+        broker = (brokerAddress.getHostString() + ':' + brokerAddress.getPort())
+                .getBytes(StandardCharsets.UTF_8);
+        batcher.register(this);
+        connection = selector.http2Connection();
+        return connection.connectFuture();
+    }
+
+    @Override
+    public void send(ByteBuf request) {
+        batcher.add(this, request);
+    }
+
+    void onResponse(ByteBuf response) {
+        owner.onResponse(response);
+    }
+
+    void onError(Throwable cause) {
+        owner.onError(cause);
+    }
+
+    @Override
+    public boolean isActive() {
+        Http2TunnelConnection connection = this.connection;
+        return connection != null && connection.isActive();
+    }
+
+    @Override
+    public void setAutoRead(boolean autoRead) {
+        // noop
+    }
+
+    @Override
+    public void close() {
+        batcher.unregister(this);
+    }
+}
@@ -0,0 +1,186 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Tunnel metrics of a broker, aggregated over all connections to the broker in the JVM.
+ */
+final class BrokerMetrics implements BrokerMetricsMXBean {
+    // Enough to cover all API keys defined so far. Requests with larger keys are not recorded per API key
+    private static final int MAX_API_KEYS = 128;
+
+    private final TunnelMetrics parent;
+    private final InetSocketAddress address;
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder queuedReadBytes = new LongAdder();
+    private final LongAdder inFlightRequests = new LongAdder();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final AtomicReferenceArray<RequestMetrics> requests = new AtomicReferenceArray<>(MAX_API_KEYS);
+    // Number of connections using this, guarded by the parent's map
+    int connections;
+    private boolean registered;
+    private volatile boolean unregistered;
+
+    BrokerMetrics(TunnelMetrics parent, InetSocketAddress address) {
+        this.parent = parent;
+        this.address = address;
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    String objectName() {
+        return "type=BrokerMetrics,broker=" + quotedName();
+    }
+
+    private String quotedName() {
+        return ObjectName.quote(address.getHostString() + ':' + address.getPort());
+    }
+
+    private String requestObjectName(int apiKey) {
+        return "type=RequestMetrics,broker=" + quotedName() + ",apiKey=" + apiKey;
+    }
+
+    void register() {
+        registered = parent.register(objectName(), this);
+    }
+
+    /**
+     * Called once per connection when it's closed
+     */
+    void release() {
+        parent.release(this);
+    }
+
+    /**
+     * Unregister the MBeans of the broker and its API keys. Called once the last connection is released
+     */
+    void unregister() {
+        unregistered = true;
+        if (registered) {
+            parent.unregister(objectName());
+        }
+        for (int apiKey = 0; apiKey < MAX_API_KEYS; apiKey++) {
+            RequestMetrics request = requests.get(apiKey);
+            if (request != null && request.registered) {
+                parent.unregister(requestObjectName(apiKey));
+            }
+        }
+    }
+
+    void recordConnect(long nanos) {
+        connectTime.record(nanos);
+        for (TunnelMetricsListener listener : parent.listeners()) {
+            listener.onConnected(address, nanos);
+        }
+    }
+
+    void recordRequestSent(int apiKey, int bytes, boolean expectResponse) {
+        bytesOut.add(bytes);
+        if (expectResponse) {
+            inFlightRequests.increment();
+        }
+        RequestMetrics request = request(apiKey);
+        if (request != null) {
+            request.recordRequest(bytes);
+        }
+        for (TunnelMetricsListener listener : parent.listeners()) {
+            listener.onRequestSent(address, apiKey, bytes);
+        }
+    }
+
+    void recordResponseReceived(int apiKey, int bytes, long roundTripNanos) {
+        inFlightRequests.decrement();
+        RequestMetrics request = request(apiKey);
+        if (request != null) {
+            request.recordResponse(bytes, roundTripNanos);
+        }
+        for (TunnelMetricsListener listener : parent.listeners()) {
+            listener.onResponseReceived(address, apiKey, bytes, roundTripNanos);
+        }
+    }
+
+    /**
+     * Called when bytes are received from the tunnel and queued until Kafka reads them
+     */
+    void recordBytesIn(int bytes) {
+        bytesIn.add(bytes);
+        queuedReadBytes.add(bytes);
+    }
+
+    /**
+     * Called when queued bytes are read by Kafka or discarded
+     */
+    void recordBytesDequeued(int bytes) {
+        queuedReadBytes.add(-bytes);
+    }
+
+    /**
+     * Called when a connection is closed with requests which never get responses
+     */
+    void recordAbandoned(int requests) {
+        inFlightRequests.add(-requests);
+    }
+
+    private RequestMetrics request(int apiKey) {
+        if (apiKey < 0 || apiKey >= MAX_API_KEYS) {
+            return null;
+        }
+        RequestMetrics request = requests.get(apiKey);
+        if (request == null) {
+            RequestMetrics created = new RequestMetrics();
+            if (requests.compareAndSet(apiKey, null, created)) {
+                // Late recording after the last connection closed (e.g. a response racing with close)
+                // must not leave an MBean behind
+                if (!unregistered) {
+                    created.registered = parent.register(requestObjectName(apiKey), created);
+                }
+                request = created;
+            } else {
+                request = requests.get(apiKey);
+            }
+        }
+        return request;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getQueuedReadBytes() {
+        return queuedReadBytes.sum();
+    }
+
+    @Override
+    public long getInFlightRequests() {
+        return inFlightRequests.sum();
+    }
+
+    @Override
+    public long getConnectCount() {
+        return connectTime.count();
+    }
+
+    @Override
+    public double getConnectTimeAvgMs() {
+        return connectTime.averageMillis();
+    }
+
+    @Override
+    public double getConnectTimeMaxMs() {
+        return connectTime.maxMillis();
+    }
+}
@@ -0,0 +1,24 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+/**
+ * Tunnel metrics per broker, registered as
+ * {@code com.mayreh.kafka.http.tunnel:type=BrokerMetrics,broker="host:port"}
+ */
+public interface BrokerMetricsMXBean {
+    long getBytesOut();
+
+    long getBytesIn();
+
+    /**
+     * Bytes of responses received from the tunnel but not read by Kafka yet
+     */
+    long getQueuedReadBytes();
+
+    long getInFlightRequests();
+
+    long getConnectCount();
+
+    double getConnectTimeAvgMs();
+
+    double getConnectTimeMaxMs();
+}
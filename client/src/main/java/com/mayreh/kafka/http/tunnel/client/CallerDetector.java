@@ -0,0 +1,95 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.lang.StackWalker.Option;
+import java.lang.StackWalker.StackFrame;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Decides whether tunneling should be enabled, by checking the class which opened the selector or the channel.
+ * <p>
+ * Only the first class outside of the NIO framework (i.e. the class which called {@code Selector.open()} or
+ * {@code SocketChannel.open()}) is checked, so the stack walk stops after a few frames.
+ * The decision is cached per caller class, so checking a non-Kafka caller costs only the short stack walk.
+ * <p>
+ * Unlike checking whether the Kafka selector appears anywhere in the stack, channels opened by other code
+ * which merely runs within Kafka's network thread (e.g. a callback or a security provider opening its own
+ * connection) are deliberately not tunneled, since they don't speak the Kafka protocol.
+ * <p>
+ * Caller classes can be configured by the system property {@code kafka.http.tunnel.caller.classes}
+ * as a comma-separated list of class names. A name ending with {@code *} matches as a prefix.
+ */
+final class CallerDetector implements BooleanSupplier {
+    static final String CALLER_CLASSES_PROPERTY = "kafka.http.tunnel.caller.classes";
+    static final String CALLER_MAX_FRAMES_PROPERTY = "kafka.http.tunnel.caller.max.frames";
+    private static final String DEFAULT_CALLER_CLASSES = "org.apache.kafka.common.network.Selector";
+    private static final int DEFAULT_MAX_FRAMES = 16;
+
+    private static final StackWalker WALKER = StackWalker.getInstance(Option.RETAIN_CLASS_REFERENCE);
+
+    private final List<String> exactNames = new ArrayList<>();
+    private final List<String> prefixes = new ArrayList<>();
+    private final int maxFrames;
+    private final ClassValue<Boolean> decisions = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return matches(type.getName());
+        }
+    };
+
+    CallerDetector(List<String> callerClasses, int maxFrames) {
+        for (String callerClass : callerClasses) {
+            if (callerClass.endsWith("*")) {
+                prefixes.add(callerClass.substring(0, callerClass.length() - 1));
+            } else {
+                exactNames.add(callerClass);
+            }
+        }
+        this.maxFrames = maxFrames;
+    }
+
+    static CallerDetector fromSystemProperties() {
+        List<String> callerClasses = new ArrayList<>();
+        for (String name : System.getProperty(CALLER_CLASSES_PROPERTY, DEFAULT_CALLER_CLASSES).split(",")) {
+            if (!name.trim().isEmpty()) {
+                callerClasses.add(name.trim());
+            }
+        }
+        return new CallerDetector(
+                Collections.unmodifiableList(callerClasses),
+                Integer.getInteger(CALLER_MAX_FRAMES_PROPERTY, DEFAULT_MAX_FRAMES));
+    }
+
+    @Override
+    public boolean getAsBoolean() {
+        Class<?> caller = WALKER.walk(frames -> frames
+                .limit(maxFrames)
+                .map(StackFrame::getDeclaringClass)
+                .filter(type -> !isFrameworkClass(type))
+                .findFirst()
+                .orElse(null));
+        return caller != null && decisions.get(caller);
+    }
+
+    private static boolean isFrameworkClass(Class<?> type) {
+        if (type == CallerDetector.class || type == TunnelingSelectorProvider.class) {
+            return true;
+        }
+        String name = type.getName();
+        return name.startsWith("java.nio.") || name.startsWith("sun.nio.");
+    }
+
+    private boolean matches(String className) {
+        if (exactNames.contains(className)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,140 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Records metrics of Kafka requests on a {@link TunnelingSocketChannel}.
+ * <p>
+ * Since Kafka responses are returned in the order of requests on a connection, response frames are located
+ * by their size prefixes in the received bytes and matched against a ring buffer of in-flight requests,
+ * so the round-trip time is measured regardless of the transport without allocating per request.
+ */
+class ChannelMetrics {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final BrokerMetrics broker;
+
+    // Ring buffer of in-flight requests, guarded by this
+    private short[] apiKeys = new short[INITIAL_CAPACITY];
+    private long[] sentNanos = new long[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+
+    // State of the response frame being received, accessed only while holding the channel's ioLock
+    private boolean inFrame;
+    private int sizePrefix;
+    private int sizePrefixBytes;
+    private int frameSize;
+    private int remainingFrameBytes;
+
+    ChannelMetrics(BrokerMetrics broker) {
+        this.broker = broker;
+    }
+
+    void recordConnect(long nanos) {
+        broker.recordConnect(nanos);
+    }
+
+    /**
+     * Called with a size-prefixed Kafka request frame when it's handed to the transport
+     */
+    void recordRequest(ByteBuf request) {
+        short apiKey = KafkaProtocol.apiKey(request);
+        boolean expectResponse = KafkaProtocol.expectResponse(request);
+        broker.recordRequestSent(apiKey, request.readableBytes(), expectResponse);
+        if (expectResponse) {
+            push(apiKey, System.nanoTime());
+        }
+    }
+
+    /**
+     * Called with the bytes received from the tunnel, which may contain any part of response frames
+     */
+    void recordResponseBytes(ByteBuf buf) {
+        int readable = buf.readableBytes();
+        broker.recordBytesIn(readable);
+
+        int index = buf.readerIndex();
+        int end = index + readable;
+        while (index < end) {
+            if (!inFrame) {
+                while (sizePrefixBytes < 4 && index < end) {
+                    sizePrefix = (sizePrefix << 8) | buf.getUnsignedByte(index++);
+                    sizePrefixBytes++;
+                }
+                if (sizePrefixBytes < 4) {
+                    return;
+                }
+                inFrame = true;
+                frameSize = 4 + sizePrefix;
+                remainingFrameBytes = sizePrefix;
+                sizePrefix = 0;
+                sizePrefixBytes = 0;
+            }
+            int bytes = Math.min(remainingFrameBytes, end - index);
+            index += bytes;
+            remainingFrameBytes -= bytes;
+            if (remainingFrameBytes == 0) {
+                inFrame = false;
+                completeResponse(frameSize);
+            }
+        }
+    }
+
+    void recordBytesDequeued(int bytes) {
+        broker.recordBytesDequeued(bytes);
+    }
+
+    /**
+     * Called once when the channel is closed. Requests in flight never get responses
+     */
+    void close() {
+        int abandoned;
+        synchronized (this) {
+            abandoned = size;
+            size = 0;
+        }
+        broker.recordAbandoned(abandoned);
+        broker.release();
+    }
+
+    private void completeResponse(int bytes) {
+        short apiKey;
+        long sent;
+        synchronized (this) {
+            if (size == 0) {
+                // Unexpected response (e.g. the channel is already closed)
+                return;
+            }
+            apiKey = apiKeys[head];
+            sent = sentNanos[head];
+            head = (head + 1) % apiKeys.length;
+            size--;
+        }
+        broker.recordResponseReceived(apiKey, bytes, System.nanoTime() - sent);
+    }
+
+    private synchronized void push(short apiKey, long nanos) {
+        if (size == apiKeys.length) {
+            grow();
+        }
+        int tail = (head + size) % apiKeys.length;
+        apiKeys[tail] = apiKey;
+        sentNanos[tail] = nanos;
+        size++;
+    }
+
+    // Kafka limits in-flight requests per connection (max.in.flight.requests.per.connection),
+    // so this happens only a few times per connection
+    private void grow() {
+        short[] newApiKeys = new short[apiKeys.length * 2];
+        long[] newSentNanos = new long[sentNanos.length * 2];
+        for (int i = 0; i < size; i++) {
+            newApiKeys[i] = apiKeys[(head + i) % apiKeys.length];
+            newSentNanos[i] = sentNanos[(head + i) % sentNanos.length];
+        }
+        apiKeys = newApiKeys;
+        sentNanos = newSentNanos;
+        head = 0;
+    }
+}
@@ -0,0 +1,148 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandler;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+
+/**
+ * HTTP content codings supported for tunnel request/response bodies.
+ * <p>
+ * zstd and lz4 rely on zstd-jni and lz4-java which kafka-clients depends on, and they are
+ * unavailable if the libraries are missing. The libraries are referenced only from nested classes
+ * so that missing them doesn't break loading this class.
+ * lz4 is not a registered content coding, so it's exchanged only between kafka-tunnel client and server.
+ * <p>
+ * The server module has an equivalent enum. This one stays separate since the client ships without
+ * the server's dependencies and keeps its classes package-private.
+ */
+@RequiredArgsConstructor
+enum Compression {
+    ZSTD("zstd") {
+        @Override
+        boolean isAvailable() {
+            return io.netty.handler.codec.compression.Zstd.isAvailable();
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out) throws IOException {
+            return ZstdStreams.wrap(out);
+        }
+
+        @Override
+        ChannelHandler newStreamDecoder() {
+            return ZstdStreams.newDecoder();
+        }
+    },
+    LZ4("lz4") {
+        @Override
+        boolean isAvailable() {
+            try {
+                return Lz4Streams.isAvailable();
+            } catch (Throwable t) {
+                return false;
+            }
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out) throws IOException {
+            return Lz4Streams.wrap(out);
+        }
+
+        @Override
+        ChannelHandler newStreamDecoder() {
+            return Lz4Streams.newDecoder();
+        }
+    },
+    GZIP("gzip") {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+    },
+    ;
+
+    @Getter
+    @Accessors(fluent = true)
+    private final String id;
+
+    abstract boolean isAvailable();
+
+    abstract OutputStream wrap(OutputStream out) throws IOException;
+
+    /**
+     * Returns the decoder of the response content, or null if Netty's {@code HttpContentDecompressor}
+     * decodes it
+     */
+    ChannelHandler newStreamDecoder() {
+        return null;
+    }
+
+    /**
+     * Compress readable bytes of data into a new buffer. data is not released.
+     */
+    ByteBuf compress(ByteBuf data, ByteBufAllocator alloc) throws IOException {
+        ByteBuf out = alloc.buffer(data.readableBytes() / 2);
+        try (OutputStream compressed = wrap(new ByteBufOutputStream(out))) {
+            data.getBytes(data.readerIndex(), compressed, data.readableBytes());
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * Returns the compression for the content coding, or null if unknown
+     */
+    static Compression of(String id) {
+        for (Compression compression : values()) {
+            if (compression.id.equalsIgnoreCase(id)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    private static final class ZstdStreams {
+        static OutputStream wrap(OutputStream out) throws IOException {
+            return new ZstdOutputStream(out);
+        }
+
+        static ChannelHandler newDecoder() {
+            return new ZstdStreamDecoder();
+        }
+    }
+
+    private static final class Lz4Streams {
+        static boolean isAvailable() {
+            return LZ4Factory.fastestInstance() != null;
+        }
+
+        static OutputStream wrap(OutputStream out) throws IOException {
+            // Same block size as the server, which bounds the buffer to decode a block
+            return new LZ4FrameOutputStream(out, BLOCKSIZE.SIZE_64KB);
+        }
+
+        static ChannelHandler newDecoder() {
+            return new Lz4FrameStreamDecoder();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AsciiString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Negotiates the compression of proxy requests and responses with the tunnel server.
+ * <p>
+ * Each request advertises the codings we can decode by {@code Accept-Encoding}, so the server can compress
+ * responses. Requests are compressed once the server advertises acceptable codings by
+ * {@code Accept-Encoding} response header, unless they are small or contain compressed record batches.
+ * <p>
+ * The instance is shared by all tunnel connections of a selector, so the negotiation result is reused.
+ */
+@Slf4j
+@Sharable
+class CompressionHandler extends ChannelDuplexHandler {
+    private final List<Compression> preferred;
+    private final AsciiString acceptEncoding;
+    private final int thresholdBytes;
+    // The first preferred compression which the server accepts. Null until the server advertises
+    private volatile Compression requestCompression;
+
+    private CompressionHandler(List<Compression> preferred, int thresholdBytes) {
+        this.preferred = preferred;
+        this.thresholdBytes = thresholdBytes;
+        acceptEncoding = new AsciiString(preferred.stream()
+                                                  .map(Compression::id)
+                                                  .collect(Collectors.joining(", ")));
+    }
+
+    /**
+     * Returns null if compression is disabled or no configured compression is available
+     */
+    static CompressionHandler of(TunnelingConfig config) {
+        List<Compression> preferred = new ArrayList<>();
+        for (String type : config.compressionTypes()) {
+            Compression compression = Compression.of(type);
+            if (compression == null || !compression.isAvailable()) {
+                log.warn("Compression {} is not available. Ignoring", type);
+                continue;
+            }
+            preferred.add(compression);
+        }
+        if (preferred.isEmpty()) {
+            return null;
+        }
+        return new CompressionHandler(preferred, config.compressionThresholdBytes());
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof FullHttpRequest) {
+            FullHttpRequest request = (FullHttpRequest) msg;
+            request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+            msg = maybeCompress(ctx, request);
+        }
+        ctx.write(msg, promise);
+    }
+
+    private FullHttpRequest maybeCompress(ChannelHandlerContext ctx, FullHttpRequest request) {
+        Compression compression = requestCompression;
+        ByteBuf content = request.content();
+        if (compression == null
+            || content.readableBytes() < thresholdBytes
+            // Envelopes are not a Kafka request so can't be inspected
+            || !FrameBatcher.BATCH_PATH.equals(request.uri())
+               && KafkaProtocol.isCompressedProduceRequest(content)) {
+            return request;
+        }
+        ByteBuf compressed;
+        try {
+            compressed = compression.compress(content, ctx.alloc());
+        } catch (Exception e) {
+            log.warn("Failed to compress request with {}. Sending uncompressed", compression.id(), e);
+            return request;
+        }
+        FullHttpRequest compressedRequest = request.replace(compressed);
+        request.release();
+        compressedRequest.headers()
+                         .set(HttpHeaderNames.CONTENT_ENCODING, compression.id())
+                         .setInt(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes());
+        return compressedRequest;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (requestCompression == null && msg instanceof HttpResponse) {
+            negotiate(((HttpResponse) msg).headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private void negotiate(String serverAcceptEncoding) {
+        if (serverAcceptEncoding == null) {
+            return;
+        }
+        for (Compression compression : preferred) {
+            for (String coding : serverAcceptEncoding.split(",")) {
+                if (compression.id().equalsIgnoreCase(coding.trim())) {
+                    log.debug("Compressing requests with {}", compression.id());
+                    requestCompression = compression;
+                    return;
+                }
+            }
+        }
+    }
+}
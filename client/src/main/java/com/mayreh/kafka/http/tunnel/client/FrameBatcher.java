@@ -0,0 +1,349 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeadersFactory;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.AsciiString;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Coalesces Kafka requests of all {@link BatchingTransport}s of a {@link TunnelingSelector} into
+ * multi-frame envelopes, each of which is sent as a single stream over the shared {@link Http2TunnelConnection}.
+ * <p>
+ * The request envelope is a sequence of frames: channel id (int32), broker ({@code host:port} prefixed by
+ * int16 length) and a Kafka request including its size prefix. A request of size 0 tells the server that
+ * the channel is closed, so that it closes the broker connection.
+ * <p>
+ * The response envelope is a sequence of channel id (int32) and a Kafka response including its size prefix,
+ * which the server writes as each response arrives. A frame of size -1 means the request failed.
+ * Requests which don't have a response (i.e. acks=0 produce) have no frame in the response.
+ * <p>
+ * An envelope is sent once the linger elapses since its first frame, or once it reaches the max size.
+ * Frames are dispatched as they are received, so a long-polling Fetch doesn't delay responses of other
+ * channels. A channel's frame is held back only while the channel still waits for responses in
+ * an earlier envelope, since envelopes are received over independent streams.
+ * Everything other than {@link #add} runs on the selector's event loop.
+ */
+class FrameBatcher {
+    static final String BATCH_PATH = "/batch";
+    static final int FAILED_FRAME_SIZE = -1;
+    // All header names and values are constructed by us, so no need to validate
+    private static final DefaultHttpHeadersFactory HEADERS_FACTORY =
+            DefaultHttpHeadersFactory.headersFactory().withValidation(false);
+
+    private final TunnelingSelector selector;
+    private final EventLoop eventLoop;
+    private final AsciiString host;
+    // Identifies the envelopes of this batcher on the server, which distinguishes Kafka connections
+    // by this and the channel id of each frame
+    private final AsciiString sessionId = new AsciiString(UUID.randomUUID().toString());
+    private final long lingerNanos;
+    private final int maxBytes;
+    // Null if compression is disabled
+    private final CompressionHandler compressionHandler;
+    // Accessed only from the event loop
+    private final IntObjectMap<BatchingTransport> transports = new IntObjectHashMap<>();
+    private final Deque<Envelope> inFlight = new ArrayDeque<>();
+    private Envelope current;
+
+    private static class Envelope {
+        private final CompositeByteBuf content = ByteBufAllocator.DEFAULT.compositeBuffer(Integer.MAX_VALUE);
+        // Transports which have requests in the envelope, to notify errors
+        private final List<BatchingTransport> senders = new ArrayList<>();
+        // Number of responses not dispatched yet per channel id
+        private final IntObjectMap<Integer> pending = new IntObjectHashMap<>();
+        // Received frames not dispatched yet, in the order of arrival
+        private final List<Frame> frames = new ArrayList<>();
+        // The received content, whose read part has been located as frames
+        private final CompositeByteBuf received = ByteBufAllocator.DEFAULT.compositeBuffer(Integer.MAX_VALUE);
+        private boolean done;
+    }
+
+    /**
+     * Response frame of a channel. The response is null if the request failed
+     */
+    @RequiredArgsConstructor
+    private static class Frame {
+        private final int channelId;
+        private final ByteBuf response;
+        private final Throwable error;
+    }
+
+    FrameBatcher(
+            TunnelingSelector selector,
+            EventLoop eventLoop,
+            TunnelingConfig config,
+            CompressionHandler compressionHandler) {
+        this.selector = selector;
+        this.eventLoop = eventLoop;
+        InetSocketAddress endpoint = config.endpoint();
+        host = new AsciiString(endpoint.getHostString() + ':' + endpoint.getPort());
+        lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.batchLingerMs());
+        maxBytes = config.batchMaxBytes();
+        this.compressionHandler = compressionHandler;
+    }
+
+    void register(BatchingTransport transport) {
+        eventLoop.execute(() -> transports.put(transport.channelId(), transport));
+    }
+
+    /**
+     * Unregister the transport of a closed channel, and let the server close its broker connection
+     */
+    void unregister(BatchingTransport transport) {
+        eventLoop.execute(() -> {
+            transports.remove(transport.channelId());
+            if (transport.broker() != null) {
+                append(transport, Unpooled.copyInt(0), false);
+            }
+        });
+    }
+
+    /**
+     * Add a size-prefixed Kafka request to the current envelope.
+     * The ownership of the buffer is transferred to the batcher.
+     */
+    void add(BatchingTransport transport, ByteBuf request) {
+        if (eventLoop.inEventLoop()) {
+            doAdd(transport, request);
+        } else {
+            eventLoop.execute(() -> doAdd(transport, request));
+        }
+    }
+
+    private void doAdd(BatchingTransport transport, ByteBuf request) {
+        append(transport, request, true);
+    }
+
+    /**
+     * Append a frame to the current envelope. isRequest is false for the close frame, which has no response.
+     */
+    private void append(BatchingTransport transport, ByteBuf request, boolean isRequest) {
+        if (current == null) {
+            Envelope envelope = new Envelope();
+            current = envelope;
+            eventLoop.schedule(() -> {
+                if (current == envelope) {
+                    flush();
+                }
+            }, lingerNanos, TimeUnit.NANOSECONDS);
+        }
+        byte[] broker = transport.broker();
+        ByteBuf header = ByteBufAllocator.DEFAULT.buffer(4 + 2 + broker.length);
+        header.writeInt(transport.channelId());
+        header.writeShort(broker.length);
+        header.writeBytes(broker);
+        current.content.addComponents(true, header, request);
+        if (isRequest) {
+            if (!current.senders.contains(transport)) {
+                current.senders.add(transport);
+            }
+            if (KafkaProtocol.expectResponse(request)) {
+                current.pending.merge(transport.channelId(), 1, Integer::sum);
+            }
+        }
+        if (current.content.readableBytes() >= maxBytes) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        Envelope envelope = current;
+        current = null;
+        inFlight.addLast(envelope);
+
+        HttpHeaders headers = HEADERS_FACTORY.newHeaders();
+        headers.add(HttpHeaderNames.HOST, host);
+        headers.addInt(HttpHeaderNames.CONTENT_LENGTH, envelope.content.readableBytes());
+        headers.add(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+        headers.add(ProxyRequestFactory.SESSION_ID_HEADER, sessionId);
+        FullHttpRequest request = new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1, HttpMethod.POST, BATCH_PATH, envelope.content, headers,
+                EmptyHttpHeaders.INSTANCE);
+
+        Http2TunnelConnection connection = selector.http2Connection();
+        connection.connectFuture().whenComplete((v, t) -> eventLoop.execute(() -> {
+            if (t != null) {
+                request.release();
+                complete(envelope, t);
+            } else {
+                send(connection, envelope, request);
+            }
+        }));
+    }
+
+    private void send(Http2TunnelConnection connection, Envelope envelope, FullHttpRequest request) {
+        connection.openStream(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                if (compressionHandler != null) {
+                    ch.pipeline().addLast(compressionHandler);
+                }
+                ch.pipeline().addLast(new TunnelContentDecompressor());
+                ch.pipeline().addLast(new ProxyResponseHandler(new ProxyResponseHandler.Listener() {
+                    @Override
+                    public void onResponse(ByteBuf response) {
+                        receive(envelope, response);
+                    }
+
+                    @Override
+                    public void onResponseComplete() {
+                        complete(envelope, null);
+                    }
+
+                    @Override
+                    public void onError(Throwable cause) {
+                        complete(envelope, cause);
+                    }
+                }));
+            }
+        }).addListener(f -> {
+            if (f.isSuccess()) {
+                Http2StreamChannel stream = (Http2StreamChannel) f.getNow();
+                // In case the stream is reset without a response.
+                // This is no-op if the response is already received
+                stream.closeFuture().addListener(cf -> complete(envelope, new ClosedChannelException()));
+                stream.writeAndFlush(request).addListener(wf -> {
+                    if (!wf.isSuccess()) {
+                        complete(envelope, wf.cause());
+                    }
+                });
+            } else {
+                request.release();
+                complete(envelope, f.cause());
+            }
+        });
+    }
+
+    /**
+     * Locate complete frames in the received chunk and dispatch them
+     */
+    private void receive(Envelope envelope, ByteBuf chunk) {
+        if (envelope.done) {
+            return;
+        }
+        CompositeByteBuf received = envelope.received;
+        received.addComponent(true, chunk.retain());
+        while (received.readableBytes() >= 4 + 4) {
+            int channelId = received.getInt(received.readerIndex());
+            int size = received.getInt(received.readerIndex() + 4);
+            if (size == FAILED_FRAME_SIZE) {
+                received.skipBytes(4 + 4);
+                envelope.frames.add(new Frame(channelId, null, new IOException("Request failed on the server")));
+                continue;
+            }
+            if (received.readableBytes() < 4 + 4 + size) {
+                break;
+            }
+            received.skipBytes(4);
+            envelope.frames.add(new Frame(channelId, received.readRetainedSlice(4 + size), null));
+        }
+        // Frames are slices of the cumulation, so its components can be discarded only when none is referenced
+        // (same as ByteToMessageDecoder)
+        if (received.refCnt() == 1) {
+            received.discardReadComponents();
+        }
+        drain();
+    }
+
+    private void complete(Envelope envelope, Throwable cause) {
+        if (envelope.done) {
+            return;
+        }
+        envelope.done = true;
+        envelope.received.release();
+        if (cause != null) {
+            for (BatchingTransport transport : envelope.senders) {
+                envelope.frames.add(new Frame(transport.channelId(), null, cause));
+            }
+        } else {
+            // The server should have written frames for all requests
+            for (IntObjectMap.PrimitiveEntry<Integer> entry : envelope.pending.entries()) {
+                int channelId = entry.key();
+                long received = envelope.frames.stream().filter(frame -> frame.channelId == channelId).count();
+                if (received < entry.value()) {
+                    envelope.frames.add(new Frame(channelId, null, new IOException("Missing response frame")));
+                }
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Dispatch received frames in the order of envelopes per channel
+     */
+    private void drain() {
+        // Channels waiting for responses in earlier envelopes
+        Set<Integer> blocked = new HashSet<>();
+        for (Iterator<Envelope> envelopes = inFlight.iterator(); envelopes.hasNext(); ) {
+            Envelope envelope = envelopes.next();
+            for (Iterator<Frame> frames = envelope.frames.iterator(); frames.hasNext(); ) {
+                Frame frame = frames.next();
+                if (blocked.contains(frame.channelId)) {
+                    continue;
+                }
+                frames.remove();
+                dispatch(envelope, frame);
+            }
+            blocked.addAll(envelope.pending.keySet());
+            if (envelope.done && envelope.frames.isEmpty()) {
+                envelopes.remove();
+            }
+        }
+    }
+
+    private void dispatch(Envelope envelope, Frame frame) {
+        BatchingTransport transport = transports.get(frame.channelId);
+        if (frame.error != null) {
+            envelope.pending.remove(frame.channelId);
+            if (transport != null) {
+                transport.onError(frame.error);
+            }
+            return;
+        }
+        Integer pending = envelope.pending.get(frame.channelId);
+        if (pending == null || pending == 1) {
+            envelope.pending.remove(frame.channelId);
+        } else {
+            envelope.pending.put(frame.channelId, Integer.valueOf(pending - 1));
+        }
+        try {
+            if (transport != null) {
+                transport.onResponse(frame.response);
+            }
+        } finally {
+            frame.response.release();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
+import io.netty.handler.ssl.SslHandler;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps HTTP/1.1 connections to the tunnel server established (and TLS-negotiated) in advance,
+ * so that a new {@link TunnelingSocketChannel} can start sending requests without waiting for handshakes.
+ * <p>
+ * Taken connections are refilled in the background. Connections closed by the server while idle
+ * are also replaced, and connections idle for {@link TunnelingConfig#poolMaxIdleMs()} are replaced in advance,
+ * so that a connection the server is closing by its idle timeout isn't handed to Kafka.
+ * <p>
+ * Since pooled connections are opened before Kafka opens the channel, socket options Kafka configures
+ * on the channel are not applied to them.
+ */
+@Slf4j
+class Http1ConnectionPool {
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final TunnelingConfig config;
+    private final EventLoop eventLoop;
+    private final Bootstrap bootstrap;
+    private final int size;
+    private final long maxIdleMs;
+    private final Queue<Channel> idleChannels = new ConcurrentLinkedQueue<>();
+    // Number of idle channels and channels being established
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean closed;
+
+    Http1ConnectionPool(
+            TunnelingConfig config,
+            Bootstrap bootstrap,
+            EventLoop eventLoop) {
+        this.config = config;
+        this.bootstrap = bootstrap;
+        this.eventLoop = eventLoop;
+        size = config.poolSize();
+        maxIdleMs = config.poolMaxIdleMs();
+        fill();
+    }
+
+    /**
+     * Take an established connection. Returns null if no connection is available
+     */
+    Channel poll() {
+        Channel channel;
+        while ((channel = idleChannels.poll()) != null) {
+            count.decrementAndGet();
+            fill();
+            if (channel.isActive()) {
+                return channel;
+            }
+            channel.close();
+        }
+        return null;
+    }
+
+    void close() {
+        closed = true;
+        Channel channel;
+        while ((channel = idleChannels.poll()) != null) {
+            channel.close();
+        }
+    }
+
+    private void fill() {
+        int n;
+        while (!closed && (n = count.get()) < size) {
+            if (count.compareAndSet(n, n + 1)) {
+                connect();
+            }
+        }
+    }
+
+    private void connect() {
+        ChannelFuture future = bootstrap.connect(config.endpoint());
+        Channel channel = future.channel();
+        future.addListener(f -> {
+            if (!f.isSuccess()) {
+                onConnectFailure(f.cause());
+                return;
+            }
+            SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+            if (sslHandler == null) {
+                onReady(channel);
+                return;
+            }
+            sslHandler.handshakeFuture().addListener(handshake -> {
+                if (handshake.isSuccess()) {
+                    onReady(channel);
+                } else {
+                    channel.close();
+                    onConnectFailure(handshake.cause());
+                }
+            });
+        });
+    }
+
+    private void onConnectFailure(Throwable cause) {
+        log.debug("Failed to establish pooled connection. Retrying in {} ms", RETRY_DELAY_MS, cause);
+        count.decrementAndGet();
+        if (!closed) {
+            eventLoop.schedule(this::fill, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onReady(Channel channel) {
+        idleChannels.offer(channel);
+        channel.closeFuture().addListener(f -> {
+            // Replace the connection closed while idle
+            if (idleChannels.remove(channel)) {
+                count.decrementAndGet();
+                fill();
+            }
+        });
+        if (maxIdleMs > 0) {
+            channel.eventLoop().schedule(() -> {
+                // Removing first so that it's never taken while closing
+                if (idleChannels.remove(channel)) {
+                    log.debug("Replacing pooled connection idle for {} ms", maxIdleMs);
+                    count.decrementAndGet();
+                    channel.close();
+                    fill();
+                }
+            }, maxIdleMs, TimeUnit.MILLISECONDS);
+        }
+        if (closed && idleChannels.remove(channel)) {
+            channel.close();
+        }
+    }
+}
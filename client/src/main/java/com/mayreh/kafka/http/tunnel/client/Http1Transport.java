@@ -0,0 +1,283 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link TunnelTransport} which opens a dedicated HTTP/1.1 connection per {@link TunnelingSocketChannel}.
+ * <p>
+ * Requests are pipelined on the connection, so responses are naturally delivered in order,
+ * which also allows streaming response content to the channel as it arrives.
+ * <p>
+ * The server closes the connection after its idle timeout. Since the server identifies the Kafka connection
+ * by the session id rather than the HTTP connection, a connection closed without requests waiting for
+ * the response is replaced on the next request instead of failing the channel.
+ * As with pooled connections, socket options Kafka configured on the channel are not applied to the replacement.
+ */
+@Slf4j
+class Http1Transport implements TunnelTransport {
+    private final TunnelingSocketChannel owner;
+    // Null if adopted from the pool
+    private final ChannelFuture registerFuture;
+    private final InetSocketAddress tunnelServer;
+    // Opens a connection replacing the one closed while idle
+    private final Bootstrap bootstrap;
+    // Whether the channel is adopted from Http1ConnectionPool, which is connected already
+    private final boolean pooled;
+    private volatile ProxyRequestFactory requestFactory;
+    // The connection in use, which is replaced once the server closed it while idle. Updated while holding the lock
+    private volatile Channel channel;
+    // Requests sent on the connection but not responded yet. Accessed while holding the lock
+    private int outstandingRequests;
+    // Whether the server closed the connection while idle, which is replaced on the next request
+    private boolean idleClosed;
+    // Requests sent while replacing the connection, which are written once connected. Null unless replacing
+    private List<FullHttpRequest> pendingRequests;
+    private boolean autoRead = true;
+    private boolean closed;
+
+    /**
+     * Bootstrap for connections to the tunnel server whose pipeline is initialized by {@link #initPipeline}.
+     * Shared by connections of a selector, including the pooled ones.
+     */
+    static Bootstrap newBootstrap(
+            EventLoop eventLoop,
+            SelectorProvider defaultProvider,
+            SslHandlerFactory sslHandlerFactory,
+            boolean streamingResponse,
+            CompressionHandler compressionHandler) {
+        return new Bootstrap()
+                .group(eventLoop)
+                .channelFactory(() -> IoTransport.current().newSocketChannel(defaultProvider))
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        initPipeline(ch, sslHandlerFactory, streamingResponse, compressionHandler);
+                    }
+                });
+    }
+
+    Http1Transport(
+            TunnelingSocketChannel owner,
+            SocketChannel javaChannel,
+            InetSocketAddress tunnelServer,
+            Bootstrap bootstrap) {
+        this.owner = owner;
+        this.tunnelServer = tunnelServer;
+        this.bootstrap = bootstrap;
+        pooled = false;
+        Channel channel = IoTransport.current().newSocketChannel(javaChannel);
+        this.channel = channel;
+        // The bootstrap creates channels of its own, so register Kafka's channel with its initializer directly.
+        // Failure is notified on connect()
+        channel.pipeline().addLast(bootstrap.config().handler());
+        registerFuture = bootstrap.config().group().register(channel);
+        // The pipeline is initialized on registration, before the future completes
+        registerFuture.addListener(f -> {
+            if (f.isSuccess()) {
+                channel.pipeline().addLast(new ProxyResponseHandler(new ResponseListener(channel)));
+            }
+        });
+    }
+
+    /**
+     * Adopt an established connection whose pipeline is initialized by {@link #initPipeline}
+     */
+    Http1Transport(
+            TunnelingSocketChannel owner,
+            Channel pooledChannel,
+            InetSocketAddress tunnelServer,
+            Bootstrap bootstrap) {
+        this.owner = owner;
+        this.tunnelServer = tunnelServer;
+        this.bootstrap = bootstrap;
+        pooled = true;
+        registerFuture = null;
+        channel = pooledChannel;
+        channel.pipeline().addLast(new ProxyResponseHandler(new ResponseListener(pooledChannel)));
+    }
+
+    /**
+     * Set up the pipeline to exchange proxy requests and responses, except the handler for responses
+     */
+    static void initPipeline(
+            Channel ch,
+            SslHandlerFactory sslHandlerFactory,
+            boolean streamingResponse,
+            CompressionHandler compressionHandler) {
+        if (sslHandlerFactory != null) {
+            sslHandlerFactory.addTo(ch.pipeline());
+        }
+        ch.pipeline().addLast(new HttpClientCodec());
+        if (compressionHandler != null) {
+            ch.pipeline().addLast(compressionHandler);
+        }
+        ch.pipeline().addLast(new TunnelContentDecompressor());
+        if (!streamingResponse) {
+            ch.pipeline().addLast(new HttpObjectAggregator(Integer.MAX_VALUE));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> connect(InetSocketAddress brokerAddress) {
+        requestFactory = new ProxyRequestFactory(brokerAddress, owner.sessionId());
+        Channel channel = this.channel;
+        if (pooled) {
+            // The server may have closed the connection after it's taken from the pool
+            return channel.isActive() ? CompletableFuture.completedFuture(null)
+                                      : CompletableFuture.failedFuture(new ClosedChannelException());
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        registerFuture.addListener(rf -> {
+            if (!rf.isSuccess()) {
+                future.completeExceptionally(rf.cause());
+                return;
+            }
+            channel.connect(tunnelServer).addListener(f -> {
+                if (f.isSuccess()) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(f.cause());
+                }
+            });
+        });
+        return future;
+    }
+
+    @Override
+    public void send(ByteBuf request) {
+        FullHttpRequest httpRequest = requestFactory.newRequest(request);
+        synchronized (this) {
+            if (closed) {
+                httpRequest.release();
+                return;
+            }
+            if (idleClosed) {
+                reconnect();
+            }
+            if (pendingRequests != null) {
+                pendingRequests.add(httpRequest);
+                return;
+            }
+            // Written while holding the lock to keep the order with requests written on reconnection
+            outstandingRequests++;
+            channel.writeAndFlush(httpRequest);
+        }
+    }
+
+    /**
+     * Replace the connection closed while idle. Must be called while holding the lock
+     */
+    private void reconnect() {
+        log.debug("Reconnecting to the tunnel server closed the idle connection");
+        idleClosed = false;
+        pendingRequests = new ArrayList<>();
+        ChannelFuture future = bootstrap.connect(tunnelServer);
+        Channel newChannel = future.channel();
+        channel = newChannel;
+        future.addListener(f -> onReconnect(newChannel, f.isSuccess() ? null : f.cause()));
+    }
+
+    private void onReconnect(Channel newChannel, Throwable cause) {
+        List<FullHttpRequest> requests;
+        synchronized (this) {
+            requests = pendingRequests;
+            pendingRequests = null;
+            if (cause == null && !closed) {
+                newChannel.config().setAutoRead(autoRead);
+                newChannel.pipeline().addLast(new ProxyResponseHandler(new ResponseListener(newChannel)));
+                outstandingRequests = requests.size();
+                for (FullHttpRequest request : requests) {
+                    newChannel.write(request);
+                }
+                newChannel.flush();
+                return;
+            }
+        }
+        for (FullHttpRequest request : requests) {
+            request.release();
+        }
+        if (cause != null) {
+            owner.onError(cause);
+        }
+    }
+
+    @Override
+    public synchronized void setAutoRead(boolean autoRead) {
+        this.autoRead = autoRead;
+        channel.config().setAutoRead(autoRead);
+    }
+
+    @Override
+    public synchronized boolean isActive() {
+        return !closed && (idleClosed || pendingRequests != null || channel.isActive());
+    }
+
+    @Override
+    public void close() {
+        Channel channel;
+        synchronized (this) {
+            closed = true;
+            channel = this.channel;
+        }
+        // Not holding the lock, since the event loop takes it on closing the connection
+        channel.close().syncUninterruptibly();
+    }
+
+    /**
+     * Delivers responses of a connection to the owner, and tells whether its closing is a failure
+     */
+    @RequiredArgsConstructor
+    private class ResponseListener implements ProxyResponseHandler.Listener {
+        private final Channel responseChannel;
+
+        @Override
+        public void onResponse(ByteBuf response) {
+            owner.onResponse(response);
+        }
+
+        @Override
+        public void onResponseComplete() {
+            synchronized (Http1Transport.this) {
+                outstandingRequests--;
+            }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            owner.onError(cause);
+        }
+
+        @Override
+        public void onClosed() {
+            synchronized (Http1Transport.this) {
+                if (closed || responseChannel != channel) {
+                    return;
+                }
+                if (outstandingRequests == 0) {
+                    // e.g. the server's idle timeout. Nothing is lost since no response is expected
+                    idleClosed = true;
+                    return;
+                }
+            }
+            owner.onError(new ClosedChannelException());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * {@link TunnelTransport} which sends each Kafka request as its own stream
+ * over the {@link Http2TunnelConnection} shared in the {@link TunnelingSelector}.
+ * <p>
+ * Since streams complete independently, responses are buffered until all responses
+ * for preceding requests are delivered, to preserve the order Kafka expects.
+ * In streaming mode, the response of the oldest request is handed to the channel as it arrives.
+ */
+@RequiredArgsConstructor
+class Http2Transport implements TunnelTransport {
+    private final TunnelingSocketChannel owner;
+    private final TunnelingSelector selector;
+    private final boolean streamingResponse;
+    // Null if compression is disabled
+    private final CompressionHandler compressionHandler;
+    // Accessed only from the connection's event loop
+    private final Deque<ResponseSlot> slots = new ArrayDeque<>();
+    private volatile Http2TunnelConnection connection;
+    private volatile ProxyRequestFactory requestFactory;
+    // Applied to the streams of this transport. Accessed only from the connection's event loop
+    private boolean autoRead = true;
+
+    private static class ResponseSlot {
+        // Response content which arrived before the slot becomes the oldest one
+        private final Deque<ByteBuf> pending = new ArrayDeque<>();
+        private boolean done;
+        private Throwable error;
+        private Http2StreamChannel stream;
+    }
+
+    @Override
+    public CompletableFuture<Void> connect(InetSocketAddress brokerAddress) {
+        requestFactory = new ProxyRequestFactory(brokerAddress, owner.sessionId());
+        connection = selector.http2Connection();
+        return connection.connectFuture();
+    }
+
+    @Override
+    public void send(ByteBuf request) {
+        FullHttpRequest httpRequest = requestFactory.newRequest(request);
+        Http2TunnelConnection connection = this.connection;
+        if (connection.eventLoop().inEventLoop()) {
+            doSend(connection, httpRequest);
+        } else {
+            connection.eventLoop().execute(() -> doSend(connection, httpRequest));
+        }
+    }
+
+    private void doSend(Http2TunnelConnection connection, FullHttpRequest request) {
+        ResponseSlot slot = new ResponseSlot();
+        slots.addLast(slot);
+        connection.openStream(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                if (compressionHandler != null) {
+                    ch.pipeline().addLast(compressionHandler);
+                }
+                ch.pipeline().addLast(new TunnelContentDecompressor());
+                if (!streamingResponse) {
+                    ch.pipeline().addLast(new HttpObjectAggregator(Integer.MAX_VALUE));
+                }
+                ch.pipeline().addLast(new ProxyResponseHandler(new ProxyResponseHandler.Listener() {
+                    @Override
+                    public void onResponse(ByteBuf response) {
+                        if (slot.done) {
+                            return;
+                        }
+                        if (slots.peekFirst() == slot) {
+                            owner.onResponse(response);
+                        } else {
+                            slot.pending.addLast(response.retain());
+                        }
+                    }
+
+                    @Override
+                    public void onResponseComplete() {
+                        slot.done = true;
+                        deliverResponses();
+                    }
+
+                    @Override
+                    public void onError(Throwable cause) {
+                        complete(slot, cause);
+                    }
+                }));
+            }
+        }).addListener(f -> {
+            if (f.isSuccess()) {
+                Http2StreamChannel stream = (Http2StreamChannel) f.getNow();
+                slot.stream = stream;
+                // Stream-level flow control holds back the server while the stream doesn't read
+                stream.config().setAutoRead(autoRead);
+                // In case the stream is reset without a response.
+                // This is no-op if the response is already received
+                stream.closeFuture().addListener(cf -> complete(slot, new ClosedChannelException()));
+                stream.writeAndFlush(request).addListener(wf -> {
+                    if (!wf.isSuccess()) {
+                        complete(slot, wf.cause());
+                    }
+                });
+            } else {
+                request.release();
+                complete(slot, f.cause());
+            }
+        });
+    }
+
+    private void complete(ResponseSlot slot, Throwable cause) {
+        if (slot.done) {
+            return;
+        }
+        slot.error = cause;
+        slot.done = true;
+        deliverResponses();
+    }
+
+    private void deliverResponses() {
+        ResponseSlot slot;
+        while ((slot = slots.peekFirst()) != null) {
+            ByteBuf buf;
+            while ((buf = slot.pending.pollFirst()) != null) {
+                try {
+                    owner.onResponse(buf);
+                } finally {
+                    buf.release();
+                }
+            }
+            if (!slot.done) {
+                break;
+            }
+            slots.pollFirst();
+            if (slot.error != null) {
+                owner.onError(slot.error);
+            }
+        }
+    }
+
+    @Override
+    public void setAutoRead(boolean autoRead) {
+        this.autoRead = autoRead;
+        for (ResponseSlot slot : slots) {
+            if (slot.stream != null) {
+                slot.stream.config().setAutoRead(autoRead);
+            }
+        }
+    }
+
+    @Override
+    public boolean isActive() {
+        Http2TunnelConnection connection = this.connection;
+        return connection != null && connection.isActive();
+    }
+
+    @Override
+    public void close() {
+        Http2TunnelConnection connection = this.connection;
+        if (connection == null) {
+            return;
+        }
+        connection.eventLoop().execute(() -> {
+            List<Http2StreamChannel> streams = new ArrayList<>();
+            ResponseSlot slot;
+            while ((slot = slots.pollFirst()) != null) {
+                ByteBuf buf;
+                while ((buf = slot.pending.pollFirst()) != null) {
+                    buf.release();
+                }
+                if (slot.stream != null) {
+                    streams.add(slot.stream);
+                }
+            }
+            // Reset streams still in progress, so that the server cancels the requests
+            for (Http2StreamChannel stream : streams) {
+                stream.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,114 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A single HTTP/2 connection to the tunnel server which is shared by all
+ * {@link TunnelingSocketChannel}s registered to a {@link TunnelingSelector}.
+ * <p>
+ * The connection talks h2 over TLS (negotiated through ALPN) or h2c with prior knowledge.
+ */
+@Slf4j
+class Http2TunnelConnection {
+    // Kafka responses (e.g. fetch) are often large, so we open the flow-control windows
+    // wider than the HTTP/2 default (64KiB) to avoid stalling on WAN links
+    private static final int INITIAL_WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    private final Channel channel;
+    private final CompletableFuture<Void> connectFuture = new CompletableFuture<>();
+
+    Http2TunnelConnection(
+            InetSocketAddress tunnelServer,
+            SslHandlerFactory sslHandlerFactory,
+            EventLoopGroup eventLoopGroup,
+            SelectorProvider defaultProvider) {
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap
+                .group(eventLoopGroup)
+                .channelFactory(() -> IoTransport.current().newSocketChannel(defaultProvider))
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        if (sslHandlerFactory != null) {
+                            sslHandlerFactory.addTo(ch.pipeline());
+                        }
+                        ch.pipeline().addLast(
+                                Http2FrameCodecBuilder
+                                        .forClient()
+                                        .initialSettings(Http2Settings
+                                                                 .defaultSettings()
+                                                                 .initialWindowSize(INITIAL_WINDOW_SIZE))
+                                        .build(),
+                                // The server never initiates streams
+                                new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    }
+                });
+        ChannelFuture future = bootstrap.connect(tunnelServer);
+        channel = future.channel();
+        future.addListener(f -> {
+            if (f.isSuccess()) {
+                channel.writeAndFlush(new DefaultHttp2WindowUpdateFrame(
+                        CONNECTION_WINDOW_SIZE - Http2CodecUtil.DEFAULT_WINDOW_SIZE));
+                connectFuture.complete(null);
+            } else {
+                log.warn("Failed to connect to the tunnel server", f.cause());
+                connectFuture.completeExceptionally(f.cause());
+            }
+        });
+    }
+
+    CompletableFuture<Void> connectFuture() {
+        return connectFuture;
+    }
+
+    EventLoop eventLoop() {
+        return channel.eventLoop();
+    }
+
+    /**
+     * Returns true if the connection is established or being established
+     */
+    boolean isUsable() {
+        return channel.isOpen();
+    }
+
+    boolean isActive() {
+        return channel.isActive();
+    }
+
+    /**
+     * Open a new stream on the connection.
+     * Must be called after the connection is established.
+     */
+    Future<Http2StreamChannel> openStream(ChannelHandler handler) {
+        return new Http2StreamChannelBootstrap(channel).handler(handler).open();
+    }
+
+    void close() {
+        channel.close();
+    }
+}
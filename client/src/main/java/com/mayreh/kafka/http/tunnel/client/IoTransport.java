@@ -0,0 +1,158 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.ThreadFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Netty transport used for connections to the tunnel server.
+ * <p>
+ * Configured by the system property {@code kafka.http.tunnel.io.transport} ({@code nio}, {@code epoll} or
+ * {@code io_uring}) once per JVM. Falls back to {@code nio} if the requested transport is unavailable.
+ * <p>
+ * io_uring is experimental and requires {@code netty-incubator-transport-native-io_uring} on the classpath,
+ * so it is loaded reflectively.
+ * <p>
+ * The server has a copy choosing the transport from its config. This one differs in passing the JDK's
+ * {@code SelectorProvider} explicitly, since the JVM-wide provider is the tunneling one.
+ */
+@Slf4j
+enum IoTransport {
+    NIO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory, SelectorProvider defaultProvider) {
+            return new NioEventLoopGroup(threads, threadFactory, defaultProvider);
+        }
+
+        @Override
+        Channel newSocketChannel(SelectorProvider defaultProvider) {
+            return new NioSocketChannel(defaultProvider);
+        }
+
+        @Override
+        Channel newSocketChannel(SocketChannel javaChannel) {
+            // Wrap the channel which Kafka already configured socket options on
+            return new NioSocketChannel(javaChannel);
+        }
+    },
+    EPOLL {
+        @Override
+        boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory, SelectorProvider defaultProvider) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Channel newSocketChannel(SelectorProvider defaultProvider) {
+            return configure(new EpollSocketChannel());
+        }
+    },
+    IO_URING {
+        @Override
+        boolean isAvailable() {
+            try {
+                return (Boolean) Class.forName(IO_URING_PACKAGE + "IOUring").getMethod("isAvailable").invoke(null);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return false;
+            }
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory, SelectorProvider defaultProvider) {
+            try {
+                return (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup")
+                                             .getConstructor(int.class, ThreadFactory.class)
+                                             .newInstance(threads, threadFactory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        Channel newSocketChannel(SelectorProvider defaultProvider) {
+            try {
+                return configure((Channel) Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel")
+                                                .getConstructor()
+                                                .newInstance());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    },
+    ;
+
+    static final String IO_TRANSPORT_PROPERTY = "kafka.http.tunnel.io.transport";
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    private static class Holder {
+        private static final IoTransport CURRENT = fromSystemProperties();
+    }
+
+    /**
+     * The transport in use in this JVM
+     */
+    static IoTransport current() {
+        return Holder.CURRENT;
+    }
+
+    abstract boolean isAvailable();
+
+    abstract EventLoopGroup newEventLoopGroup(
+            int threads, ThreadFactory threadFactory, SelectorProvider defaultProvider);
+
+    /**
+     * Create a new channel to connect to the tunnel server.
+     */
+    abstract Channel newSocketChannel(SelectorProvider defaultProvider);
+
+    /**
+     * Create a new channel to connect to the tunnel server on behalf of the given Kafka's channel.
+     * <p>
+     * Other than NIO, javaChannel is not used as the underlying socket so socket options Kafka configured
+     * on it are not carried over, except TCP_NODELAY and SO_KEEPALIVE which Kafka always enables.
+     */
+    Channel newSocketChannel(SocketChannel javaChannel) {
+        return newSocketChannel((SelectorProvider) null);
+    }
+
+    private static Channel configure(Channel channel) {
+        channel.config().setOption(ChannelOption.TCP_NODELAY, true);
+        channel.config().setOption(ChannelOption.SO_KEEPALIVE, true);
+        return channel;
+    }
+
+    private static IoTransport fromSystemProperties() {
+        String name = System.getProperty(IO_TRANSPORT_PROPERTY, NIO.name());
+        IoTransport transport;
+        try {
+            transport = valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown I/O transport: {}. Falling back to NIO", name);
+            return NIO;
+        }
+        if (!transport.isAvailable()) {
+            log.warn("I/O transport {} is not available. Falling back to NIO", transport);
+            return NIO;
+        }
+        return transport;
+    }
+}
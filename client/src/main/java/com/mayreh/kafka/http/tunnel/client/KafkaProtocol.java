@@ -0,0 +1,197 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Minimal helpers to peek Kafka protocol fields from a size-prefixed request frame
+ * without decoding the entire message.
+ * <p>
+ * All methods read by absolute index so the reader index of the given buffer is never changed.
+ * <p>
+ * The server module has its own variant covering responses as well. Sharing would need a common artifact
+ * that Kafka clients' classpath has to carry, for a few hundred lines.
+ */
+final class KafkaProtocol {
+    static final short API_KEY_PRODUCE = 0;
+
+    // First flexible (KIP-482) version of ProduceRequest
+    private static final short PRODUCE_FIRST_FLEXIBLE_VERSION = 9;
+    // First version of ProduceRequest which has transactional_id field
+    private static final short PRODUCE_FIRST_TRANSACTIONAL_VERSION = 3;
+    // Enough size to read the attributes of both legacy message sets and record batches
+    private static final int RECORD_BATCH_MIN_SIZE = 8 + 4 + 4 + 1 + 4 + 2;
+    private static final int COMPRESSION_CODEC_MASK = 0x07;
+
+    private KafkaProtocol() {}
+
+    static short apiKey(ByteBuf request) {
+        return request.getShort(request.readerIndex() + 4);
+    }
+
+    static short apiVersion(ByteBuf request) {
+        return request.getShort(request.readerIndex() + 4 + 2);
+    }
+
+    /**
+     * Returns if the broker sends back a response for the request.
+     * As of current Kafka protocol, only ProduceRequest with acks=0 doesn't have a response.
+     */
+    static boolean expectResponse(ByteBuf request) {
+        if (apiKey(request) != API_KEY_PRODUCE) {
+            return true;
+        }
+        short version = apiVersion(request);
+        boolean flexible = version >= PRODUCE_FIRST_FLEXIBLE_VERSION;
+        try {
+            Reader reader = produceBodyReader(request, version, flexible);
+            return request.getShort(reader.index) != 0;
+        } catch (IndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns if the record data in the produce request is mostly compressed by the producer already,
+     * judged by the compression type of the first batch in each partition.
+     * Always returns false for other APIs.
+     */
+    static boolean isCompressedProduceRequest(ByteBuf request) {
+        if (apiKey(request) != API_KEY_PRODUCE) {
+            return false;
+        }
+        short version = apiVersion(request);
+        boolean flexible = version >= PRODUCE_FIRST_FLEXIBLE_VERSION;
+        try {
+            Reader reader = produceBodyReader(request, version, flexible);
+            // acks and timeout_ms
+            reader.skip(2 + 4);
+            long compressedBytes = 0;
+            int numTopics = reader.arrayLength(flexible);
+            for (int i = 0; i < numTopics; i++) {
+                reader.skipString(flexible);
+                int numPartitions = reader.arrayLength(flexible);
+                for (int j = 0; j < numPartitions; j++) {
+                    // index
+                    reader.skip(4);
+                    int recordsSize = reader.bytesLength(flexible);
+                    if (recordsSize > 0) {
+                        if (isCompressedBatch(request, reader.index, recordsSize)) {
+                            compressedBytes += recordsSize;
+                        }
+                        reader.skip(recordsSize);
+                    }
+                    if (flexible) {
+                        reader.skipTaggedFields();
+                    }
+                }
+                if (flexible) {
+                    reader.skipTaggedFields();
+                }
+            }
+            return compressedBytes * 2 >= request.readableBytes();
+        } catch (IndexOutOfBoundsException e) {
+            // Unknown format. Just consider it as not compressed
+            return false;
+        }
+    }
+
+    /**
+     * Returns a reader positioned at acks field of the produce request
+     */
+    private static Reader produceBodyReader(ByteBuf request, short version, boolean flexible) {
+        // skip size, api key, api version and correlation id
+        Reader reader = new Reader(request, request.readerIndex() + 4 + 2 + 2 + 4);
+        // client_id is always encoded as non-compact nullable string even in flexible header
+        reader.skipString(false);
+        if (flexible) {
+            reader.skipTaggedFields();
+        }
+        if (version >= PRODUCE_FIRST_TRANSACTIONAL_VERSION) {
+            reader.skipString(flexible);
+        }
+        return reader;
+    }
+
+    /**
+     * Both of legacy message sets and record batches (magic v2) have the magic at offset 16,
+     * and the lowest 3 bits of attributes represent the compression type.
+     */
+    private static boolean isCompressedBatch(ByteBuf buf, int index, int size) {
+        if (size < RECORD_BATCH_MIN_SIZE) {
+            return false;
+        }
+        byte magic = buf.getByte(index + 16);
+        int attributes = magic >= 2 ? buf.getShort(index + 21) : buf.getByte(index + 17);
+        return (attributes & COMPRESSION_CODEC_MASK) != 0;
+    }
+
+    /**
+     * Reads fields sequentially from the given index without changing the reader index of the buffer
+     */
+    private static class Reader {
+        private final ByteBuf buf;
+        private int index;
+
+        Reader(ByteBuf buf, int index) {
+            this.buf = buf;
+            this.index = index;
+        }
+
+        void skip(int bytes) {
+            index += bytes;
+        }
+
+        /**
+         * Skip nullable string. In flexible versions, it's encoded as compact string (length + 1, 0 means null)
+         */
+        void skipString(boolean flexible) {
+            int length = flexible ? readUnsignedVarint() - 1 : buf.getShort(advance(2));
+            index += Math.max(length, 0);
+        }
+
+        /**
+         * Read the length of nullable array. -1 means null
+         */
+        int arrayLength(boolean flexible) {
+            return flexible ? readUnsignedVarint() - 1 : buf.getInt(advance(4));
+        }
+
+        /**
+         * Read the length of nullable bytes. -1 means null
+         */
+        int bytesLength(boolean flexible) {
+            return arrayLength(flexible);
+        }
+
+        void skipTaggedFields() {
+            int numTaggedFields = readUnsignedVarint();
+            for (int i = 0; i < numTaggedFields; i++) {
+                // tag
+                readUnsignedVarint();
+                int size = readUnsignedVarint();
+                index += size;
+            }
+        }
+
+        /**
+         * Returns the current index and advance by the given bytes
+         */
+        private int advance(int bytes) {
+            int current = index;
+            index += bytes;
+            return current;
+        }
+
+        private int readUnsignedVarint() {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buf.getUnsignedByte(index++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Decodes content in the LZ4 frame format block by block, so that the decompressed bytes are handed
+ * to Kafka as soon as each block of the response arrives.
+ * (Netty's {@code Lz4FrameDecoder} is for its own block format, which is not compatible.)
+ * <p>
+ * Only independent blocks are supported, which is what {@code LZ4FrameOutputStream} writes.
+ * Header, block and content checksums are skipped without being verified, as the transport already
+ * guarantees the integrity.
+ * <p>
+ * Instantiated only through {@link Compression#newStreamDecoder()}, since lz4-java may be missing.
+ */
+class Lz4FrameStreamDecoder extends ByteToMessageDecoder {
+    private static final int MAGIC = 0x184D2204;
+    private static final int FLG_VERSION_MASK = 0xC0;
+    private static final int FLG_VERSION = 0x40;
+    private static final int FLG_BLOCK_INDEPENDENCE = 0x20;
+    private static final int FLG_BLOCK_CHECKSUM = 0x10;
+    private static final int FLG_CONTENT_SIZE = 0x08;
+    private static final int FLG_CONTENT_CHECKSUM = 0x04;
+    private static final int FLG_DICT_ID = 0x01;
+    private static final int BLOCK_UNCOMPRESSED_MASK = 0x80000000;
+
+    private enum State {
+        HEADER,
+        BLOCK,
+    }
+
+    private final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+    private State state = State.HEADER;
+    private boolean blockChecksum;
+    private boolean contentChecksum;
+    private int maxBlockSize;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        while (true) {
+            switch (state) {
+                case HEADER:
+                    if (!readHeader(in)) {
+                        return;
+                    }
+                    state = State.BLOCK;
+                    break;
+                case BLOCK:
+                    if (in.readableBytes() < 4) {
+                        return;
+                    }
+                    int index = in.readerIndex();
+                    int blockSize = in.getIntLE(index);
+                    if (blockSize == 0) {
+                        // EndMark. Another frame may follow
+                        int trailerSize = 4 + (contentChecksum ? 4 : 0);
+                        if (in.readableBytes() < trailerSize) {
+                            return;
+                        }
+                        in.skipBytes(trailerSize);
+                        state = State.HEADER;
+                        break;
+                    }
+                    boolean uncompressed = (blockSize & BLOCK_UNCOMPRESSED_MASK) != 0;
+                    int dataSize = blockSize & ~BLOCK_UNCOMPRESSED_MASK;
+                    if (dataSize > maxBlockSize) {
+                        throw new DecompressionException(
+                                "LZ4 block size " + dataSize + " exceeds the maximum " + maxBlockSize);
+                    }
+                    int totalSize = 4 + dataSize + (blockChecksum ? 4 : 0);
+                    if (in.readableBytes() < totalSize) {
+                        return;
+                    }
+                    if (uncompressed) {
+                        out.add(in.retainedSlice(index + 4, dataSize));
+                    } else {
+                        out.add(decompressBlock(ctx, in, index + 4, dataSize));
+                    }
+                    in.skipBytes(totalSize);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown state: " + state);
+            }
+        }
+    }
+
+    /**
+     * Read the frame descriptor. Returns false if it's not entirely received yet.
+     */
+    private boolean readHeader(ByteBuf in) {
+        // magic, FLG, BD and HC at least
+        if (in.readableBytes() < 4 + 1 + 1 + 1) {
+            return false;
+        }
+        int index = in.readerIndex();
+        if (in.getIntLE(index) != MAGIC) {
+            throw new DecompressionException("Invalid LZ4 frame magic");
+        }
+        int flg = in.getUnsignedByte(index + 4);
+        int bd = in.getUnsignedByte(index + 5);
+        if ((flg & FLG_VERSION_MASK) != FLG_VERSION) {
+            throw new DecompressionException("Unsupported LZ4 frame version");
+        }
+        if ((flg & FLG_BLOCK_INDEPENDENCE) == 0) {
+            throw new DecompressionException("Linked LZ4 blocks are not supported");
+        }
+        int headerSize = 4 + 1 + 1
+                         + ((flg & FLG_CONTENT_SIZE) != 0 ? 8 : 0)
+                         + ((flg & FLG_DICT_ID) != 0 ? 4 : 0)
+                         + 1;
+        if (in.readableBytes() < headerSize) {
+            return false;
+        }
+        blockChecksum = (flg & FLG_BLOCK_CHECKSUM) != 0;
+        contentChecksum = (flg & FLG_CONTENT_CHECKSUM) != 0;
+        // 64 KiB (4) to 4 MiB (7)
+        maxBlockSize = 1 << (2 * ((bd >> 4) & 0x07) + 8);
+        in.skipBytes(headerSize);
+        return true;
+    }
+
+    private ByteBuf decompressBlock(ChannelHandlerContext ctx, ByteBuf in, int index, int length) {
+        ByteBuf dst = ctx.alloc().buffer(maxBlockSize);
+        try {
+            ByteBuffer src = in.nioBuffer(index, length);
+            int decompressed = decompressor.decompress(
+                    src, 0, length, dst.nioBuffer(0, maxBlockSize), 0, maxBlockSize);
+            dst.writerIndex(decompressed);
+            return dst;
+        } catch (LZ4Exception e) {
+            dst.release();
+            throw new DecompressionException(e);
+        }
+    }
+}
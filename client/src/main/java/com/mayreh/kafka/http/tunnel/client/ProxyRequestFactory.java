@@ -0,0 +1,61 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeadersFactory;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
+
+/**
+ * Builds HTTP requests to the tunnel server's proxy endpoint for a single Kafka connection.
+ * <p>
+ * Header values are computed once per Kafka connection, so building a request only allocates
+ * the request object and its header map.
+ */
+final class ProxyRequestFactory {
+    static final AsciiString SESSION_ID_HEADER = AsciiString.cached("x-kafka-tunnel-session-id");
+    private static final String PROXY_PATH = "/proxy";
+    // All header names and values are constructed by us, so no need to validate
+    private static final DefaultHttpHeadersFactory HEADERS_FACTORY =
+            DefaultHttpHeadersFactory.headersFactory().withValidation(false);
+
+    private final AsciiString host;
+    private final AsciiString sessionId;
+
+    /**
+     * sessionId identifies the Kafka connection on the server, since HTTP connections may be shared
+     * by multiple Kafka connections (i.e. HTTP/2, or proxies and load balancers pooling connections)
+     */
+    ProxyRequestFactory(InetSocketAddress brokerAddress, String sessionId) {
+        // Use getHostString() instead of getHostName() to avoid reverse lookup
+        host = new AsciiString(brokerAddress.getHostString() + ':' + brokerAddress.getPort());
+        this.sessionId = new AsciiString(sessionId);
+    }
+
+    /**
+     * Build a request which carries the Kafka request.
+     * The ownership of the buffer is transferred to the returned request.
+     */
+    FullHttpRequest newRequest(ByteBuf kafkaRequest) {
+        HttpHeaders headers = HEADERS_FACTORY.newHeaders();
+        headers.add(HttpHeaderNames.HOST, host);
+        headers.addInt(HttpHeaderNames.CONTENT_LENGTH, kafkaRequest.readableBytes());
+        headers.add(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+        headers.add(SESSION_ID_HEADER, sessionId);
+        return new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1,
+                HttpMethod.POST,
+                PROXY_PATH,
+                kafkaRequest,
+                headers,
+                EmptyHttpHeaders.INSTANCE);
+    }
+}
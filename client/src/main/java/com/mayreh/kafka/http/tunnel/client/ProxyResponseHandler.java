@@ -0,0 +1,84 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Handles HTTP responses from the tunnel server's proxy endpoint.
+ * <p>
+ * Works with both aggregated responses (i.e. placed after {@link io.netty.handler.codec.http.HttpObjectAggregator})
+ * and streamed responses, where the content is notified chunk by chunk as it arrives.
+ */
+@RequiredArgsConstructor
+class ProxyResponseHandler extends SimpleChannelInboundHandler<HttpObject> {
+    interface Listener {
+        /**
+         * Called when (a part of) the Kafka response arrives.
+         * The buffer is released after the method returns so the listener must retain it if necessary.
+         */
+        void onResponse(ByteBuf response);
+
+        /**
+         * Called when the entire response is received
+         */
+        default void onResponseComplete() {}
+
+        void onError(Throwable cause);
+
+        /**
+         * Called when the connection (or the stream) is closed, which is notified regardless of whether
+         * the responses are received entirely. Fails by default, for the case it's closed without a response
+         */
+        default void onClosed() {
+            onError(new ClosedChannelException());
+        }
+    }
+
+    private final Listener listener;
+    // Whether the response currently being received has non-successful status
+    private boolean failed;
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            failed = response.status().code() != 200;
+            if (failed) {
+                listener.onError(new IOException("Invalid status: " + response.status()));
+            }
+        }
+        if (failed) {
+            return;
+        }
+        if (msg instanceof HttpContent) {
+            ByteBuf content = ((HttpContent) msg).content();
+            if (content.isReadable()) {
+                listener.onResponse(content);
+            }
+        }
+        if (msg instanceof LastHttpContent) {
+            listener.onResponseComplete();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        listener.onClosed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        listener.onError(cause);
+        ctx.close();
+    }
+}
@@ -0,0 +1,75 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.channel.EventLoop;
+
+/**
+ * Bounds the bytes of responses which are received from the tunnel but not read by Kafka yet,
+ * over all channels registered to a {@link TunnelingSelector}.
+ * <p>
+ * Once the budget is exceeded, channels receiving further responses stop reading from the tunnel
+ * (i.e. turn off Netty's autoRead) until Kafka reads enough to go below the budget again.
+ * Bytes already read from the socket are still buffered, so the budget is a soft limit.
+ * <p>
+ * Responses are received on the selector's event loop, so pausing and resuming are done only on the loop.
+ */
+class ReadBudget {
+    private final long maxBytes;
+    private final EventLoop eventLoop;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+    // Accessed only from the event loop
+    private final List<TunnelingSocketChannel> paused = new ArrayList<>();
+    private volatile boolean hasPaused;
+
+    ReadBudget(long maxBytes, EventLoop eventLoop) {
+        this.maxBytes = maxBytes;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Called from the event loop when the channel buffers received bytes
+     */
+    void acquire(TunnelingSocketChannel channel, int bytes) {
+        if (bufferedBytes.addAndGet(bytes) > maxBytes && !paused.contains(channel)) {
+            channel.setAutoRead(false);
+            paused.add(channel);
+            hasPaused = true;
+            // Kafka may have read everything before observing hasPaused
+            if (bufferedBytes.get() <= maxBytes) {
+                resume();
+            }
+        }
+    }
+
+    /**
+     * Called when buffered bytes are read by Kafka or discarded
+     */
+    void release(int bytes) {
+        if (bufferedBytes.addAndGet(-bytes) <= maxBytes && hasPaused
+            && resumeScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::scheduledResume);
+        }
+    }
+
+    private void scheduledResume() {
+        resumeScheduled.set(false);
+        resume();
+    }
+
+    private void resume() {
+        // Other channels may have exceeded the budget again in the meantime
+        if (bufferedBytes.get() > maxBytes) {
+            return;
+        }
+        for (TunnelingSocketChannel channel : paused) {
+            channel.setAutoRead(true);
+        }
+        paused.clear();
+        hasPaused = false;
+    }
+}
@@ -0,0 +1,65 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunnel metrics of an API key of a broker
+ */
+final class RequestMetrics implements RequestMetricsMXBean {
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LatencyHistogram roundTripTime = new LatencyHistogram();
+    // Whether the MBean is registered by this class loader
+    volatile boolean registered;
+
+    void recordRequest(int bytes) {
+        requestCount.increment();
+        requestBytes.add(bytes);
+    }
+
+    void recordResponse(int bytes, long roundTripNanos) {
+        responseBytes.add(bytes);
+        roundTripTime.record(roundTripNanos);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public double getRoundTripTimeAvgMs() {
+        return roundTripTime.averageMillis();
+    }
+
+    @Override
+    public double getRoundTripTimeMaxMs() {
+        return roundTripTime.maxMillis();
+    }
+
+    @Override
+    public double getRoundTripTime50thPercentileMs() {
+        return roundTripTime.percentileMillis(0.5);
+    }
+
+    @Override
+    public double getRoundTripTime99thPercentileMs() {
+        return roundTripTime.percentileMillis(0.99);
+    }
+
+    @Override
+    public double getRoundTripTime999thPercentileMs() {
+        return roundTripTime.percentileMillis(0.999);
+    }
+}
@@ -0,0 +1,26 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+/**
+ * Tunnel metrics per broker and API key, registered as
+ * {@code com.mayreh.kafka.http.tunnel:type=RequestMetrics,broker="host:port",apiKey=N}
+ * <p>
+ * Round-trip time is measured from when Kafka writes the request to the channel
+ * until the response is entirely received from the tunnel.
+ */
+public interface RequestMetricsMXBean {
+    long getRequestCount();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    double getRoundTripTimeAvgMs();
+
+    double getRoundTripTimeMaxMs();
+
+    double getRoundTripTime50thPercentileMs();
+
+    double getRoundTripTime99thPercentileMs();
+
+    double getRoundTripTime999thPercentileMs();
+}
@@ -0,0 +1,79 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Process-wide {@link EventLoopGroup} which performs I/O of all {@link TunnelingSelector}s.
+ * <p>
+ * Each selector acquires an {@link EventLoop} in round-robin manner and all of its channels are bound to the loop,
+ * so the number of I/O threads is bounded regardless of the number of Kafka clients.
+ * The group is reference-counted by the selectors and shut down once no selector is open for a grace period,
+ * so that clients which are created and closed repeatedly don't rebuild the threads every time.
+ * <p>
+ * The number of threads can be configured by the system property {@code kafka.http.tunnel.event.loop.threads},
+ * and the grace period by {@code kafka.http.tunnel.event.loop.shutdown.grace.ms}.
+ */
+@Slf4j
+final class SharedEventLoopGroup {
+    static final String EVENT_LOOP_THREADS_PROPERTY = "kafka.http.tunnel.event.loop.threads";
+    static final String SHUTDOWN_GRACE_MS_PROPERTY = "kafka.http.tunnel.event.loop.shutdown.grace.ms";
+    private static final long DEFAULT_SHUTDOWN_GRACE_MS = 60_000L;
+
+    private static EventLoopGroup group;
+    private static int refCount;
+    // Shutdown scheduled when the last selector is closed, which is cancelled if a selector acquires again
+    private static ScheduledFuture<?> pendingShutdown;
+
+    private SharedEventLoopGroup() {}
+
+    static synchronized EventLoop acquire(SelectorProvider defaultProvider) {
+        if (group == null) {
+            int threads = Integer.getInteger(
+                    EVENT_LOOP_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+            log.debug("Creating shared event loop group with {} threads using {}", threads, IoTransport.current());
+            group = IoTransport.current().newEventLoopGroup(
+                    threads, new DefaultThreadFactory("kafka-tunnel-io", true), defaultProvider);
+        }
+        if (pendingShutdown != null) {
+            pendingShutdown.cancel(false);
+            pendingShutdown = null;
+        }
+        refCount++;
+        return group.next();
+    }
+
+    static synchronized void release() {
+        if (--refCount == 0) {
+            long graceMs = Long.getLong(SHUTDOWN_GRACE_MS_PROPERTY, DEFAULT_SHUTDOWN_GRACE_MS);
+            if (graceMs <= 0) {
+                shutdown();
+            } else {
+                EventLoopGroup idleGroup = group;
+                // Threads are daemon, so they don't keep the JVM alive during the grace period
+                pendingShutdown = idleGroup.schedule(
+                        () -> shutdownIfIdle(idleGroup), graceMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static synchronized void shutdownIfIdle(EventLoopGroup idleGroup) {
+        // Cancelling the shutdown may race with its execution, so check that nobody acquired in the meantime
+        if (group == idleGroup && refCount == 0) {
+            shutdown();
+        }
+    }
+
+    private static void shutdown() {
+        log.debug("Shutting down shared event loop group");
+        group.shutdownGracefully();
+        group = null;
+        pendingShutdown = null;
+    }
+}
@@ -0,0 +1,183 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.mayreh.kafka.http.tunnel.client.TunnelingConfig.Protocol;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import lombok.Value;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates {@link SslHandler}s for connections to the tunnel server.
+ * <p>
+ * {@link SslContext} is built lazily once per TLS configuration and shared by all selectors in the JVM,
+ * so the TLS session cache is shared as well. Since handlers are created with the server's host and port,
+ * reconnections resume the cached session (including TLS 1.3 session tickets) instead of a full handshake.
+ * OpenSSL (netty-tcnative) is used if it's on the classpath.
+ */
+@Slf4j
+final class SslHandlerFactory {
+    private static final String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+    private static final Map<ContextKey, SslContext> CONTEXTS = new HashMap<>();
+
+    private final SslContext context;
+    private final String host;
+    private final int port;
+    private final boolean verifyHostname;
+
+    @Value
+    @Accessors(fluent = true)
+    private static class ContextKey {
+        TlsConfig tlsConfig;
+        // ALPN is configured only for HTTP/2
+        boolean http2;
+    }
+
+    private SslHandlerFactory(SslContext context, String host, int port, boolean verifyHostname) {
+        this.context = context;
+        this.host = host;
+        this.port = port;
+        this.verifyHostname = verifyHostname;
+    }
+
+    static SslHandlerFactory of(TunnelingConfig config) throws IOException {
+        TlsConfig tlsConfig = config.tlsConfig();
+        SslContext context = sharedContext(new ContextKey(tlsConfig, config.protocol() == Protocol.HTTP2));
+        return new SslHandlerFactory(
+                context, config.endpointHost(), config.endpointPort(), !tlsConfig.insecure());
+    }
+
+    /**
+     * Add a new {@link SslHandler} to the pipeline, along with a handler to time the handshake
+     */
+    void addTo(ChannelPipeline pipeline) {
+        SslHandler handler = newHandler(pipeline.channel().alloc());
+        pipeline.addLast(new HandshakeTimer(handler), handler);
+    }
+
+    private SslHandler newHandler(ByteBufAllocator alloc) {
+        SslHandler handler = context.newHandler(alloc, host, port);
+        if (verifyHostname) {
+            SSLEngine engine = handler.engine();
+            SSLParameters params = engine.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(params);
+        }
+        return handler;
+    }
+
+    /**
+     * Records the time from the connection establishment to the TLS handshake completion,
+     * which {@link SslHandler} starts on channelActive on client side
+     */
+    private static class HandshakeTimer extends ChannelInboundHandlerAdapter {
+        private final SslHandler handler;
+
+        HandshakeTimer(SslHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            long start = System.nanoTime();
+            handler.handshakeFuture().addListener(future -> {
+                if (future.isSuccess()) {
+                    TunnelMetrics.instance().recordTlsHandshake(System.nanoTime() - start);
+                }
+            });
+            ctx.pipeline().remove(this);
+            super.channelActive(ctx);
+        }
+    }
+
+    private static synchronized SslContext sharedContext(ContextKey key) throws IOException {
+        SslContext context = CONTEXTS.get(key);
+        if (context == null) {
+            try {
+                context = newContext(key);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to initialize TLS context", e);
+            }
+            CONTEXTS.put(key, context);
+        }
+        return context;
+    }
+
+    private static SslContext newContext(ContextKey key) throws IOException, GeneralSecurityException {
+        TlsConfig tlsConfig = key.tlsConfig();
+        SslProvider provider = OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        log.debug("Building TLS context with {} for {}", provider, tlsConfig);
+        SslContextBuilder builder = SslContextBuilder
+                .forClient()
+                .sslProvider(provider)
+                .protocols(SslProvider.isTlsv13Supported(provider) ? PROTOCOLS : new String[] { "TLSv1.2" });
+
+        if (tlsConfig.insecure()) {
+            builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        } else if (tlsConfig.trustStoreLocation() != null) {
+            TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(loadKeyStore(tlsConfig.trustStoreLocation(),
+                                                  tlsConfig.trustStoreType(),
+                                                  tlsConfig.trustStorePassword()));
+            builder.trustManager(trustManagerFactory);
+        }
+        if (tlsConfig.keyStoreLocation() != null) {
+            KeyManagerFactory keyManagerFactory =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            String keyPassword = tlsConfig.keyPassword();
+            keyManagerFactory.init(loadKeyStore(tlsConfig.keyStoreLocation(),
+                                                tlsConfig.keyStoreType(),
+                                                tlsConfig.keyStorePassword()),
+                                   keyPassword != null ? keyPassword.toCharArray() : null);
+            builder.keyManager(keyManagerFactory);
+        }
+        if (key.http2()) {
+            builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                   .applicationProtocolConfig(new ApplicationProtocolConfig(
+                           ApplicationProtocolConfig.Protocol.ALPN,
+                           SelectorFailureBehavior.NO_ADVERTISE,
+                           SelectedListenerFailureBehavior.ACCEPT,
+                           ApplicationProtocolNames.HTTP_2));
+        }
+        return builder.build();
+    }
+
+    private static KeyStore loadKeyStore(String location, String type, String password)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = Files.newInputStream(Paths.get(location))) {
+            keyStore.load(in, password != null ? password.toCharArray() : null);
+        }
+        return keyStore;
+    }
+}
@@ -0,0 +1,57 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import lombok.ToString;
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * TLS configurations for connections to the tunnel server, which are read from Java system properties.
+ * <p>
+ * If no trust store is configured, the JVM's default trust store is used.
+ */
+@Value
+@Accessors(fluent = true)
+public class TlsConfig {
+    static final String TLS_INSECURE_PROPERTY = "kafka.http.tunnel.tls.insecure";
+    static final String TLS_TRUSTSTORE_LOCATION_PROPERTY = "kafka.http.tunnel.tls.truststore.location";
+    static final String TLS_TRUSTSTORE_PASSWORD_PROPERTY = "kafka.http.tunnel.tls.truststore.password";
+    static final String TLS_TRUSTSTORE_TYPE_PROPERTY = "kafka.http.tunnel.tls.truststore.type";
+    static final String TLS_KEYSTORE_LOCATION_PROPERTY = "kafka.http.tunnel.tls.keystore.location";
+    static final String TLS_KEYSTORE_PASSWORD_PROPERTY = "kafka.http.tunnel.tls.keystore.password";
+    static final String TLS_KEYSTORE_TYPE_PROPERTY = "kafka.http.tunnel.tls.keystore.type";
+    static final String TLS_KEY_PASSWORD_PROPERTY = "kafka.http.tunnel.tls.key.password";
+
+    /**
+     * If true, the server certificate is not verified at all. Should be used only for testing
+     */
+    boolean insecure;
+    String trustStoreLocation;
+    @ToString.Exclude
+    String trustStorePassword;
+    String trustStoreType;
+    /**
+     * Key store for client authentication. Null if the client doesn't authenticate itself
+     */
+    String keyStoreLocation;
+    @ToString.Exclude
+    String keyStorePassword;
+    String keyStoreType;
+    /**
+     * Password of the key in the key store. Defaults to the key store password
+     */
+    @ToString.Exclude
+    String keyPassword;
+
+    static TlsConfig fromSystemProperties() {
+        String keyStorePassword = System.getProperty(TLS_KEYSTORE_PASSWORD_PROPERTY);
+        return new TlsConfig(
+                Boolean.parseBoolean(System.getProperty(TLS_INSECURE_PROPERTY, "false")),
+                System.getProperty(TLS_TRUSTSTORE_LOCATION_PROPERTY),
+                System.getProperty(TLS_TRUSTSTORE_PASSWORD_PROPERTY),
+                System.getProperty(TLS_TRUSTSTORE_TYPE_PROPERTY, "PKCS12"),
+                System.getProperty(TLS_KEYSTORE_LOCATION_PROPERTY),
+                keyStorePassword,
+                System.getProperty(TLS_KEYSTORE_TYPE_PROPERTY, "PKCS12"),
+                System.getProperty(TLS_KEY_PASSWORD_PROPERTY, keyStorePassword));
+    }
+}
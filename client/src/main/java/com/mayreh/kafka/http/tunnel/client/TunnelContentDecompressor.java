@@ -0,0 +1,26 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+
+/**
+ * {@link HttpContentDecompressor} which also decodes zstd and lz4 (frame format) content.
+ * <p>
+ * zstd and lz4 content is decoded incrementally as each chunk arrives, same as gzip,
+ * so a compressed streamed response is handed to Kafka without waiting for the entire content.
+ */
+class TunnelContentDecompressor extends HttpContentDecompressor {
+    @Override
+    protected EmbeddedChannel newContentDecoder(String contentEncoding) throws Exception {
+        Compression compression = Compression.of(contentEncoding);
+        ChannelHandler decoder = compression != null ? compression.newStreamDecoder() : null;
+        if (decoder != null) {
+            return new EmbeddedChannel(ctx.channel().id(),
+                                       ctx.channel().metadata().hasDisconnect(),
+                                       ctx.channel().config(),
+                                       decoder);
+        }
+        return super.newContentDecoder(contentEncoding);
+    }
+}
@@ -0,0 +1,176 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Process-wide registry of client-side tunnel metrics, which are published as JMX MBeans
+ * under the {@code com.mayreh.kafka.http.tunnel} domain and notified to {@link TunnelMetricsListener}s.
+ * <p>
+ * MBeans of each broker (and API key) are registered on first use and aggregate all Kafka clients in the JVM.
+ * They are unregistered once all connections to the broker are closed, so that brokers which left the cluster
+ * (or clients which were closed) don't leave MBeans behind.
+ * Recording is done through {@link LongAdder}s and {@link LatencyHistogram}s so it never allocates.
+ */
+@Slf4j
+final class TunnelMetrics implements TunnelMetricsMXBean {
+    static final String METRICS_LISTENERS_PROPERTY = "kafka.http.tunnel.metrics.listeners";
+    static final String JMX_DOMAIN = "com.mayreh.kafka.http.tunnel";
+
+    private static class Holder {
+        private static final TunnelMetrics INSTANCE = create();
+    }
+
+    private final TunnelMetricsListener[] listeners;
+    private final ConcurrentMap<InetSocketAddress, BrokerMetrics> brokers = new ConcurrentHashMap<>();
+    private final LongAdder selects = new LongAdder();
+    private final LongAdder selectWakeups = new LongAdder();
+    private final LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+
+    private TunnelMetrics(TunnelMetricsListener[] listeners) {
+        this.listeners = listeners;
+    }
+
+    static TunnelMetrics instance() {
+        return Holder.INSTANCE;
+    }
+
+    TunnelMetricsListener[] listeners() {
+        return listeners;
+    }
+
+    /**
+     * Returns the metrics of the broker, which is expected to be called once per connection
+     * and paired with {@link #release(BrokerMetrics)} when the connection is closed
+     */
+    BrokerMetrics broker(InetSocketAddress address) {
+        return brokers.compute(address, (key, metrics) -> {
+            if (metrics == null) {
+                metrics = new BrokerMetrics(this, key);
+                metrics.register();
+            }
+            metrics.connections++;
+            return metrics;
+        });
+    }
+
+    /**
+     * Unregister the MBeans of the broker once the last connection to it is released
+     */
+    void release(BrokerMetrics broker) {
+        brokers.computeIfPresent(broker.address(), (key, metrics) -> {
+            if (metrics != broker || --metrics.connections > 0) {
+                return metrics;
+            }
+            metrics.unregister();
+            return null;
+        });
+    }
+
+    void recordSelect() {
+        selects.increment();
+    }
+
+    void recordSelectWakeup() {
+        selectWakeups.increment();
+        for (TunnelMetricsListener listener : listeners) {
+            listener.onSelectWakeup();
+        }
+    }
+
+    void recordTlsHandshake(long nanos) {
+        tlsHandshakeTime.record(nanos);
+        for (TunnelMetricsListener listener : listeners) {
+            listener.onTlsHandshake(nanos);
+        }
+    }
+
+    void unregister(String properties) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(JMX_DOMAIN + ':' + properties));
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered by others
+        } catch (JMException e) {
+            log.warn("Failed to unregister MBean {}", properties, e);
+        }
+    }
+
+    /**
+     * Returns true if registered, or false if skipped or failed, in which case the MBean must not be unregistered
+     */
+    boolean register(String properties, Object mbean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    mbean, new ObjectName(JMX_DOMAIN + ':' + properties));
+            return true;
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered by another class loader (e.g. in application servers). Just skip
+            log.debug("MBean {} is already registered", properties);
+        } catch (JMException e) {
+            log.warn("Failed to register MBean {}", properties, e);
+        }
+        return false;
+    }
+
+    @Override
+    public long getSelects() {
+        return selects.sum();
+    }
+
+    @Override
+    public long getSelectWakeups() {
+        return selectWakeups.sum();
+    }
+
+    @Override
+    public long getTlsHandshakeCount() {
+        return tlsHandshakeTime.count();
+    }
+
+    @Override
+    public double getTlsHandshakeTimeAvgMs() {
+        return tlsHandshakeTime.averageMillis();
+    }
+
+    @Override
+    public double getTlsHandshakeTimeMaxMs() {
+        return tlsHandshakeTime.maxMillis();
+    }
+
+    @Override
+    public double getTlsHandshakeTime99thPercentileMs() {
+        return tlsHandshakeTime.percentileMillis(0.99);
+    }
+
+    private static TunnelMetrics create() {
+        List<TunnelMetricsListener> listeners = new ArrayList<>();
+        String classNames = System.getProperty(METRICS_LISTENERS_PROPERTY, "");
+        for (String className : classNames.split(",")) {
+            if (className.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                listeners.add((TunnelMetricsListener) Class.forName(className.trim())
+                                                           .getConstructor()
+                                                           .newInstance());
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                log.warn("Failed to instantiate metrics listener {}", className, e);
+            }
+        }
+        TunnelMetrics metrics = new TunnelMetrics(listeners.toArray(new TunnelMetricsListener[0]));
+        metrics.register("type=TunnelMetrics", metrics);
+        return metrics;
+    }
+}
@@ -0,0 +1,39 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Receives tunnel events on the client, to export metrics to an arbitrary monitoring system.
+ * <p>
+ * Implementations are configured by the system property {@code kafka.http.tunnel.metrics.listeners}
+ * as a comma-separated list of class names, and instantiated by their no-arg constructors.
+ * <p>
+ * Methods are called on I/O threads and Kafka's network threads, so they must be thread-safe and
+ * return quickly without blocking. Durations are in nanoseconds.
+ */
+public interface TunnelMetricsListener {
+    /**
+     * Called when a Kafka request is handed to the tunnel
+     */
+    default void onRequestSent(InetSocketAddress broker, int apiKey, int bytes) {}
+
+    /**
+     * Called when the response for a Kafka request is entirely received from the tunnel
+     */
+    default void onResponseReceived(InetSocketAddress broker, int apiKey, int bytes, long roundTripNanos) {}
+
+    /**
+     * Called when a Kafka connection through the tunnel is established
+     */
+    default void onConnected(InetSocketAddress broker, long connectNanos) {}
+
+    /**
+     * Called when a TLS handshake with the tunnel server completes
+     */
+    default void onTlsHandshake(long handshakeNanos) {}
+
+    /**
+     * Called when a blocking select is woken up
+     */
+    default void onSelectWakeup() {}
+}
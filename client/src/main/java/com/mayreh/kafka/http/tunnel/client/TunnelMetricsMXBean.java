@@ -0,0 +1,19 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+/**
+ * Process-wide tunnel metrics, registered as
+ * {@code com.mayreh.kafka.http.tunnel:type=TunnelMetrics}
+ */
+public interface TunnelMetricsMXBean {
+    long getSelects();
+
+    long getSelectWakeups();
+
+    long getTlsHandshakeCount();
+
+    double getTlsHandshakeTimeAvgMs();
+
+    double getTlsHandshakeTimeMaxMs();
+
+    double getTlsHandshakeTime99thPercentileMs();
+}
@@ -0,0 +1,36 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Carries Kafka requests of a single {@link TunnelingSocketChannel} to the tunnel server
+ * and delivers the responses back to the channel in the order of the requests.
+ * <p>
+ * Responses and errors are notified through {@link TunnelingSocketChannel#onResponse} and
+ * {@link TunnelingSocketChannel#onError}.
+ */
+interface TunnelTransport {
+    /**
+     * Start connecting to the tunnel server to send requests to the given broker.
+     * The returned future completes when the transport gets ready to send requests.
+     */
+    CompletableFuture<Void> connect(InetSocketAddress brokerAddress);
+
+    /**
+     * Send a single Kafka request, including the 4-bytes size prefix.
+     * The ownership of the buffer is transferred to the transport.
+     */
+    void send(ByteBuf request);
+
+    boolean isActive();
+
+    /**
+     * Stop or resume reading responses from the tunnel server. Called on the selector's event loop.
+     */
+    void setAutoRead(boolean autoRead);
+
+    void close();
+}
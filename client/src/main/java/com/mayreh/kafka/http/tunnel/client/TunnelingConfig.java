@@ -0,0 +1,161 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * Client-side tunneling configurations, which are read from Java system properties.
+ */
+@Value
+@Accessors(fluent = true)
+public class TunnelingConfig {
+    static final String TUNNEL_ENDPOINT_PROPERTY = "kafka.http.tunnel.endpoint";
+    static final String TUNNEL_TLS_PROPERTY = "kafka.http.tunnel.tls";
+    static final String TUNNEL_PROTOCOL_PROPERTY = "kafka.http.tunnel.protocol";
+    static final String TUNNEL_RESPONSE_STREAMING_PROPERTY = "kafka.http.tunnel.response.streaming";
+    static final String TUNNEL_COMPRESSION_PROPERTY = "kafka.http.tunnel.compression";
+    static final String TUNNEL_COMPRESSION_THRESHOLD_PROPERTY = "kafka.http.tunnel.compression.threshold.bytes";
+    static final String TUNNEL_POOL_SIZE_PROPERTY = "kafka.http.tunnel.pool.size";
+    static final String TUNNEL_POOL_MAX_IDLE_MS_PROPERTY = "kafka.http.tunnel.pool.max.idle.ms";
+    static final String TUNNEL_READ_BUFFER_MAX_BYTES_PROPERTY = "kafka.http.tunnel.read.buffer.max.bytes";
+    static final String TUNNEL_BATCH_PROPERTY = "kafka.http.tunnel.batch";
+    static final String TUNNEL_BATCH_LINGER_MS_PROPERTY = "kafka.http.tunnel.batch.linger.ms";
+    static final String TUNNEL_BATCH_MAX_BYTES_PROPERTY = "kafka.http.tunnel.batch.max.bytes";
+    static final String TUNNEL_REQUEST_TIMEOUT_MS_PROPERTY = "kafka.http.tunnel.request.timeout.ms";
+
+    private static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 1024;
+    // Shorter than the server's default idle timeout. Same as Kafka's default connections.max.idle.ms
+    private static final long DEFAULT_POOL_MAX_IDLE_MS = 9 * 60 * 1000;
+    private static final int DEFAULT_BATCH_LINGER_MS = 5;
+    private static final int DEFAULT_BATCH_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * The protocol to tunnel Kafka requests over
+     */
+    @RequiredArgsConstructor
+    public enum Protocol {
+        /**
+         * Each {@link TunnelingSocketChannel} opens its own HTTP/1.1 connection
+         * and Kafka requests are sent one HTTP request per Kafka request.
+         */
+        HTTP1("http1"),
+        /**
+         * All {@link TunnelingSocketChannel}s registered to the same {@link TunnelingSelector}
+         * share a single HTTP/2 connection and each Kafka request is sent as its own stream.
+         */
+        HTTP2("h2"),
+        /**
+         * Each {@link TunnelingSocketChannel} upgrades its own connection to WebSocket
+         * and Kafka requests and responses are exchanged as binary messages.
+         */
+        WEBSOCKET("websocket"),
+        ;
+
+        @Getter
+        @Accessors(fluent = true)
+        private final String id;
+
+        static Protocol of(String id) {
+            for (Protocol protocol : values()) {
+                if (protocol.id.equalsIgnoreCase(id)) {
+                    return protocol;
+                }
+            }
+            throw new IllegalArgumentException("Unknown tunnel protocol: " + id);
+        }
+    }
+
+    String endpointHost;
+    int endpointPort;
+    boolean tls;
+    TlsConfig tlsConfig;
+    Protocol protocol;
+    /**
+     * If true, response content is handed to Kafka as it arrives instead of after
+     * the entire HTTP response is received.
+     */
+    boolean streamingResponse;
+    /**
+     * Content codings to compress tunnel requests and responses with, in the order of preference.
+     * Empty if compression is disabled.
+     */
+    List<String> compressionTypes;
+    /**
+     * Requests smaller than this are sent uncompressed
+     */
+    int compressionThresholdBytes;
+    /**
+     * Number of connections to the tunnel server each selector establishes in advance. 0 disables pre-warming.
+     */
+    int poolSize;
+    /**
+     * Pooled connections not taken for this duration are replaced, before the server's idle timeout closes them.
+     * 0 disables replacing.
+     */
+    long poolMaxIdleMs;
+    /**
+     * Max bytes of responses each selector buffers until Kafka reads them. 0 means unlimited.
+     */
+    long readBufferMaxBytes;
+    /**
+     * If true, Kafka requests of all channels of a selector are coalesced into multi-frame envelopes.
+     * Applied only to {@link Protocol#HTTP2}.
+     */
+    boolean batch;
+    /**
+     * Max time to wait for more requests to join an envelope
+     */
+    int batchLingerMs;
+    /**
+     * An envelope is sent without waiting for the linger once it reaches this size
+     */
+    int batchMaxBytes;
+    /**
+     * Max time to wait for the response of a request, after which the channel fails with an I/O error.
+     * 0 disables the timeout.
+     */
+    long requestTimeoutMs;
+
+    /**
+     * The address of the tunnel server, which is resolved every time this method is called.
+     */
+    public InetSocketAddress endpoint() {
+        return new InetSocketAddress(endpointHost, endpointPort);
+    }
+
+    static TunnelingConfig fromSystemProperties() {
+        String tunnelEndpoint = System.getProperty(TUNNEL_ENDPOINT_PROPERTY);
+        if (tunnelEndpoint == null) {
+            throw new IllegalStateException(TUNNEL_ENDPOINT_PROPERTY + " is not set");
+        }
+        int separator = tunnelEndpoint.lastIndexOf(':');
+        List<String> compressionTypes = new ArrayList<>();
+        for (String type : System.getProperty(TUNNEL_COMPRESSION_PROPERTY, "").split(",")) {
+            if (!type.trim().isEmpty()) {
+                compressionTypes.add(type.trim());
+            }
+        }
+        return new TunnelingConfig(
+                tunnelEndpoint.substring(0, separator),
+                Integer.parseInt(tunnelEndpoint.substring(separator + 1)),
+                Boolean.parseBoolean(System.getProperty(TUNNEL_TLS_PROPERTY, "false")),
+                TlsConfig.fromSystemProperties(),
+                Protocol.of(System.getProperty(TUNNEL_PROTOCOL_PROPERTY, Protocol.HTTP1.id())),
+                Boolean.parseBoolean(System.getProperty(TUNNEL_RESPONSE_STREAMING_PROPERTY, "false")),
+                compressionTypes,
+                Integer.getInteger(TUNNEL_COMPRESSION_THRESHOLD_PROPERTY, DEFAULT_COMPRESSION_THRESHOLD_BYTES),
+                Integer.getInteger(TUNNEL_POOL_SIZE_PROPERTY, 0),
+                Long.getLong(TUNNEL_POOL_MAX_IDLE_MS_PROPERTY, DEFAULT_POOL_MAX_IDLE_MS),
+                Long.getLong(TUNNEL_READ_BUFFER_MAX_BYTES_PROPERTY, 0L),
+                Boolean.parseBoolean(System.getProperty(TUNNEL_BATCH_PROPERTY, "false")),
+                Integer.getInteger(TUNNEL_BATCH_LINGER_MS_PROPERTY, DEFAULT_BATCH_LINGER_MS),
+                Integer.getInteger(TUNNEL_BATCH_MAX_BYTES_PROPERTY, DEFAULT_BATCH_MAX_BYTES),
+                Long.getLong(TUNNEL_REQUEST_TIMEOUT_MS_PROPERTY, 0L));
+    }
+}
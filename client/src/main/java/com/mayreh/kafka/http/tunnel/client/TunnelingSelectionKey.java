@@ -4,14 +4,17 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.AbstractSelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import lombok.RequiredArgsConstructor;
 
 @RequiredArgsConstructor
 public class TunnelingSelectionKey extends AbstractSelectionKey {
-    private int interestOps = 0;
+    private volatile int interestOps = 0;
+    // Whether the key is in the selector's ready queue, to enqueue the key at most once
+    private final AtomicBoolean queued = new AtomicBoolean();
 
-    private final Selector selector;
+    private final TunnelingSelector selector;
     private final TunnelingSocketChannel channel;
 
     @Override
@@ -32,6 +35,8 @@ public class TunnelingSelectionKey extends AbstractSelectionKey {
     @Override
     public SelectionKey interestOps(int ops) {
         interestOps = ops;
+        // The channel may be ready for newly interested ops already (e.g. OP_WRITE is always ready)
+        enqueueIfReady();
         return this;
     }
 
@@ -39,4 +44,21 @@ public class TunnelingSelectionKey extends AbstractSelectionKey {
     public int readyOps() {
         return channel.readyOps() & interestOps;
     }
+
+    /**
+     * Add this key to the selector's ready queue if the channel is ready for any of interested ops.
+     * Called whenever the readiness of the channel or the interest set may have changed.
+     */
+    void enqueueIfReady() {
+        if (isValid() && readyOps() != 0 && queued.compareAndSet(false, true)) {
+            selector.enqueue(this);
+        }
+    }
+
+    /**
+     * Called by the selector when the key is taken from the ready queue
+     */
+    void dequeued() {
+        queued.set(false);
+    }
 }
@@ -1,59 +1,189 @@
 package com.mayreh.kafka.http.tunnel.client;
 
 import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
 import java.nio.channels.spi.AbstractSelector;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.handler.ssl.SslContext;
+import com.mayreh.kafka.http.tunnel.client.TunnelingConfig.Protocol;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * {@link Selector} implementation for {@link TunnelingSocketChannel}s.
+ * <p>
+ * Instead of scanning all registered keys, a key is pushed to the lock-free ready queue
+ * when its channel's readiness or its interest set changes, and selection drains the queue.
+ * So the cost of a selection is proportional to the number of ready keys.
+ */
 @Slf4j
 public class TunnelingSelector extends AbstractSelector {
-    private final ReentrantLock selectLock = new ReentrantLock();
-    private final Condition waiter = selectLock.newCondition();
-    private final Set<SelectionKey> keys = new HashSet<>();
+    private final Set<SelectionKey> keys = ConcurrentHashMap.newKeySet();
+    // Accessed only from the thread calling select methods, as java.nio's selected-key set
     private final Set<SelectionKey> selectedKeys = new HashSet<>();
-    private final EventLoopGroup eventLoopGroup;
-    private final SslContext sslContext;
+    private final List<TunnelingSelectionKey> lastSelectedKeys = new ArrayList<>();
+    // Keys which may have become ready since the last selection. Each key is enqueued at most once
+    private final Queue<TunnelingSelectionKey> readyQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile Thread selectingThread;
+    private final TunnelMetrics metrics = TunnelMetrics.instance();
+    // All channels registered to this selector are bound to the same loop
+    private final EventLoop eventLoop;
+    private final SelectorProvider defaultProvider;
+    private final TunnelingConfig config;
+    private final SslHandlerFactory sslHandlerFactory;
+    // Shared by all transports to reuse the negotiation result. Null if compression is disabled
+    private final CompressionHandler compressionHandler;
+    private final AtomicInteger channelIdCounter = new AtomicInteger();
+    // Lazily established on the first use in HTTP/2 mode, unless pre-warming is enabled
+    private Http2TunnelConnection http2Connection;
+    // Non-null only in HTTP/1.1 mode
+    private final Bootstrap http1Bootstrap;
+    // Non-null only in HTTP/1.1 mode with pre-warming enabled
+    private final Http1ConnectionPool http1ConnectionPool;
+    // Null if buffered responses are unlimited
+    private final ReadBudget readBudget;
+    // Non-null only in HTTP/2 mode with batching enabled
+    private final FrameBatcher frameBatcher;
 
     public TunnelingSelector(
             SelectorProvider provider,
             SelectorProvider defaultProvider,
-            SslContext sslContext) {
+            TunnelingConfig config,
+            SslHandlerFactory sslHandlerFactory) {
         super(provider);
-        this.sslContext = sslContext;
-        eventLoopGroup = new NioEventLoopGroup(1, (Executor) null, defaultProvider);
+        this.defaultProvider = defaultProvider;
+        this.config = config;
+        this.sslHandlerFactory = sslHandlerFactory;
+        compressionHandler = CompressionHandler.of(config);
+        eventLoop = SharedEventLoopGroup.acquire(defaultProvider);
+        readBudget = config.readBufferMaxBytes() > 0
+                     ? new ReadBudget(config.readBufferMaxBytes(), eventLoop) : null;
+        frameBatcher = config.batch() && config.protocol() == Protocol.HTTP2
+                       ? new FrameBatcher(this, eventLoop, config, compressionHandler) : null;
+        http1Bootstrap = config.protocol() == Protocol.HTTP1
+                         ? Http1Transport.newBootstrap(eventLoop, defaultProvider, sslHandlerFactory,
+                                                       config.streamingResponse(), compressionHandler)
+                         : null;
+        if (config.poolSize() > 0 && config.protocol() == Protocol.HTTP1) {
+            http1ConnectionPool = new Http1ConnectionPool(config, http1Bootstrap, eventLoop);
+        } else {
+            http1ConnectionPool = null;
+        }
+        if (config.poolSize() > 0 && config.protocol() == Protocol.HTTP2) {
+            // All channels share the single connection, so just establish it in advance
+            http2Connection();
+        }
     }
 
     @Override
     protected void implCloseSelector() throws IOException {
-        eventLoopGroup.shutdownGracefully().syncUninterruptibly();
+        wakeup();
+        if (http1ConnectionPool != null) {
+            http1ConnectionPool.close();
+        }
+        synchronized (this) {
+            if (http2Connection != null) {
+                http2Connection.close();
+            }
+        }
+        SharedEventLoopGroup.release();
+    }
+
+    TunnelTransport newTransport(TunnelingSocketChannel channel, SocketChannel javaChannel) {
+        switch (config.protocol()) {
+            case HTTP2:
+                if (frameBatcher != null) {
+                    return new BatchingTransport(
+                            channel, this, frameBatcher, channelIdCounter.incrementAndGet());
+                }
+                return new Http2Transport(
+                        channel,
+                        this,
+                        config.streamingResponse(),
+                        compressionHandler);
+            case WEBSOCKET:
+                return new WebSocketTransport(
+                        channel, javaChannel, config.endpoint(), sslHandlerFactory, eventLoop);
+            case HTTP1:
+            default:
+                Channel pooled = http1ConnectionPool != null ? http1ConnectionPool.poll() : null;
+                if (pooled != null) {
+                    return new Http1Transport(channel, pooled, config.endpoint(), http1Bootstrap);
+                }
+                return new Http1Transport(channel, javaChannel, config.endpoint(), http1Bootstrap);
+        }
+    }
+
+    /**
+     * Returns the budget of buffered responses shared by all channels registered to this selector,
+     * or null if unlimited
+     */
+    ReadBudget readBudget() {
+        return readBudget;
+    }
+
+    EventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    TunnelingConfig config() {
+        return config;
+    }
+
+    /**
+     * Returns the HTTP/2 connection shared by all channels registered to this selector.
+     * A new connection is established if there's no usable connection.
+     */
+    synchronized Http2TunnelConnection http2Connection() {
+        if (http2Connection == null || !http2Connection.isUsable()) {
+            http2Connection = new Http2TunnelConnection(
+                    config.endpoint(), sslHandlerFactory, eventLoop, defaultProvider);
+        }
+        return http2Connection;
     }
 
     @Override
     protected SelectionKey register(AbstractSelectableChannel ch, int ops, Object att) {
         TunnelingSocketChannel channel = (TunnelingSocketChannel) ch;
-        channel.register(sslContext, eventLoopGroup);
+        channel.register(this);
         TunnelingSelectionKey key = new TunnelingSelectionKey(this, channel);
-        key.interestOps(ops);
         key.attach(att);
         keys.add(key);
         channel.addSelectionKey(key);
+        key.interestOps(ops);
         return key;
     }
 
+    /**
+     * Add the key to the ready queue and wake up the selector.
+     * Called by {@link TunnelingSelectionKey} at most once until the key is dequeued.
+     */
+    void enqueue(TunnelingSelectionKey key) {
+        readyQueue.offer(key);
+        wakeup();
+    }
+
     @Override
     public Set<SelectionKey> keys() {
         return Collections.unmodifiableSet(keys);
@@ -66,56 +196,97 @@ public class TunnelingSelector extends AbstractSelector {
 
     @Override
     public int selectNow() throws IOException {
-        return select(0);
+        return doSelect(-1);
     }
 
     @Override
     public int select(long timeout) throws IOException {
-        selectLock.lock();
-        try {
-            keys.removeAll(cancelledKeys());
-            selectedKeys.clear();
-            for (SelectionKey key : keys) {
-                TunnelingSelectionKey tunnelingKey = (TunnelingSelectionKey) key;
-                int readyOps = tunnelingKey.readyOps();
-                if (readyOps != 0) {
-                    selectedKeys.add(key);
-                }
-            }
-            if (!selectedKeys.isEmpty()) {
-                return selectedKeys.size();
-            }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        return doSelect(timeout == 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(timeout));
+    }
 
-            waiter.await(timeout, TimeUnit.MILLISECONDS);
+    @Override
+    public int select() throws IOException {
+        return doSelect(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param timeoutNanos negative for not blocking, {@link Long#MAX_VALUE} for blocking indefinitely
+     */
+    private int doSelect(long timeoutNanos) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedSelectorException();
+        }
+        metrics.recordSelect();
+        processCancelledKeys();
+        selectedKeys.clear();
+        // Selection is level-triggered, so keys selected last time must be checked again
+        // since they may be still ready (e.g. a response is not fully read yet)
+        for (TunnelingSelectionKey key : lastSelectedKeys) {
+            key.enqueueIfReady();
+        }
+        lastSelectedKeys.clear();
 
-            for (SelectionKey key : keys) {
-                TunnelingSelectionKey tunnelingKey = (TunnelingSelectionKey) key;
-                int readyOps = tunnelingKey.readyOps();
-                if (readyOps != 0) {
-                    selectedKeys.add(key);
+        drainReadyQueue();
+        if (selectedKeys.isEmpty() && timeoutNanos >= 0) {
+            selectingThread = Thread.currentThread();
+            try {
+                // Check after publishing selectingThread so that concurrent wakeup() never gets lost
+                if (!wakeupPending.get() && readyQueue.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                    if (timeoutNanos == Long.MAX_VALUE) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, timeoutNanos);
+                    }
                 }
+            } finally {
+                selectingThread = null;
             }
-            return selectedKeys.size();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return 0;
-        } finally {
-            selectLock.unlock();
+            drainReadyQueue();
+        }
+        // Wakeups requested until here are satisfied by this selection
+        wakeupPending.set(false);
+        for (SelectionKey key : selectedKeys) {
+            lastSelectedKeys.add((TunnelingSelectionKey) key);
         }
+        return selectedKeys.size();
     }
 
-    @Override
-    public int select() throws IOException {
-        return select(Long.MAX_VALUE);
+    private void drainReadyQueue() {
+        TunnelingSelectionKey key;
+        while ((key = readyQueue.poll()) != null) {
+            key.dequeued();
+            // Readiness may have been changed since the key was enqueued
+            if (key.isValid() && key.readyOps() != 0) {
+                selectedKeys.add(key);
+            }
+        }
+    }
+
+    private void processCancelledKeys() {
+        Set<SelectionKey> cancelledKeys = cancelledKeys();
+        synchronized (cancelledKeys) {
+            for (SelectionKey key : cancelledKeys) {
+                keys.remove(key);
+                lastSelectedKeys.remove(key);
+                ((TunnelingSocketChannel) key.channel()).removeSelectionKey((TunnelingSelectionKey) key);
+                deregister((AbstractSelectionKey) key);
+            }
+            cancelledKeys.clear();
+        }
     }
 
     @Override
     public Selector wakeup() {
-        selectLock.lock();
-        try {
-            waiter.signalAll();
-        } finally {
-            selectLock.unlock();
+        // Coalesce wakeups: only the first one since the last selection unparks the selecting thread
+        if (wakeupPending.compareAndSet(false, true)) {
+            Thread thread = selectingThread;
+            if (thread != null) {
+                metrics.recordSelectWakeup();
+                LockSupport.unpark(thread);
+            }
         }
         return this;
     }
@@ -1,7 +1,6 @@
 package com.mayreh.kafka.http.tunnel.client;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.ProtocolFamily;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.Pipe;
@@ -11,8 +10,6 @@ import java.nio.channels.spi.AbstractSelector;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.function.BooleanSupplier;
 
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import sun.nio.ch.DefaultSelectorProvider;
 
 /**
@@ -23,24 +20,14 @@ import sun.nio.ch.DefaultSelectorProvider;
  * in the JVM by setting the system property {@code java.nio.channels.spi.SelectorProvider}.
  * <p>
  * Since multiple SelectorProvider cannot be configured in the JVM, this class only
- * provides tunneling capabilities when the calling class is {@code org.apache.kafka.common.network.Selector},
- * otherwise it delegates to the default {@link DefaultSelectorProvider}.
+ * provides tunneling capabilities when the calling class is {@code org.apache.kafka.common.network.Selector}
+ * (configurable through {@link CallerDetector}), otherwise it delegates to the default {@link DefaultSelectorProvider}.
  */
 public class TunnelingSelectorProvider extends SelectorProvider {
-    private static final String TUNNEL_ENDPOINT_PROPERTY = "kafka.http.tunnel.endpoint";
-    private static final String TUNNEL_TLS_PROPERTY = "kafka.http.tunnel.tls";
     private final SelectorProvider defaultProvider = DefaultSelectorProvider.create();
     private static volatile BooleanSupplier shouldEnableTunneling;
     static {
-        shouldEnableTunneling = () -> {
-            StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-            for (StackTraceElement element : stackTrace) {
-                if ("org.apache.kafka.common.network.Selector".equals(element.getClassName())) {
-                    return true;
-                }
-            }
-            return false;
-        };
+        shouldEnableTunneling = CallerDetector.fromSystemProperties();
     }
 
     @Override
@@ -63,14 +50,12 @@ public class TunnelingSelectorProvider extends SelectorProvider {
         if (!shouldEnableTunneling.getAsBoolean()) {
             return defaultProvider.openSelector();
         }
-        boolean ssl = Boolean.parseBoolean(System.getProperty(TUNNEL_TLS_PROPERTY, "false"));
+        TunnelingConfig config = TunnelingConfig.fromSystemProperties();
         return new TunnelingSelector(
                 this,
                 defaultProvider,
-                ssl ? SslContextBuilder
-                        .forClient()
-                        .trustManager(InsecureTrustManagerFactory.INSTANCE)
-                        .build() : null);
+                config,
+                config.tls() ? SslHandlerFactory.of(config) : null);
     }
 
     @Override
@@ -83,14 +68,7 @@ public class TunnelingSelectorProvider extends SelectorProvider {
         if (!shouldEnableTunneling.getAsBoolean()) {
             return defaultProvider.openSocketChannel();
         }
-
-        String tunnelEndpoint = System.getProperty(TUNNEL_ENDPOINT_PROPERTY);
-        String tunnelHost = tunnelEndpoint.split(":")[0];
-        int tunnelPort = Integer.parseInt(tunnelEndpoint.split(":")[1]);
-        return new TunnelingSocketChannel(
-                new InetSocketAddress(tunnelHost, tunnelPort),
-                this,
-                defaultProvider);
+        return new TunnelingSocketChannel(this, defaultProvider);
     }
 
     // Should be used only for testing
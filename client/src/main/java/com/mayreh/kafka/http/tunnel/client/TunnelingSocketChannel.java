@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketOption;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -12,122 +13,234 @@ import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpRequest;
-import io.netty.handler.codec.http.DefaultHttpHeadersFactory;
-import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.codec.http.HttpContentDecompressor;
-import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.ssl.SslContext;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.EventLoop;
 import lombok.Getter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
-public class TunnelingSocketChannel extends SocketChannel {
+public class TunnelingSocketChannel extends SocketChannel implements ProxyResponseHandler.Listener {
+    // Identifies the Kafka connection to the tunnel server regardless of the underlying HTTP connections,
+    // which may be shared with other clients by proxies or load balancers in between
+    @Getter
+    @Accessors(fluent = true)
+    private final String sessionId = UUID.randomUUID().toString();
     private InetSocketAddress brokerAddress;
-    private ByteBuffer writeBuffer;
+    // Kafka request frame being assembled, which is accessed only from Kafka's network thread.
+    // The 4-bytes size prefix is accumulated in sizePrefix first, then the frame is
+    // allocated from the pool and filled by bulk copies until it's complete.
+    private final ByteBuffer sizePrefix = ByteBuffer.allocate(4);
+    private ByteBuf pendingRequest;
     @Getter
     @Accessors(fluent = true)
     private volatile int readyOps;
     private final SocketChannel javaChannel;
-    private final Channel channel;
-    private final InetSocketAddress tunnelServer;
     private final Set<TunnelingSelectionKey> keys = ConcurrentHashMap.newKeySet();
-    private final Deque<ByteBuffer> readBuffer = new ArrayDeque<>();
-    // TODO: Handle errors
-    private final Deque<Throwable> errors = new ArrayDeque<>();
+    // Responses which are not read by Kafka yet. Each buffer is released once it's fully consumed
+    private final Deque<ByteBuf> readBuffer = new ArrayDeque<>();
+    // The first error of the transport, which is thrown to Kafka from finishConnect() or read()
+    // once buffered responses are consumed, so that Kafka closes the connection. Updated while holding ioLock
+    private volatile Throwable error;
+    // Deadlines of requests waiting for the response, in the order of requests. Accessed while holding ioLock
+    private final Deque<Long> responseDeadlines = new ArrayDeque<>();
+    // Locates response boundaries in the response stream to know which request is responded,
+    // and whether the stream ends in the middle of a response. Accessed while holding ioLock
+    private final ByteBuffer responseSizePrefix = ByteBuffer.allocate(4);
+    private int responseRemaining;
+    private boolean timeoutCheckScheduled;
     private final ReentrantLock ioLock = new ReentrantLock();
     private final CompletableFuture<Void> registrationFuture = new CompletableFuture<>();
+    private volatile TunnelTransport transport;
+    // Created on connect() once the broker is known
+    private volatile ChannelMetrics metrics;
+    // Null if the selector doesn't limit buffered responses
+    private volatile ReadBudget readBudget;
+    // 0 if requests don't time out
+    private volatile long requestTimeoutNanos;
+    private volatile EventLoop eventLoop;
 
     public TunnelingSocketChannel(
-            InetSocketAddress tunnelServer,
             SelectorProvider provider,
             SelectorProvider defaultProvider) throws IOException {
         super(provider);
-        this.tunnelServer = tunnelServer;
         // Since actual write operation to the socket is done by Netty and we just
         // store written-bytes in memory in this class, we always consider the channel writable
         readyOps |= SelectionKey.OP_WRITE;
+        // Kafka configures socket options through this channel.
+        // Depending on the transport, it may be used as the underlying socket of the tunnel connection.
         javaChannel = defaultProvider.openSocketChannel();
-        channel = new NioSocketChannel(javaChannel);
-    }
-
-    public void register(SslContext sslContext, EventLoopGroup eventLoopGroup) {
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap
-                .group(eventLoopGroup)
-                .channelFactory(() -> channel)
-                .handler(new ChannelInitializer<Channel>() {
-                    @Override
-                    protected void initChannel(Channel ch) throws Exception {
-                        if (sslContext != null) {
-                            ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
-                        }
-                        ch.pipeline().addLast(
-                                new HttpClientCodec(),
-                                new HttpContentDecompressor(),
-                                new HttpObjectAggregator(Integer.MAX_VALUE),
-                                new SimpleChannelInboundHandler<FullHttpResponse>() {
-                                    @Override
-                                    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg)
-                                            throws Exception {
-                                        if (msg.status().code() != 200) {
-                                            ioLock.lock();
-                                            try {
-                                                errors.addLast(
-                                                        new IOException("Invalid status: " + msg.status()));
-                                                return;
-                                            } finally {
-                                                ioLock.unlock();
-                                            }
-                                        }
-                                        ByteBuffer buffer = ByteBuffer.allocate(msg.content().readableBytes());
-                                        msg.content().readBytes(buffer);
-                                        ioLock.lock();
-                                        try {
-                                            buffer.flip();
-                                            readBuffer.add(buffer);
-                                            readyOps |= SelectionKey.OP_READ;
-                                            keys.forEach(key -> {
-                                                if ((key.interestOps() & SelectionKey.OP_READ) != 0) {
-                                                    key.selector().wakeup();
-                                                }
-                                            });
-                                        } finally {
-                                            ioLock.unlock();
-                                        }
-                                    }
-                                });
-                    }
-                });
-        bootstrap.register()
-                 // TODO: Handle registration failure
-                 .addListener(f -> registrationFuture.complete(null))
-                 .syncUninterruptibly();
+    }
+
+    public void register(TunnelingSelector selector) {
+        register(selector.newTransport(this, javaChannel),
+                 selector.eventLoop(),
+                 selector.readBudget(),
+                 selector.config().requestTimeoutMs());
+    }
+
+    /**
+     * Bind this channel to the transport, which is separated from {@link #register(TunnelingSelector)}
+     * to drive the channel without a tunnel server in tests and benchmarks
+     */
+    void register(TunnelTransport transport, EventLoop eventLoop, ReadBudget readBudget, long requestTimeoutMs) {
+        this.readBudget = readBudget;
+        requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(requestTimeoutMs);
+        this.eventLoop = eventLoop;
+        this.transport = transport;
+        registrationFuture.complete(null);
+    }
+
+    @Override
+    public void onResponse(ByteBuf response) {
+        if (!response.isReadable()) {
+            // The request doesn't have a response (i.e. acks=0 produce)
+            return;
+        }
+        ioLock.lock();
+        try {
+            // Nothing is appended after an error, since a response may have been cut off in the middle
+            if (!isOpen() || error != null) {
+                return;
+            }
+            metrics.recordResponseBytes(response);
+            trackResponses(response);
+            readBuffer.addLast(response.retain());
+            if (readBudget != null) {
+                readBudget.acquire(this, response.readableBytes());
+            }
+            // Update OP_READ only while holding ioLock, to not race with clearing it in read()
+            readyOps |= SelectionKey.OP_READ;
+        } finally {
+            ioLock.unlock();
+        }
+        notifyReadiness();
+    }
+
+    @Override
+    public void onError(Throwable cause) {
+        ioLock.lock();
+        try {
+            if (!isOpen() || error != null) {
+                return;
+            }
+            log.debug("Tunnel to {} failed", brokerAddress, cause);
+            error = cause;
+            if (responseRemaining > 0 || responseSizePrefix.position() > 0) {
+                // The rest of the response never arrives. Drop buffered responses so that Kafka fails on
+                // the next read instead of parsing a truncated response
+                releaseReadBuffer();
+            }
+            // Let Kafka's selector call finishConnect() or read() to notice the error
+            readyOps |= SelectionKey.OP_CONNECT | SelectionKey.OP_READ;
+        } finally {
+            ioLock.unlock();
+        }
+        notifyReadiness();
+    }
+
+    /**
+     * Throw the transport's error if any. Must be called while holding ioLock
+     */
+    private void throwIfFailed() throws IOException {
+        Throwable error = this.error;
+        if (error != null) {
+            throw error instanceof IOException ? (IOException) error : new IOException(error);
+        }
+    }
+
+    /**
+     * Advance the response boundaries by the content, and drop the deadlines of completed responses.
+     * Must be called while holding ioLock
+     */
+    private void trackResponses(ByteBuf content) {
+        int index = content.readerIndex();
+        int end = content.writerIndex();
+        while (index < end) {
+            if (responseRemaining == 0) {
+                while (index < end && responseSizePrefix.hasRemaining()) {
+                    responseSizePrefix.put(content.getByte(index++));
+                }
+                if (responseSizePrefix.hasRemaining()) {
+                    return;
+                }
+                responseRemaining = responseSizePrefix.getInt(0);
+                responseSizePrefix.clear();
+            }
+            int bytes = Math.min(end - index, responseRemaining);
+            index += bytes;
+            responseRemaining -= bytes;
+            if (responseRemaining == 0) {
+                responseDeadlines.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * Schedule checking the deadline of the oldest request unless scheduled already.
+     * Must be called while holding ioLock
+     */
+    private void scheduleTimeoutCheck(long deadlineNanos) {
+        if (!timeoutCheckScheduled) {
+            timeoutCheckScheduled = true;
+            eventLoop.schedule(this::checkTimeout, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void checkTimeout() {
+        ioLock.lock();
+        try {
+            timeoutCheckScheduled = false;
+            Long deadline = responseDeadlines.peekFirst();
+            if (deadline == null || !isOpen()) {
+                return;
+            }
+            if (deadline - System.nanoTime() > 0) {
+                scheduleTimeoutCheck(deadline);
+                return;
+            }
+        } finally {
+            ioLock.unlock();
+        }
+        onError(new SocketTimeoutException(String.format(
+                "No response from %s through the tunnel in %d ms",
+                brokerAddress, TimeUnit.NANOSECONDS.toMillis(requestTimeoutNanos))));
+    }
+
+    /**
+     * Called by {@link ReadBudget} on the event loop
+     */
+    void setAutoRead(boolean autoRead) {
+        TunnelTransport transport = this.transport;
+        if (transport != null) {
+            transport.setAutoRead(autoRead);
+        }
+    }
+
+    private void markReady(int ops) {
+        readyOps |= ops;
+        notifyReadiness();
+    }
+
+    private void notifyReadiness() {
+        keys.forEach(TunnelingSelectionKey::enqueueIfReady);
     }
 
     public void addSelectionKey(TunnelingSelectionKey key) {
         keys.add(key);
     }
 
+    void removeSelectionKey(TunnelingSelectionKey key) {
+        keys.remove(key);
+    }
+
     @Override
     public SocketChannel bind(SocketAddress local) throws IOException {
         return javaChannel.bind(local);
@@ -165,29 +278,31 @@ public class TunnelingSocketChannel extends SocketChannel {
 
     @Override
     public boolean isConnected() {
-        return channel.isActive();
+        TunnelTransport transport = this.transport;
+        return transport != null && transport.isActive();
     }
 
     @Override
     public boolean isConnectionPending() {
-        return channel.isOpen() && !channel.isActive();
+        return brokerAddress != null && isOpen() && !isConnected();
     }
 
     @Override
     public boolean connect(SocketAddress remote) throws IOException {
         brokerAddress = (InetSocketAddress) remote;
+        metrics = new ChannelMetrics(TunnelMetrics.instance().broker(brokerAddress));
+        long connectStart = System.nanoTime();
+        // Kafka calls connect() before registering the channel to the selector,
+        // so we start connecting after the transport is created on registration
         registrationFuture.whenComplete((v, t) -> {
-            ChannelFuture future = channel.connect(tunnelServer);
-            future.addListener(f -> keys.forEach(key -> {
-                if ((key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
-                    if (future.isSuccess()) {
-                        readyOps |= SelectionKey.OP_CONNECT;
-                        key.selector().wakeup();
-                    } else {
-                        errors.addLast(future.cause());
-                    }
+            transport.connect(brokerAddress).whenComplete((v2, t2) -> {
+                if (t2 == null) {
+                    metrics.recordConnect(System.nanoTime() - connectStart);
+                    markReady(SelectionKey.OP_CONNECT);
+                } else {
+                    onError(t2);
                 }
-            }));
+            });
         });
 
         return false;
@@ -195,7 +310,13 @@ public class TunnelingSocketChannel extends SocketChannel {
 
     @Override
     public boolean finishConnect() throws IOException {
-        return channel.isActive();
+        ioLock.lock();
+        try {
+            throwIfFailed();
+        } finally {
+            ioLock.unlock();
+        }
+        return isConnected();
     }
 
     @Override
@@ -207,19 +328,11 @@ public class TunnelingSocketChannel extends SocketChannel {
     public int read(ByteBuffer dst) throws IOException {
         ioLock.lock();
         try {
-            ByteBuffer buffer = readBuffer.peekFirst();
-            if (buffer == null) {
-                return 0;
-            }
-            int read = Math.min(buffer.remaining(), dst.remaining());
-            buffer.get(dst.array(), dst.position(), read);
-            dst.position(dst.position() + read);
-            if (!buffer.hasRemaining()) {
-                readBuffer.pollFirst();
-            }
-            if (readBuffer.isEmpty()) {
-                readyOps &= ~SelectionKey.OP_READ;
+            int read = readInto(dst);
+            if (read == 0 && readBuffer.isEmpty()) {
+                throwIfFailed();
             }
+            updateReadReadiness();
             return read;
         } finally {
             ioLock.unlock();
@@ -228,78 +341,135 @@ public class TunnelingSocketChannel extends SocketChannel {
 
     @Override
     public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        ioLock.lock();
+        try {
+            long totalRead = 0;
+            for (int i = offset; i < offset + length && !readBuffer.isEmpty(); i++) {
+                totalRead += readInto(dsts[i]);
+            }
+            if (totalRead == 0 && readBuffer.isEmpty()) {
+                throwIfFailed();
+            }
+            updateReadReadiness();
+            return totalRead;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Copy buffered responses into dst as much as possible.
+     * dst can be either a heap or direct buffer.
+     * Must be called while holding ioLock.
+     */
+    private int readInto(ByteBuffer dst) {
         int totalRead = 0;
-        for (int i = offset; i < offset + length; i++) {
-            ByteBuffer dst = dsts[i];
-            if (dst.hasRemaining()) {
-                int read = read(dst);
-                if (read > 0) {
-                    totalRead += read;
-                } else {
-                    break;
-                }
-            } else {
-                continue;
+        ByteBuf buf;
+        while (dst.hasRemaining() && (buf = readBuffer.peekFirst()) != null) {
+            int read = Math.min(buf.readableBytes(), dst.remaining());
+            int limit = dst.limit();
+            dst.limit(dst.position() + read);
+            buf.readBytes(dst);
+            dst.limit(limit);
+            totalRead += read;
+            if (!buf.isReadable()) {
+                readBuffer.pollFirst().release();
+            }
+        }
+        if (totalRead > 0) {
+            metrics.recordBytesDequeued(totalRead);
+            if (readBudget != null) {
+                readBudget.release(totalRead);
             }
         }
         return totalRead;
     }
 
+    /**
+     * Release all buffered responses. Must be called while holding ioLock
+     */
+    private void releaseReadBuffer() {
+        // null if closed before connecting
+        ChannelMetrics metrics = this.metrics;
+        ByteBuf buf;
+        while ((buf = readBuffer.pollFirst()) != null) {
+            if (metrics != null) {
+                metrics.recordBytesDequeued(buf.readableBytes());
+            }
+            if (readBudget != null) {
+                readBudget.release(buf.readableBytes());
+            }
+            buf.release();
+        }
+    }
+
+    private void updateReadReadiness() {
+        // Keep readable on error so that Kafka reads it
+        if (readBuffer.isEmpty() && error == null) {
+            readyOps &= ~SelectionKey.OP_READ;
+        }
+    }
+
     @Override
     public int write(ByteBuffer src) throws IOException {
-        int writtenBytes = 0;
-        if (writeBuffer == null) {
-            // As of current kafka-clients implementation, the first 4 bytes (for request size) are
-            // written in single call so we don't need to care about partial write. So safe to getInt() here.
-            int kafkaRequestSize = src.getInt();
-            writtenBytes += 4;
-            writeBuffer = ByteBuffer.allocate(4 + kafkaRequestSize);
-            writeBuffer.putInt(kafkaRequestSize);
-        }
-        while (src.hasRemaining() && writeBuffer.hasRemaining()) {
-            writeBuffer.put(src.get());
-            writtenBytes++;
+        if (error != null) {
+            ioLock.lock();
+            try {
+                throwIfFailed();
+            } finally {
+                ioLock.unlock();
+            }
         }
-        if (!writeBuffer.hasRemaining()) {
-            writeBuffer.flip();
-            int bytes = writeBuffer.remaining();
-            ByteBuf buf = channel.alloc().buffer(bytes);
-            buf.writeBytes(writeBuffer);
-            FullHttpRequest request = new DefaultFullHttpRequest(
-                    HttpVersion.HTTP_1_1,
-                    HttpMethod.POST,
-                    "/proxy",
-                    buf,
-                    DefaultHttpHeadersFactory
-                            .headersFactory()
-                            .newHeaders()
-                            .add(HttpHeaderNames.HOST, String.format("%s:%d", brokerAddress.getHostName(), brokerAddress.getPort()))
-                            .add(HttpHeaderNames.CONTENT_LENGTH, bytes)
-                            .add(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream"),
-                    DefaultHttpHeadersFactory
-                            .trailersFactory()
-                            .newEmptyHeaders());
-            channel.writeAndFlush(request);
-            writeBuffer = null;
+        int writtenBytes = 0;
+        while (src.hasRemaining()) {
+            if (pendingRequest == null) {
+                while (src.hasRemaining() && sizePrefix.hasRemaining()) {
+                    sizePrefix.put(src.get());
+                    writtenBytes++;
+                }
+                if (sizePrefix.hasRemaining()) {
+                    break;
+                }
+                int kafkaRequestSize = sizePrefix.getInt(0);
+                sizePrefix.clear();
+                pendingRequest = ByteBufAllocator.DEFAULT.buffer(4 + kafkaRequestSize, 4 + kafkaRequestSize);
+                pendingRequest.writeInt(kafkaRequestSize);
+            }
+
+            int bytes = Math.min(src.remaining(), pendingRequest.writableBytes());
+            int limit = src.limit();
+            src.limit(src.position() + bytes);
+            pendingRequest.writeBytes(src);
+            src.limit(limit);
+            writtenBytes += bytes;
+
+            if (!pendingRequest.isWritable()) {
+                ByteBuf request = pendingRequest;
+                pendingRequest = null;
+                metrics.recordRequest(request);
+                if (requestTimeoutNanos > 0 && KafkaProtocol.expectResponse(request)) {
+                    // Registered before sending, since the response may arrive before send() returns
+                    ioLock.lock();
+                    try {
+                        long deadline = System.nanoTime() + requestTimeoutNanos;
+                        responseDeadlines.addLast(deadline);
+                        scheduleTimeoutCheck(deadline);
+                    } finally {
+                        ioLock.unlock();
+                    }
+                }
+                transport.send(request);
+            }
         }
         return writtenBytes;
     }
 
     @Override
     public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
-        int totalWritten = 0;
+        long totalWritten = 0;
         for (int i = offset; i < offset + length; i++) {
-            ByteBuffer src = srcs[i];
-            if (src.hasRemaining()) {
-                int written = write(src);
-                if (written > 0) {
-                    totalWritten += written;
-                } else {
-                    break;
-                }
-            } else {
-                continue;
-            }
+            // write() always consumes the buffer entirely
+            totalWritten += write(srcs[i]);
         }
         return totalWritten;
     }
@@ -311,7 +481,25 @@ public class TunnelingSocketChannel extends SocketChannel {
 
     @Override
     protected void implCloseSelectableChannel() throws IOException {
-        channel.close().syncUninterruptibly();
+        TunnelTransport transport = this.transport;
+        if (transport != null) {
+            transport.close();
+        }
+        javaChannel.close();
+        ioLock.lock();
+        try {
+            releaseReadBuffer();
+        } finally {
+            ioLock.unlock();
+        }
+        ChannelMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (pendingRequest != null) {
+            pendingRequest.release();
+            pendingRequest = null;
+        }
     }
 
     @Override
@@ -0,0 +1,169 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolConfig;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler.ClientHandshakeStateEvent;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * {@link TunnelTransport} which upgrades a dedicated connection per {@link TunnelingSocketChannel}
+ * to WebSocket once, then exchanges Kafka frames as binary messages in both directions.
+ * <p>
+ * Each Kafka request is sent as a single binary message without per-request HTTP headers.
+ * Since the payload of binary messages from the server is a byte stream of size-prefixed Kafka responses,
+ * it's handed to the channel as is regardless of message boundaries.
+ */
+class WebSocketTransport implements TunnelTransport {
+    static final String WEBSOCKET_PATH = "/ws";
+    private static final String HANDLER_NAME = "websocket-tunnel";
+    // Kafka responses can be as large as fetch.max.bytes (or even larger), so we don't limit the frame size
+    private static final int MAX_FRAME_PAYLOAD_LENGTH = Integer.MAX_VALUE;
+
+    private final Channel channel;
+    private final ChannelFuture registerFuture;
+    private final InetSocketAddress tunnelServer;
+    private final boolean tls;
+    private final TunnelingSocketChannel owner;
+    private final CompletableFuture<Void> handshakeFuture = new CompletableFuture<>();
+
+    WebSocketTransport(
+            TunnelingSocketChannel owner,
+            SocketChannel javaChannel,
+            InetSocketAddress tunnelServer,
+            SslHandlerFactory sslHandlerFactory,
+            EventLoopGroup eventLoopGroup) {
+        this.owner = owner;
+        this.tunnelServer = tunnelServer;
+        tls = sslHandlerFactory != null;
+        channel = IoTransport.current().newSocketChannel(javaChannel);
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap
+                .group(eventLoopGroup)
+                .channelFactory(() -> channel)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        if (sslHandlerFactory != null) {
+                            sslHandlerFactory.addTo(ch.pipeline());
+                        }
+                        ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(8192));
+                        ch.pipeline().addLast(HANDLER_NAME, new FrameHandler());
+                    }
+                });
+        // Failure is notified on connect()
+        registerFuture = bootstrap.register();
+    }
+
+    @Override
+    public CompletableFuture<Void> connect(InetSocketAddress brokerAddress) {
+        // Same as the proxy endpoint, the broker is specified by the authority of the upgrade request
+        URI uri;
+        try {
+            uri = new URI(tls ? "wss" : "ws", null, brokerAddress.getHostString(), brokerAddress.getPort(),
+                          WEBSOCKET_PATH, null, null);
+        } catch (URISyntaxException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        WebSocketClientProtocolConfig config =
+                WebSocketClientProtocolConfig.newBuilder()
+                                             .webSocketUri(uri)
+                                             .customHeaders(new DefaultHttpHeaders().add(
+                                                     ProxyRequestFactory.SESSION_ID_HEADER, owner.sessionId()))
+                                             .generateOriginHeader(false)
+                                             .maxFramePayloadLength(MAX_FRAME_PAYLOAD_LENGTH)
+                                             .dropPongFrames(true)
+                                             .build();
+        registerFuture.addListener(rf -> {
+            if (!rf.isSuccess()) {
+                handshakeFuture.completeExceptionally(rf.cause());
+                return;
+            }
+            // The pipeline is initialized on registration.
+            // The handshake starts once the channel becomes active
+            channel.pipeline().addBefore(HANDLER_NAME, null, new WebSocketClientProtocolHandler(config));
+            channel.connect(tunnelServer).addListener(f -> {
+                if (!f.isSuccess()) {
+                    handshakeFuture.completeExceptionally(f.cause());
+                }
+            });
+        });
+        return handshakeFuture;
+    }
+
+    @Override
+    public void send(ByteBuf request) {
+        channel.writeAndFlush(new BinaryWebSocketFrame(request));
+    }
+
+    @Override
+    public void setAutoRead(boolean autoRead) {
+        channel.config().setAutoRead(autoRead);
+    }
+
+    @Override
+    public boolean isActive() {
+        return channel.isActive() && handshakeFuture.isDone() && !handshakeFuture.isCompletedExceptionally();
+    }
+
+    @Override
+    public void close() {
+        channel.close().syncUninterruptibly();
+    }
+
+    private class FrameHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws Exception {
+            if (frame instanceof BinaryWebSocketFrame || frame instanceof ContinuationWebSocketFrame) {
+                if (frame.content().isReadable()) {
+                    owner.onResponse(frame.content());
+                }
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+                handshakeFuture.complete(null);
+            } else if (evt == ClientHandshakeStateEvent.HANDSHAKE_TIMEOUT) {
+                handshakeFuture.completeExceptionally(new IOException("WebSocket handshake timed out"));
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            handshakeFuture.completeExceptionally(new ClosedChannelException());
+            // The server closes the session when the broker connection is closed
+            owner.onError(new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            handshakeFuture.completeExceptionally(cause);
+            owner.onError(cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+
+/**
+ * Decodes zstd content incrementally, so that the decompressed bytes are handed to Kafka as soon as
+ * each chunk of the response arrives.
+ * <p>
+ * Instantiated only through {@link Compression#newStreamDecoder()}, since zstd-jni may be missing.
+ */
+class ZstdStreamDecoder extends ByteToMessageDecoder {
+    private static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
+
+    private final ZstdDecompressCtx decompressCtx = new ZstdDecompressCtx();
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (!in.isReadable()) {
+            return;
+        }
+        // zstd-jni's streaming API takes direct buffers only
+        ByteBuf src = in;
+        if (!in.isDirect() || in.nioBufferCount() != 1) {
+            src = ctx.alloc().directBuffer(in.readableBytes());
+            src.writeBytes(in, in.readerIndex(), in.readableBytes());
+        }
+        try {
+            ByteBuffer srcBuffer = src.nioBuffer(src.readerIndex(), src.readableBytes());
+            boolean outputFull;
+            do {
+                int consumed = srcBuffer.position();
+                ByteBuf dst = ctx.alloc().directBuffer(OUTPUT_CHUNK_SIZE);
+                ByteBuffer dstBuffer = dst.nioBuffer(0, OUTPUT_CHUNK_SIZE);
+                try {
+                    decompressCtx.decompressDirectByteBufferStream(dstBuffer, srcBuffer);
+                } catch (ZstdException e) {
+                    dst.release();
+                    throw new DecompressionException(e);
+                }
+                dst.writerIndex(dstBuffer.position());
+                // The context may hold more output than the chunk even after consuming the entire input
+                outputFull = !dstBuffer.hasRemaining();
+                if (dst.isReadable()) {
+                    out.add(dst);
+                } else {
+                    dst.release();
+                    if (srcBuffer.position() == consumed) {
+                        break;
+                    }
+                }
+            } while (srcBuffer.hasRemaining() || outputFull);
+            in.skipBytes(srcBuffer.position());
+        } finally {
+            if (src != in) {
+                src.release();
+            }
+        }
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        decompressCtx.close();
+    }
+}
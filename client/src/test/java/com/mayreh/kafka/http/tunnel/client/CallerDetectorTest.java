@@ -0,0 +1,44 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+public class CallerDetectorTest {
+    private static class NestedCaller {
+        static boolean check(CallerDetector detector) {
+            return detector.getAsBoolean();
+        }
+    }
+
+    @Test
+    public void testImmediateCaller() {
+        CallerDetector detector = new CallerDetector(
+                Collections.singletonList(CallerDetectorTest.class.getName()), 16);
+
+        assertTrue(detector.getAsBoolean());
+        // Only the immediate caller is checked even if the configured class is deeper in the stack
+        assertFalse(NestedCaller.check(detector));
+    }
+
+    @Test
+    public void testPrefix() {
+        CallerDetector detector = new CallerDetector(
+                Collections.singletonList(CallerDetectorTest.class.getName() + '*'), 16);
+
+        assertTrue(detector.getAsBoolean());
+        assertTrue(NestedCaller.check(detector));
+    }
+
+    @Test
+    public void testMaxFrames() {
+        // The caller is beyond the limit
+        CallerDetector detector = new CallerDetector(
+                Collections.singletonList(CallerDetectorTest.class.getName()), 1);
+
+        assertFalse(detector.getAsBoolean());
+    }
+}
@@ -0,0 +1,102 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class ChannelMetricsTest {
+    private static final short API_KEY_FETCH = 1;
+    private static final short API_KEY_METADATA = 3;
+
+    private BrokerMetrics broker;
+    private ChannelMetrics metrics;
+
+    @BeforeEach
+    public void setUp() {
+        broker = mock(BrokerMetrics.class);
+        metrics = new ChannelMetrics(broker);
+    }
+
+    private static ByteBuf request(short apiKey) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeInt(2 + 2 + 4 + 2);
+        buf.writeShort(apiKey);
+        buf.writeShort(0);
+        buf.writeInt(1);
+        // null client_id
+        buf.writeShort(-1);
+        return buf;
+    }
+
+    private static ByteBuf response(int size) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeInt(size);
+        buf.writeZero(size);
+        return buf;
+    }
+
+    @Test
+    public void testResponsesInOneBuffer() {
+        metrics.recordRequest(request(API_KEY_FETCH));
+        metrics.recordRequest(request(API_KEY_METADATA));
+        metrics.recordResponseBytes(Unpooled.wrappedBuffer(response(10), response(20)));
+
+        verify(broker).recordResponseReceived(eq((int) API_KEY_FETCH), eq(4 + 10), anyLong());
+        verify(broker).recordResponseReceived(eq((int) API_KEY_METADATA), eq(4 + 20), anyLong());
+        verify(broker).recordBytesIn(4 + 10 + 4 + 20);
+    }
+
+    @Test
+    public void testResponseSplitAtEveryByte() {
+        metrics.recordRequest(request(API_KEY_FETCH));
+        ByteBuf response = response(300);
+        // Including the size prefix split over buffers
+        for (int i = 0; i < response.readableBytes() - 1; i++) {
+            metrics.recordResponseBytes(response.slice(i, 1));
+        }
+        verify(broker, never()).recordResponseReceived(anyInt(), anyInt(), anyLong());
+
+        metrics.recordResponseBytes(response.slice(response.readableBytes() - 1, 1));
+        verify(broker).recordResponseReceived(eq((int) API_KEY_FETCH), eq(4 + 300), anyLong());
+    }
+
+    @Test
+    public void testUnexpectedResponse() {
+        metrics.recordResponseBytes(response(10));
+        verify(broker, never()).recordResponseReceived(anyInt(), anyInt(), anyLong());
+    }
+
+    @Test
+    public void testRingBufferGrows() {
+        for (int i = 0; i < 20; i++) {
+            metrics.recordRequest(request(i % 2 == 0 ? API_KEY_FETCH : API_KEY_METADATA));
+        }
+        for (int i = 0; i < 20; i++) {
+            metrics.recordResponseBytes(response(i));
+        }
+        for (int i = 0; i < 20; i++) {
+            short apiKey = i % 2 == 0 ? API_KEY_FETCH : API_KEY_METADATA;
+            verify(broker).recordResponseReceived(eq((int) apiKey), eq(4 + i), anyLong());
+        }
+    }
+
+    @Test
+    public void testClose() {
+        metrics.recordRequest(request(API_KEY_FETCH));
+        metrics.recordRequest(request(API_KEY_FETCH));
+        metrics.recordResponseBytes(response(10));
+        metrics.close();
+
+        verify(broker).recordAbandoned(1);
+        verify(broker).release();
+    }
+}
@@ -0,0 +1,87 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.kafka.common.message.ProduceRequestData;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceDataCollection;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class KafkaProtocolTest {
+    private static ByteBuf produceRequest(short version, short acks, CompressionType compressionType) {
+        byte[] value = new byte[4096];
+        new Random(0).nextBytes(value);
+        MemoryRecords records = MemoryRecords.withRecords(compressionType, new SimpleRecord(value));
+        ProduceRequestData data = new ProduceRequestData()
+                .setAcks(acks)
+                .setTimeoutMs(30000)
+                .setTopicData(new TopicProduceDataCollection(Collections.singletonList(
+                        new TopicProduceData()
+                                .setName("topic")
+                                .setPartitionData(Collections.singletonList(
+                                        new PartitionProduceData().setIndex(0).setRecords(records))))
+                        .iterator()));
+        ProduceRequest request = ProduceRequest.forMagic(RecordBatch.CURRENT_MAGIC_VALUE, data).build(version);
+        ByteBuffer serialized = request.serializeWithHeader(
+                new RequestHeader(ApiKeys.PRODUCE, version, "client", 1));
+        ByteBuf buf = Unpooled.buffer(4 + serialized.remaining());
+        buf.writeInt(serialized.remaining());
+        buf.writeBytes(serialized);
+        return buf;
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 3, 8, 9 })
+    public void testHeader(short version) {
+        ByteBuf request = produceRequest(version, (short) 1, CompressionType.NONE);
+        assertEquals(KafkaProtocol.API_KEY_PRODUCE, KafkaProtocol.apiKey(request));
+        assertEquals(version, KafkaProtocol.apiVersion(request));
+        // Peeking never changes the reader index
+        assertEquals(0, request.readerIndex());
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 3, 8, 9 })
+    public void testExpectResponse(short version) {
+        assertTrue(KafkaProtocol.expectResponse(produceRequest(version, (short) 1, CompressionType.NONE)));
+        assertTrue(KafkaProtocol.expectResponse(produceRequest(version, (short) -1, CompressionType.NONE)));
+        assertFalse(KafkaProtocol.expectResponse(produceRequest(version, (short) 0, CompressionType.NONE)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 3, 8, 9 })
+    public void testCompressedProduceRequest(short version) {
+        assertTrue(KafkaProtocol.isCompressedProduceRequest(
+                produceRequest(version, (short) 1, CompressionType.GZIP)));
+        assertFalse(KafkaProtocol.isCompressedProduceRequest(
+                produceRequest(version, (short) 1, CompressionType.NONE)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 3, 9 })
+    public void testTruncatedRequest(short version) {
+        ByteBuf request = produceRequest(version, (short) 0, CompressionType.GZIP);
+        ByteBuf truncated = request.slice(0, 4 + 2 + 2 + 4);
+        // Falls back to the safe side
+        assertTrue(KafkaProtocol.expectResponse(truncated));
+        assertFalse(KafkaProtocol.isCompressedProduceRequest(truncated));
+    }
+}
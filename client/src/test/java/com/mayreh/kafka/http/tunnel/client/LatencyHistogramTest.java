@@ -0,0 +1,57 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.averageMillis());
+        assertEquals(0, histogram.maxMillis());
+        assertEquals(0, histogram.percentileMillis(0.99));
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = { 0, 1, 3, 4, 5, 7, 8, 1000, 1024, 1_000_000, 123_456_789, 1L << 40, Long.MAX_VALUE / 2 })
+    public void testBucketUpperBound(long nanos) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(nanos);
+
+        // The bucket's upper bound is within 25% above the value (with a margin for the conversion to millis)
+        double upperBoundNanos = histogram.percentileMillis(1.0) * 1_000_000;
+        assertTrue(upperBoundNanos >= nanos * (1 - 1e-9), "upper bound " + upperBoundNanos + " for " + nanos);
+        assertTrue(upperBoundNanos <= nanos * 1.25 + 1, "upper bound " + upperBoundNanos + " for " + nanos);
+    }
+
+    @Test
+    public void testNegativeValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // e.g. System.nanoTime() of another thread
+        histogram.record(-1);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.maxMillis());
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1_000_000);
+        }
+        histogram.record(100_000_000);
+
+        assertEquals(100, histogram.count());
+        assertEquals(1.99, histogram.averageMillis(), 0.0001);
+        assertEquals(100, histogram.maxMillis());
+        double p99 = histogram.percentileMillis(0.99);
+        assertTrue(p99 >= 1 && p99 <= 1.25, "p99: " + p99);
+        double p999 = histogram.percentileMillis(0.999);
+        assertTrue(p999 >= 100 && p999 <= 125, "p999: " + p999);
+    }
+}
@@ -0,0 +1,68 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.netty.channel.EventLoop;
+
+public class ReadBudgetTest {
+    private ReadBudget budget;
+    private TunnelingSocketChannel channel1;
+    private TunnelingSocketChannel channel2;
+
+    @BeforeEach
+    public void setUp() {
+        EventLoop eventLoop = mock(EventLoop.class);
+        // Runs the task immediately as if called on the loop
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(eventLoop).execute(any());
+        budget = new ReadBudget(100, eventLoop);
+        channel1 = mock(TunnelingSocketChannel.class);
+        channel2 = mock(TunnelingSocketChannel.class);
+    }
+
+    @Test
+    public void testWithinBudget() {
+        budget.acquire(channel1, 60);
+        budget.acquire(channel2, 40);
+        verify(channel1, never()).setAutoRead(false);
+        verify(channel2, never()).setAutoRead(false);
+    }
+
+    @Test
+    public void testPauseAndResume() {
+        budget.acquire(channel1, 80);
+        budget.acquire(channel2, 40);
+        verify(channel1, never()).setAutoRead(false);
+        // The channel receiving bytes over the budget is paused
+        verify(channel2).setAutoRead(false);
+
+        budget.acquire(channel2, 10);
+        budget.release(20);
+        // Still over the budget
+        verify(channel2, never()).setAutoRead(true);
+
+        budget.release(30);
+        verify(channel2).setAutoRead(true);
+    }
+
+    @Test
+    public void testResumeAll() {
+        budget.acquire(channel1, 120);
+        budget.acquire(channel2, 10);
+        verify(channel1).setAutoRead(false);
+        verify(channel2).setAutoRead(false);
+
+        budget.release(130);
+        verify(channel1).setAutoRead(true);
+        verify(channel2).setAutoRead(true);
+    }
+}
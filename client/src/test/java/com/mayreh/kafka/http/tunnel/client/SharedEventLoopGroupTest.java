@@ -0,0 +1,26 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.channels.spi.SelectorProvider;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.channel.EventLoop;
+
+public class SharedEventLoopGroupTest {
+    @Test
+    public void testGroupSurvivesWithinGracePeriod() {
+        EventLoop first = SharedEventLoopGroup.acquire(SelectorProvider.provider());
+        SharedEventLoopGroup.release();
+
+        EventLoop second = SharedEventLoopGroup.acquire(SelectorProvider.provider());
+        try {
+            assertSame(first.parent(), second.parent());
+            assertFalse(second.parent().isShuttingDown());
+        } finally {
+            SharedEventLoopGroup.release();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class StreamDecoderTest {
+    private static final int CHUNK_SIZE = 1000;
+
+    private static byte[] payload(int size) {
+        // Half random, half repeated so that both compressed and stored blocks appear
+        byte[] payload = new byte[size];
+        new Random(0).nextBytes(payload);
+        for (int i = size / 2; i < size; i++) {
+            payload[i] = (byte) (i % 7);
+        }
+        return payload;
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = Compression.class, names = { "ZSTD", "LZ4" })
+    public void testDecodeInChunks(Compression compression) throws IOException {
+        byte[] payload = payload(1024 * 1024);
+        ByteBuf compressed = compression.compress(Unpooled.wrappedBuffer(payload), ByteBufAllocator.DEFAULT);
+        EmbeddedChannel channel = new EmbeddedChannel(compression.newStreamDecoder());
+        ByteBuf decoded = Unpooled.buffer(payload.length);
+        try {
+            int half = compressed.readableBytes() / 2;
+            while (compressed.readerIndex() < half) {
+                channel.writeInbound(compressed.readRetainedSlice(Math.min(CHUNK_SIZE, compressed.readableBytes())));
+            }
+            readAll(channel, decoded);
+            // Decoded before the entire content arrives
+            assertTrue(decoded.isReadable());
+
+            while (compressed.isReadable()) {
+                channel.writeInbound(compressed.readRetainedSlice(Math.min(CHUNK_SIZE, compressed.readableBytes())));
+            }
+            channel.finish();
+            readAll(channel, decoded);
+            assertArrayEquals(payload, ByteBufUtil.getBytes(decoded));
+        } finally {
+            compressed.release();
+            decoded.release();
+        }
+    }
+
+    private static void readAll(EmbeddedChannel channel, ByteBuf dst) {
+        ByteBuf buf;
+        while ((buf = channel.readInbound()) != null) {
+            dst.writeBytes(buf);
+            buf.release();
+        }
+    }
+}
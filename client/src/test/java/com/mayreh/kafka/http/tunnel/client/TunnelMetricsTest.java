@@ -0,0 +1,49 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+public class TunnelMetricsTest {
+    private static final InetSocketAddress BROKER = InetSocketAddress.createUnresolved("metrics-test", 9092);
+
+    private static boolean registered(String properties) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        return server.isRegistered(new ObjectName(TunnelMetrics.JMX_DOMAIN + ':' + properties));
+    }
+
+    @Test
+    public void testUnregisterOnLastRelease() throws Exception {
+        TunnelMetrics metrics = TunnelMetrics.instance();
+        BrokerMetrics broker = metrics.broker(BROKER);
+        assertSame(broker, metrics.broker(BROKER));
+        broker.recordRequestSent(1, 100, true);
+        String brokerName = "type=BrokerMetrics,broker=\"metrics-test:9092\"";
+        String requestName = "type=RequestMetrics,broker=\"metrics-test:9092\",apiKey=1";
+        assertTrue(registered(brokerName));
+        assertTrue(registered(requestName));
+
+        broker.release();
+        assertTrue(registered(brokerName));
+
+        broker.release();
+        assertFalse(registered(brokerName));
+        assertFalse(registered(requestName));
+
+        // Registered again by a new connection
+        BrokerMetrics reconnected = metrics.broker(BROKER);
+        assertNotSame(broker, reconnected);
+        assertTrue(registered(brokerName));
+        reconnected.release();
+        assertFalse(registered(brokerName));
+    }
+}
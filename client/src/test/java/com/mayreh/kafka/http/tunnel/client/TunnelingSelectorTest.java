@@ -0,0 +1,158 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mayreh.kafka.http.tunnel.client.TunnelingConfig.Protocol;
+
+public class TunnelingSelectorTest {
+    private TunnelingSelector selector;
+    private final List<StubChannel> channels = new ArrayList<>();
+
+    /**
+     * Channel whose readiness is controlled by the test, without a transport
+     */
+    private static class StubChannel extends TunnelingSocketChannel {
+        private volatile int ready;
+        private volatile TunnelingSelectionKey key;
+
+        StubChannel() throws IOException {
+            super(SelectorProvider.provider(), SelectorProvider.provider());
+        }
+
+        @Override
+        public void register(TunnelingSelector selector) {
+            // noop
+        }
+
+        @Override
+        public void addSelectionKey(TunnelingSelectionKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public int readyOps() {
+            return ready;
+        }
+
+        void setReady(int ops) {
+            ready = ops;
+            key.enqueueIfReady();
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        TunnelingConfig config = new TunnelingConfig(
+                "localhost", 8080, false, null, Protocol.HTTP1, false, Collections.emptyList(),
+                1024, 0, 0L, 0L, false, 5, 1024 * 1024, 0L);
+        selector = new TunnelingSelector(SelectorProvider.provider(), SelectorProvider.provider(), config, null);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (StubChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+    }
+
+    private StubChannel register(int interestOps) throws IOException {
+        StubChannel channel = new StubChannel();
+        channels.add(channel);
+        channel.configureBlocking(false);
+        channel.register(selector, interestOps);
+        return channel;
+    }
+
+    @Test
+    public void testSelectReadyKeys() throws IOException {
+        StubChannel ready = register(SelectionKey.OP_READ);
+        StubChannel notReady = register(SelectionKey.OP_READ);
+        // Not interested
+        StubChannel writable = register(SelectionKey.OP_READ);
+        assertEquals(0, selector.selectNow());
+
+        ready.setReady(SelectionKey.OP_READ);
+        writable.setReady(SelectionKey.OP_WRITE);
+        assertEquals(1, selector.selectNow());
+        assertTrue(selector.selectedKeys().contains(ready.key));
+        assertFalse(selector.selectedKeys().contains(notReady.key));
+    }
+
+    @Test
+    public void testLevelTriggered() throws IOException {
+        StubChannel channel = register(SelectionKey.OP_READ);
+        channel.setReady(SelectionKey.OP_READ);
+        assertEquals(1, selector.selectNow());
+
+        // Selected again without a new notification while the channel is still ready
+        assertEquals(1, selector.selectNow());
+
+        channel.ready = 0;
+        assertEquals(0, selector.selectNow());
+    }
+
+    @Test
+    public void testDeduplicateNotifications() throws IOException {
+        StubChannel channel = register(SelectionKey.OP_READ);
+        for (int i = 0; i < 10; i++) {
+            channel.setReady(SelectionKey.OP_READ);
+        }
+        assertEquals(1, selector.selectNow());
+        assertEquals(1, selector.selectedKeys().size());
+    }
+
+    @Test
+    public void testInterestOpsChange() throws IOException {
+        StubChannel channel = register(0);
+        channel.setReady(SelectionKey.OP_WRITE);
+        assertEquals(0, selector.selectNow());
+
+        channel.key.interestOps(SelectionKey.OP_WRITE);
+        assertEquals(1, selector.selectNow());
+    }
+
+    @Test
+    public void testCancelledKeyIsDeregistered() throws IOException {
+        StubChannel channel = register(SelectionKey.OP_READ);
+        channel.setReady(SelectionKey.OP_READ);
+        channel.key.cancel();
+
+        assertEquals(0, selector.selectNow());
+        assertFalse(selector.keys().contains(channel.key));
+    }
+
+    @Test
+    public void testWakeup() throws Exception {
+        StubChannel channel = register(SelectionKey.OP_READ);
+        CompletableFuture<Integer> selected = CompletableFuture.supplyAsync(() -> {
+            try {
+                return selector.select();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        channel.setReady(SelectionKey.OP_READ);
+        assertEquals(1, selected.get(10, TimeUnit.SECONDS));
+
+        // Wakeup before selecting makes the next selection return immediately
+        channel.ready = 0;
+        selector.wakeup();
+        assertEquals(0, selector.select());
+    }
+}
@@ -0,0 +1,173 @@
+package com.mayreh.kafka.http.tunnel.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+
+public class TunnelingSocketChannelTest {
+    private static final InetSocketAddress BROKER = InetSocketAddress.createUnresolved("broker-1", 9092);
+    private static final long REQUEST_TIMEOUT_MS = 200;
+
+    private final EventLoop eventLoop = new DefaultEventLoop();
+    private TunnelingSocketChannel channel;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        channel = newChannel(0);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        channel.close();
+        eventLoop.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    private TunnelingSocketChannel newChannel(long requestTimeoutMs) throws IOException {
+        TunnelTransport transport = mock(TunnelTransport.class);
+        when(transport.connect(any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(transport.isActive()).thenReturn(true);
+
+        SelectorProvider provider = SelectorProvider.provider();
+        TunnelingSocketChannel channel = new TunnelingSocketChannel(provider, provider);
+        channel.register(transport, eventLoop, null, requestTimeoutMs);
+        channel.connect(BROKER);
+        return channel;
+    }
+
+    /**
+     * Metadata request header, which expects a response
+     */
+    private static ByteBuffer request() {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 8);
+        buf.putInt(8).putShort((short) 3).putShort((short) 12).putInt(1);
+        return buf.flip();
+    }
+
+    /**
+     * Wait for the channel to fail, which finishConnect() throws without consuming buffered responses
+     */
+    private IOException awaitError() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            try {
+                channel.finishConnect();
+            } catch (IOException e) {
+                return e;
+            }
+            Thread.sleep(10);
+        }
+        return fail("The channel didn't fail");
+    }
+
+    private static ByteBuf response(int size) {
+        ByteBuf buf = Unpooled.buffer(4 + size);
+        buf.writeInt(size);
+        buf.writeZero(size);
+        return buf;
+    }
+
+    @Test
+    public void testErrorInTheMiddleOfResponse() throws IOException {
+        ByteBuf response = response(100);
+        channel.onResponse(response.retainedSlice(0, 50));
+        channel.onError(new IOException("stream reset"));
+        // Arrives after the error, which must not be handed to Kafka
+        channel.onResponse(response.retainedSlice(50, response.readableBytes() - 50));
+        response.release();
+
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        assertThrows(IOException.class, () -> channel.read(dst));
+        assertEquals(0, dst.position());
+    }
+
+    @Test
+    public void testErrorAfterCompleteResponse() throws IOException {
+        channel.onResponse(response(100));
+        channel.onError(new IOException("connection closed"));
+        assertEquals(SelectionKey.OP_READ, channel.readyOps() & SelectionKey.OP_READ);
+
+        // The complete response is still delivered before the error
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        assertEquals(104, channel.read(dst));
+        assertThrows(IOException.class, () -> channel.read(dst));
+    }
+
+    @Test
+    public void testResponseBoundariesAcrossChunks() throws Exception {
+        channel.close();
+        channel = newChannel(REQUEST_TIMEOUT_MS);
+        channel.write(request());
+        channel.write(request());
+
+        // Two responses split at arbitrary points, including in the middle of the size prefix
+        ByteBuf responses = Unpooled.wrappedBuffer(response(10), response(20));
+        for (int[] chunk : new int[][] { { 0, 2 }, { 2, 20 }, { 20, 38 } }) {
+            channel.onResponse(responses.retainedSlice(chunk[0], chunk[1] - chunk[0]));
+        }
+        responses.release();
+
+        // Both requests are responded, so their deadlines don't fire
+        Thread.sleep(REQUEST_TIMEOUT_MS * 2);
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        assertEquals(38, channel.read(dst));
+        assertEquals(0, channel.read(dst));
+        assertTrue(channel.finishConnect());
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        channel.close();
+        channel = newChannel(REQUEST_TIMEOUT_MS);
+        long startNanos = System.nanoTime();
+        channel.write(request());
+        channel.write(request());
+        // Only the first request is responded
+        channel.onResponse(response(10));
+
+        assertInstanceOf(SocketTimeoutException.class, awaitError());
+        assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MS));
+        // The complete response is still delivered before the error
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        assertEquals(14, channel.read(dst));
+        assertThrows(SocketTimeoutException.class, () -> channel.read(dst));
+    }
+
+    @Test
+    public void testRequestTimeoutInTheMiddleOfResponse() throws Exception {
+        channel.close();
+        channel = newChannel(REQUEST_TIMEOUT_MS);
+        channel.write(request());
+        ByteBuf response = response(100);
+        channel.onResponse(response.retainedSlice(0, 50));
+        response.release();
+
+        // The truncated response is dropped
+        assertInstanceOf(SocketTimeoutException.class, awaitError());
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        assertThrows(SocketTimeoutException.class, () -> channel.read(dst));
+        assertEquals(0, dst.position());
+    }
+}
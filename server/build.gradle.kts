@@ -4,10 +4,20 @@ plugins {
 
 dependencies {
     implementation("com.linecorp.armeria:armeria:1.26.4")
+    // Prometheus registry for the standalone server's metrics. Same version as Armeria depends on
+    implementation("io.micrometer:micrometer-registry-prometheus:1.12.1")
+    // Armeria depends on the native transport only at runtime. Same version as Armeria's
+    implementation("io.netty:netty-transport-classes-epoll:4.1.100.Final")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.16.1")
     implementation("com.fasterxml.jackson.dataformat:jackson-dataformat-yaml:2.16.1")
+    // Same versions as kafka-clients depends on
+    implementation("com.github.luben:zstd-jni:1.5.5-1")
+    implementation("org.lz4:lz4-java:1.8.0")
     runtimeOnly("ch.qos.logback:logback-classic:1.4.12")
 
+    // To build Kafka protocol messages in unit tests
+    testImplementation("org.apache.kafka:kafka-clients:${project.extra["kafkaVersion"]}")
+
     itImplementation("org.apache.kafka:kafka-clients:${project.extra["kafkaVersion"]}")
     itImplementation("tools.profiler:async-profiler:2.9")
     itImplementation(project(":testing"))
@@ -16,3 +26,9 @@ dependencies {
     // to call `setTunnelingCondition`
     itImplementation(project(":client"))
 }
+
+// async-profiler for TunnelingTest#integrationTest_FetchResponseAllocation, which is skipped without it.
+// e.g. -Pasync.profiler.lib=/path/to/libasyncProfiler.so
+tasks.named<Test>("integrationTest") {
+    findProperty("async.profiler.lib")?.let { systemProperty("async.profiler.lib", it) }
+}
@@ -2,19 +2,31 @@ package com.mayreh.kafka.http.tunnel.server;
 
 import static java.util.Collections.synchronizedSet;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.stream.Collectors;
 
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.Serdes;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -25,8 +37,17 @@ import com.mayreh.kafka.http.tunnel.client.TunnelingSelectorProvider;
 import com.mayreh.kafka.testing.KafkaClusterExtension;
 
 import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.HttpStatus;
+
+import one.profiler.AsyncProfiler;
 
 public class TunnelingTest {
+    // Output filter of async-profiler, which applies on dump rather than start. The consumer running in
+    // this class and logging configured for tests (e.g. Armeria's traffic logs) aren't what's measured
+    private static final String SERVER_STACKS =
+            "include=*tunnel/server/*,exclude=*/TunnelingTest.*,"
+            + "exclude=*ch/qos/logback/*,exclude=*io/netty/handler/logging/*";
+
     static {
         TunnelingSelectorProvider.setTunnelingCondition(
                 () -> {
@@ -63,21 +84,186 @@ public class TunnelingTest {
         });
         System.setProperty("kafka.http.tunnel.endpoint", "localhost:" + server.httpsPort());
         System.setProperty("kafka.http.tunnel.tls", "true");
+        // The server uses a self-signed certificate
+        System.setProperty("kafka.http.tunnel.tls.insecure", "true");
     }
 
     @AfterEach
     public void tearDown() {
         rule.admin().deleteTopics(true, topic);
         server.close();
+        System.clearProperty("kafka.http.tunnel.protocol");
+        System.clearProperty("kafka.http.tunnel.batch");
     }
 
     @Test
     public void integrationTest_MessageDelivery() {
+        verifyMessageDelivery();
+    }
+
+    @Test
+    public void integrationTest_MessageDeliveryHttp2() {
+        System.setProperty("kafka.http.tunnel.protocol", "h2");
+        verifyMessageDelivery();
+    }
+
+    @Test
+    public void integrationTest_MessageDeliveryWebSocket() {
+        System.setProperty("kafka.http.tunnel.protocol", "websocket");
+        verifyMessageDelivery();
+    }
+
+    @Test
+    public void integrationTest_MessageDeliveryBatch() {
+        System.setProperty("kafka.http.tunnel.protocol", "h2");
+        System.setProperty("kafka.http.tunnel.batch", "true");
+        verifyMessageDelivery();
+    }
+
+    @Test
+    public void integrationTest_MetricsPort() throws Exception {
+        // Replace the server with the standalone one serving metrics, over plain HTTP
+        server.close();
+        int port = freePort();
+        int metricsPort = freePort();
+        server = TunnelingServer.newStandalone(Config.builder().metricsPort(metricsPort).build(), port);
+        System.setProperty("kafka.http.tunnel.endpoint", "localhost:" + port);
+        System.setProperty("kafka.http.tunnel.tls", "false");
+        verifyMessageDelivery();
+
+        String metrics = WebClient.of("http://localhost:" + metricsPort).get("/metrics")
+                                  .aggregate().join().contentUtf8();
+        // Timed per api key and broker, for Produce (0) and Metadata (3) requests
+        for (String apiKey : List.of("0", "3")) {
+            String prefix = "kafka_tunnel_request_broker_seconds_count{apiKey=\"" + apiKey + "\",broker=\"";
+            assertTrue(scraped(metrics, prefix) > 0, metrics);
+        }
+        assertTrue(metrics.contains("\nkafka_tunnel_connections "), metrics);
+        assertTrue(metrics.contains("\nkafka_tunnel_inflight_requests "), metrics);
+        // All requests are responded
+        assertEquals(0, scraped(metrics, "kafka_tunnel_inflight_requests "));
+
+        // Metrics aren't served on the tunnel port
+        assertEquals(HttpStatus.NOT_FOUND,
+                     WebClient.of("http://localhost:" + port).get("/metrics").aggregate().join().status());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Sum of the samples in Prometheus text format whose name and labels start with the prefix
+     */
+    private static double scraped(String metrics, String prefix) {
+        return Arrays.stream(metrics.split("\n"))
+                     .filter(line -> line.startsWith(prefix))
+                     .mapToDouble(line -> Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)))
+                     .sum();
+    }
+
+    /**
+     * Measures heap bytes allocated by the server per byte of fetched records, by async-profiler's
+     * allocation profiling of stacks in the server package. Set {@code async.profiler.lib} (the Gradle property
+     * of the same name is passed) to the path of libasyncProfiler if it can't be loaded from the library path.
+     * <p>
+     * Copying broker responses into byte[] (as before responses were passed to Armeria as they are)
+     * allocates at least as many bytes as fetched, while pooled direct buffers aren't on the heap.
+     * The flame graph is written under the build directory to compare allocations between revisions.
+     */
+    @Test
+    public void integrationTest_FetchResponseAllocation() throws Exception {
+        AsyncProfiler profiler = asyncProfiler();
+        assumeTrue(profiler != null, "async-profiler is not available");
+
+        int recordCount = 32;
+        int valueSize = 512 * 1024;
+        produceDirectly(recordCount, valueSize);
+
+        Properties props = new Properties();
+        props.setProperty(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, rule.bootstrapServers());
+        props.setProperty(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        props.setProperty(ConsumerConfig.FETCH_MAX_BYTES_CONFIG, String.valueOf(4 * valueSize));
+        props.setProperty(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, String.valueOf(4 * valueSize));
+        Path collapsed = Paths.get("build", "alloc-" + ProcessHandle.current().pid() + ".txt");
+        Path flameGraph = Paths.get("build", "alloc-" + ProcessHandle.current().pid() + ".html");
+        long fetchedBytes = 0;
+        try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(
+                props, Serdes.ByteArray().deserializer(), Serdes.ByteArray().deserializer())) {
+            List<TopicPartition> partitions = consumer.partitionsFor(topic)
+                                                      .stream()
+                                                      .map(p -> new TopicPartition(p.topic(), p.partition()))
+                                                      .collect(Collectors.toList());
+            consumer.assign(partitions);
+
+            profiler.execute("start,event=alloc");
+            int consumed = 0;
+            long deadline = System.currentTimeMillis() + 60_000L;
+            while (consumed < recordCount && System.currentTimeMillis() < deadline) {
+                for (ConsumerRecord<byte[], byte[]> record : consumer.poll(Duration.ofMillis(100))) {
+                    consumed++;
+                    fetchedBytes += record.value().length;
+                }
+            }
+            profiler.execute("dump,collapsed,total," + SERVER_STACKS + ",file=" + collapsed.toAbsolutePath());
+            profiler.execute("stop,flamegraph,total," + SERVER_STACKS + ",file=" + flameGraph.toAbsolutePath());
+            assertEquals(recordCount, consumed);
+        }
+
+        long allocatedBytes = allocatedBytes(collapsed);
+        double bytesPerFetchedByte = (double) allocatedBytes / fetchedBytes;
+        System.out.printf("Server allocated %d bytes for %d fetched bytes (%.3f per byte). See %s%n",
+                          allocatedBytes, fetchedBytes, bytesPerFetchedByte, flameGraph.toAbsolutePath());
+        assertTrue(bytesPerFetchedByte < 0.5,
+                   "Fetch responses seem to be copied on the heap: " + bytesPerFetchedByte + " per byte");
+    }
+
+    private static AsyncProfiler asyncProfiler() {
+        try {
+            String lib = System.getProperty("async.profiler.lib");
+            return lib == null ? AsyncProfiler.getInstance() : AsyncProfiler.getInstance(lib);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * Sum of the allocated bytes of all stacks in async-profiler's collapsed output with total counters
+     */
+    private static long allocatedBytes(Path collapsed) throws IOException {
+        return Files.readAllLines(collapsed)
+                    .stream()
+                    .filter(line -> !line.isEmpty())
+                    .mapToLong(line -> Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)))
+                    .sum();
+    }
+
+    /**
+     * Produce records without the tunnel, so that the server doesn't allocate for them
+     */
+    private void produceDirectly(int recordCount, int valueSize) throws Exception {
+        Properties props = new Properties();
+        props.setProperty(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, rule.bootstrapServers());
+        props.setProperty(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, String.valueOf(2 * valueSize));
+        Thread thread = new Thread(() -> {
+            try (Producer<byte[], byte[]> producer = new KafkaProducer<>(
+                    props, Serdes.ByteArray().serializer(), Serdes.ByteArray().serializer())) {
+                for (int i = 0; i < recordCount; i++) {
+                    producer.send(new ProducerRecord<>(topic, new byte[valueSize]));
+                }
+            }
+        }, "direct-producer");
+        thread.start();
+        thread.join();
+    }
+
+    private void verifyMessageDelivery() {
         Properties props = new Properties();
         props.setProperty(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, rule.bootstrapServers());
         props.setProperty(ProducerConfig.CLIENT_ID_CONFIG, "test-client-producer");
-        // TODO: support multiple in-flight requests
-        props.setProperty(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "1");
+        props.setProperty(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "5");
         props.setProperty(ProducerConfig.BATCH_SIZE_CONFIG, "0");
         props.setProperty(ProducerConfig.LINGER_MS_CONFIG, "0");
         props.setProperty(ProducerConfig.ACKS_CONFIG, "all");
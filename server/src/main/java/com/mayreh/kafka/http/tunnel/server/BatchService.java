@@ -0,0 +1,315 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mayreh.kafka.http.tunnel.server.CompressionPolicy.Codings;
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.ConnectionId;
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.KafkaConnection;
+
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpResponseWriter;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.ResponseHeadersBuilder;
+import com.linecorp.armeria.server.HttpService;
+import com.linecorp.armeria.server.ServiceRequestContext;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Serves multi-frame envelopes, each of which carries Kafka requests of multiple Kafka connections
+ * sharing an HTTP connection.
+ * <p>
+ * Envelopes of a client's batcher carry the same session id header, and a Kafka connection is identified
+ * by the session id and the channel id of the frame. Without the header, the HTTP connection identifies
+ * the batcher instead.
+ * <p>
+ * The request body is a sequence of frames: channel id (int32), broker ({@code host:port} prefixed by
+ * int16 length) and a Kafka request including its size prefix. A request of size 0 closes the Kafka connection
+ * of the channel, which the client sends when it closes the channel.
+ * <p>
+ * The response body is a sequence of channel id (int32) and a Kafka response including its size prefix.
+ * Each frame is written as soon as its response arrives, so a long-polling request (e.g. Fetch waiting for
+ * fetch.max.wait.ms) doesn't hold back responses of other connections in the envelope. Responses of a
+ * Kafka connection are still written in the order of its requests. A request which failed (e.g. the broker
+ * connection was closed) has a frame of size -1 instead. Requests which don't have a response
+ * (i.e. acks=0 produce) have no frame.
+ * <p>
+ * Envelopes from a batcher are dispatched to broker connections in the order they arrive,
+ * rather than the order their bodies are fully received, to preserve the order of requests on each
+ * Kafka connection.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class BatchService implements HttpService {
+    static final int FAILED_FRAME_SIZE = -1;
+
+    private final KafkaConnections connections;
+    private final CompressionPolicy compressionPolicy;
+    // The last envelope dispatched (or to be dispatched) per batcher of a client
+    private final ConcurrentMap<ConnectionId, CompletableFuture<Void>> dispatchChains =
+            new ConcurrentHashMap<>();
+
+    @Override
+    public HttpResponse serve(ServiceRequestContext ctx, HttpRequest req) {
+        Codings codings = compressionPolicy.codings(req.headers());
+        if (codings == null) {
+            return HttpResponse.of(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+        }
+        CompletableFuture<ByteBuf> body =
+                req.aggregate().thenApply(agg -> CompressionPolicy.decode(codings.request(), agg));
+
+        // Identifies the batcher, whose channels are identified per frame
+        ConnectionId client =
+                TunnelingServer.connectionId(ctx, req.headers().get(TunnelingServer.SESSION_ID_HEADER), null);
+        CompletableFuture<Void> dispatched = new CompletableFuture<>();
+        CompletableFuture<Void> previous = dispatchChains.put(client, dispatched);
+        if (previous == null) {
+            previous = CompletableFuture.completedFuture(null);
+        }
+        HttpResponseWriter response = HttpResponse.streaming();
+        previous.thenCompose(ignore -> body).handle((envelope, t) -> {
+            try {
+                if (t != null) {
+                    response.close(t);
+                    return null;
+                }
+                ResponseWriter writer = new ResponseWriter(response, codings.response());
+                try {
+                    writer.start(compressionPolicy.responseHeaders());
+                    dispatch(ctx, client, envelope, writer);
+                } catch (RuntimeException e) {
+                    writer.abort(e);
+                } finally {
+                    envelope.release();
+                }
+            } finally {
+                dispatched.complete(null);
+                dispatchChains.remove(client, dispatched);
+            }
+            return null;
+        });
+        return response;
+    }
+
+    /**
+     * Send all requests in the envelope, whose responses are written to the writer as they arrive.
+     * Requests are slices of the envelope, which the caller releases.
+     */
+    private void dispatch(
+            ServiceRequestContext ctx, ConnectionId client, ByteBuf envelope, ResponseWriter writer) {
+        EventLoop eventLoop = ctx.eventLoop().withoutContext();
+        ByteBuf buf = envelope.duplicate();
+        int requests = 0;
+        while (buf.isReadable()) {
+            int channelId = buf.readInt();
+            String broker = buf.readCharSequence(buf.readUnsignedShort(), StandardCharsets.UTF_8).toString();
+            InetSocketAddress brokerAddress = new InetSocketAddress(
+                    broker.substring(0, broker.lastIndexOf(':')),
+                    Integer.parseInt(broker.substring(broker.lastIndexOf(':') + 1)));
+            ConnectionId id = client.channel(channelId, brokerAddress);
+            int size = buf.getInt(buf.readerIndex());
+            if (size == 0) {
+                buf.skipBytes(4);
+                // The client closed the channel. Its requests sent earlier fail, which are no longer read
+                connections.disconnect(id);
+                continue;
+            }
+            ByteBuf request = buf.readRetainedSlice(4 + size);
+
+            KafkaConnection connection = connections.getOrConnect(id, eventLoop);
+            CompletableFuture<ByteBuf> response = connection.send(CompletableFuture.completedFuture(request));
+            // The client gave up the envelope, so none of the requests will be read
+            ctx.whenRequestCancelling().thenRun(() -> connection.cancel(response));
+            writer.expect();
+            response.whenComplete((res, t) -> {
+                if (t != null) {
+                    log.debug("Request of channel {} to {} failed", channelId, brokerAddress, t);
+                }
+                writer.write(channelId, res);
+            });
+            requests++;
+        }
+        log.debug("Dispatched {} requests in an envelope", requests);
+        writer.endOfRequests();
+    }
+
+    /**
+     * Writes response frames of an envelope in the order they arrive, compressing them as a single stream
+     * if a coding is negotiated.
+     * Responses of a Kafka connection complete in the order of its requests, so the order is preserved per
+     * connection. The size threshold of compression doesn't apply since the size is unknown in advance.
+     */
+    private static class ResponseWriter {
+        private final HttpResponseWriter response;
+        private final Compression compression;
+        // Non-null while streaming compressed frames
+        private ChunkOutputStream compressedChunks;
+        private OutputStream encoder;
+        // Number of responses not written yet
+        private int remaining;
+        private boolean allRequestsDispatched;
+        private boolean closed;
+
+        ResponseWriter(HttpResponseWriter response, Compression compression) {
+            this.response = response;
+            this.compression = compression;
+        }
+
+        /**
+         * Write the headers, before dispatching requests
+         */
+        synchronized void start(ResponseHeadersBuilder headers) {
+            if (compression != null) {
+                compressedChunks = new ChunkOutputStream();
+                try {
+                    encoder = compression.wrap(compressedChunks);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                headers.set(HttpHeaderNames.CONTENT_ENCODING, compression.id());
+            }
+            response.write(headers.build());
+        }
+
+        /**
+         * Called before dispatching a request which has a response (or a failure) to write
+         */
+        synchronized void expect() {
+            remaining++;
+        }
+
+        /**
+         * Called once all requests of the envelope are dispatched
+         */
+        synchronized void endOfRequests() {
+            allRequestsDispatched = true;
+            if (remaining == 0) {
+                finish();
+            }
+        }
+
+        /**
+         * Write the response frame of the channel, or the failure frame if the response is null.
+         * The response is released.
+         */
+        synchronized void write(int channelId, ByteBuf res) {
+            remaining--;
+            if (closed) {
+                if (res != null) {
+                    res.release();
+                }
+                return;
+            }
+            if (res != null && !res.isReadable()) {
+                // acks=0 produce
+                res.release();
+            } else {
+                ByteBuf frame = res == null
+                                ? Unpooled.copyInt(channelId, FAILED_FRAME_SIZE)
+                                : Unpooled.wrappedBuffer(Unpooled.copyInt(channelId), res);
+                if (encoder == null) {
+                    if (!response.tryWrite(HttpData.wrap(frame))) {
+                        frame.release();
+                    }
+                } else {
+                    try {
+                        frame.readBytes(encoder, frame.readableBytes());
+                        // Flush the block so that the client can decode the frame without waiting for the rest
+                        encoder.flush();
+                    } catch (IOException e) {
+                        abort(e);
+                        return;
+                    } finally {
+                        frame.release();
+                    }
+                    writeCompressedChunk();
+                }
+            }
+            if (allRequestsDispatched && remaining == 0) {
+                finish();
+            }
+        }
+
+        synchronized void abort(Throwable cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (encoder != null) {
+                try {
+                    encoder.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close the encoder", e);
+                }
+                compressedChunks.release();
+            }
+            response.close(cause);
+        }
+
+        private void writeCompressedChunk() {
+            ByteBuf chunk = compressedChunks.take();
+            if (!chunk.isReadable() || !response.tryWrite(HttpData.wrap(chunk))) {
+                chunk.release();
+            }
+        }
+
+        private void finish() {
+            if (encoder != null) {
+                try {
+                    // Writes the trailer of the coding
+                    encoder.close();
+                } catch (IOException e) {
+                    abort(e);
+                    return;
+                }
+                writeCompressedChunk();
+                compressedChunks.release();
+            }
+            closed = true;
+            response.close();
+        }
+    }
+
+    /**
+     * Collects bytes written by the encoder into a pooled buffer, which is taken out on every flush
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private ByteBuf buf = ByteBufAllocator.DEFAULT.buffer();
+
+        @Override
+        public void write(int b) {
+            buf.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.writeBytes(b, off, len);
+        }
+
+        ByteBuf take() {
+            ByteBuf taken = buf;
+            buf = ByteBufAllocator.DEFAULT.buffer();
+            return taken;
+        }
+
+        // Not close(), which the encoder calls when it's closed
+        void release() {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.handler.codec.compression.Zstd;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+
+/**
+ * HTTP content codings supported for tunnel request/response bodies.
+ * <p>
+ * lz4 is not a registered content coding, so it's exchanged only between kafka-tunnel client and server.
+ * It's encoded in the standard LZ4 frame format, with 64 KiB blocks so that the client can decode
+ * a streamed response block by block.
+ * <p>
+ * The client module has its own copy. The client is loaded into Kafka clients' JVMs as a
+ * {@code SelectorProvider} with only Netty and slf4j as dependencies, and its helpers are package-private,
+ * so sharing them would mean publishing them as public API of another artifact.
+ */
+@RequiredArgsConstructor
+enum Compression {
+    ZSTD("zstd") {
+        @Override
+        boolean isAvailable() {
+            return Zstd.isAvailable();
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out) throws IOException {
+            return new ZstdOutputStream(out);
+        }
+
+        @Override
+        InputStream wrap(InputStream in) throws IOException {
+            return new ZstdInputStream(in);
+        }
+    },
+    LZ4("lz4") {
+        @Override
+        boolean isAvailable() {
+            try {
+                LZ4Factory.fastestInstance();
+                return true;
+            } catch (Throwable t) {
+                return false;
+            }
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out) throws IOException {
+            return new LZ4FrameOutputStream(out, BLOCKSIZE.SIZE_64KB);
+        }
+
+        @Override
+        InputStream wrap(InputStream in) throws IOException {
+            return new LZ4FrameInputStream(in);
+        }
+    },
+    GZIP("gzip") {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out) throws IOException {
+            // Sync flush, so that a streamed response can be decoded up to each flush
+            return new GZIPOutputStream(out, true);
+        }
+
+        @Override
+        InputStream wrap(InputStream in) throws IOException {
+            return new GZIPInputStream(in);
+        }
+    },
+    ;
+
+    private static final int DECOMPRESS_CHUNK_SIZE = 8192;
+
+    @Getter
+    @Accessors(fluent = true)
+    private final String id;
+
+    abstract boolean isAvailable();
+
+    abstract OutputStream wrap(OutputStream out) throws IOException;
+
+    abstract InputStream wrap(InputStream in) throws IOException;
+
+    /**
+     * Compress readable bytes of data into a new buffer. data is not released.
+     */
+    ByteBuf compress(ByteBuf data, ByteBufAllocator alloc) throws IOException {
+        ByteBuf out = alloc.buffer(data.readableBytes() / 2);
+        try (OutputStream compressed = wrap(new ByteBufOutputStream(out))) {
+            data.getBytes(data.readerIndex(), compressed, data.readableBytes());
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * Decompress readable bytes of data into a new buffer. data is not released.
+     */
+    ByteBuf decompress(ByteBuf data, ByteBufAllocator alloc) throws IOException {
+        ByteBuf out = alloc.buffer(data.readableBytes() * 2);
+        try (InputStream decompressed = wrap(new ByteBufInputStream(data.duplicate()))) {
+            while (out.writeBytes(decompressed, DECOMPRESS_CHUNK_SIZE) >= 0) {
+                // continue until EOF
+            }
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * Returns the compression for the content coding, or null if unknown
+     */
+    static Compression of(String id) {
+        for (Compression compression : values()) {
+            if (compression.id.equalsIgnoreCase(id)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,149 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.linecorp.armeria.common.AggregatedHttpRequest;
+import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.RequestHeaders;
+import com.linecorp.armeria.common.ResponseHeaders;
+import com.linecorp.armeria.common.ResponseHeadersBuilder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import lombok.Value;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Negotiates the content coding of proxy responses and decides whether to compress each response.
+ * It also decodes request bodies, so that /proxy and /batch handle content codings the same way.
+ * <p>
+ * Supported codings are advertised to clients by {@code Accept-Encoding} response header,
+ * so that clients can compress requests as well.
+ */
+@Slf4j
+class CompressionPolicy {
+    /**
+     * Content codings of an exchange. Each is null if not compressed
+     */
+    @Value
+    @Accessors(fluent = true)
+    static class Codings {
+        Compression request;
+        Compression response;
+    }
+
+    private final List<Compression> supported = new ArrayList<>();
+    private final int thresholdBytes;
+    // Null if no compression is supported
+    private final String acceptEncoding;
+
+    CompressionPolicy(List<String> compressionTypes, int thresholdBytes) {
+        for (String type : compressionTypes) {
+            Compression compression = Compression.of(type);
+            if (compression == null || !compression.isAvailable()) {
+                log.warn("Compression {} is not available. Ignoring", type);
+                continue;
+            }
+            supported.add(compression);
+        }
+        this.thresholdBytes = thresholdBytes;
+        acceptEncoding = supported.isEmpty() ? null : supported.stream()
+                                                               .map(Compression::id)
+                                                               .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Returns the coding of the request body and the coding negotiated for the response,
+     * or null if the request body is encoded by an unsupported coding, which should be rejected by
+     * {@link HttpStatus#UNSUPPORTED_MEDIA_TYPE}
+     */
+    Codings codings(RequestHeaders headers) {
+        String contentEncoding = headers.get(HttpHeaderNames.CONTENT_ENCODING);
+        Compression request = null;
+        if (contentEncoding != null) {
+            request = decoderFor(contentEncoding);
+            if (request == null) {
+                return null;
+            }
+        }
+        return new Codings(request, negotiate(headers.get(HttpHeaderNames.ACCEPT_ENCODING)));
+    }
+
+    /**
+     * Returns the aggregated request body decoded by the coding, which the caller must release
+     */
+    static ByteBuf decode(Compression coding, AggregatedHttpRequest request) {
+        ByteBuf body = Unpooled.wrappedBuffer(request.content().array());
+        if (coding == null) {
+            return body;
+        }
+        try {
+            return coding.decompress(body, ByteBufAllocator.DEFAULT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the headers of a successful response, advertising supported codings to let the client
+     * compress requests
+     */
+    ResponseHeadersBuilder responseHeaders() {
+        ResponseHeadersBuilder headers = ResponseHeaders.builder(HttpStatus.OK)
+                                                        .contentType(MediaType.OCTET_STREAM);
+        if (acceptEncoding != null) {
+            headers.set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+        }
+        return headers;
+    }
+
+    /**
+     * Returns the supported compression for the content coding, or null if not supported
+     */
+    private Compression decoderFor(String contentEncoding) {
+        Compression compression = Compression.of(contentEncoding.trim());
+        return supported.contains(compression) ? compression : null;
+    }
+
+    /**
+     * Choose the first supported coding in the client's Accept-Encoding.
+     * Quality values are ignored since our client lists codings in the order of preference.
+     */
+    private Compression negotiate(String clientAcceptEncoding) {
+        if (clientAcceptEncoding == null) {
+            return null;
+        }
+        for (String coding : clientAcceptEncoding.split(",")) {
+            int paramsIndex = coding.indexOf(';');
+            Compression compression = Compression.of(
+                    (paramsIndex < 0 ? coding : coding.substring(0, paramsIndex)).trim());
+            if (compression != null && supported.contains(compression)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compress the response with the negotiated compression unless it's too small or
+     * consists of record batches compressed by producers.
+     * Returns a new pooled buffer, or null if not compressed. The response is not released.
+     */
+    ByteBuf compress(Compression compression, short apiKey, short apiVersion, ByteBuf response)
+            throws IOException {
+        if (compression == null
+            || response.readableBytes() < thresholdBytes
+            || KafkaProtocol.isCompressedFetchResponse(apiKey, apiVersion, response)) {
+            return null;
+        }
+        return compression.compress(response, ByteBufAllocator.DEFAULT);
+    }
+}
@@ -1,9 +1,168 @@
 package com.mayreh.kafka.http.tunnel.server;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import lombok.Builder;
 import lombok.Value;
 import lombok.experimental.Accessors;
+import lombok.extern.jackson.Jacksonized;
 
+/**
+ * Tunnel server configurations, which can be loaded from a YAML file whose keys are the field names.
+ */
 @Value
+@Builder
+@Jacksonized
 @Accessors(fluent = true)
 public class Config {
+    /**
+     * Netty transport for connections to Kafka brokers: nio, epoll or io_uring.
+     * Falls back to nio if the transport is unavailable on the platform.
+     * <p>
+     * Only used if brokerEventLoopAffinity is disabled. Otherwise, broker connections share the transport
+     * of the HTTP side managed by Armeria (see {@code com.linecorp.armeria.transportType} flag).
+     */
+    @Builder.Default
+    String brokerIoTransport = "nio";
+
+    /**
+     * Number of threads for connections to Kafka brokers. 0 means Netty's default (2 * CPUs)
+     */
+    @Builder.Default
+    int brokerIoThreads = 0;
+
+    /**
+     * Share the event loops of broker connections with the HTTP server (i.e. as Armeria's worker group),
+     * and bind each broker connection to the event loop of the HTTP request which established it,
+     * so that requests and responses don't hop threads between the HTTP side and the broker side.
+     * The number of threads is configured by brokerIoThreads, and the transport is Armeria's.
+     * Idle and LRU eviction of broker connections then run on the HTTP event loops as well.
+     * <p>
+     * false runs broker connections on dedicated threads, separate from Armeria's event loops
+     */
+    @Builder.Default
+    boolean brokerEventLoopAffinity = true;
+
+    /**
+     * Max payload length of a WebSocket frame, which must be large enough to hold a Kafka request.
+     * Defaults to the broker's default socket.request.max.bytes
+     */
+    @Builder.Default
+    int webSocketMaxFramePayloadLength = 100 * 1024 * 1024;
+
+    /**
+     * Content codings to compress proxy responses with, in the order of preference.
+     * The coding is negotiated with the client by Accept-Encoding header.
+     * Supported values are zstd, lz4 and gzip. Empty list disables compression
+     */
+    @Builder.Default
+    List<String> compressionTypes = List.of("zstd", "lz4", "gzip");
+
+    /**
+     * Responses smaller than this are sent uncompressed
+     */
+    @Builder.Default
+    int compressionThresholdBytes = 1024;
+
+    /**
+     * Broker connections without requests for this duration are closed.
+     * Defaults to a bit longer than Kafka client's default connections.max.idle.ms, so that the client
+     * usually closes the connection first. 0 disables idle eviction
+     */
+    @Builder.Default
+    long brokerConnectionIdleTimeoutMillis = 10 * 60 * 1000;
+
+    /**
+     * HTTP connections without requests in progress for this duration are closed by the server.
+     * Set explicitly instead of Armeria's default (10 seconds), which would close the HTTP/1 connection of
+     * a Kafka connection idle between requests, and churn connections pooled by clients.
+     * Defaults to the same as brokerConnectionIdleTimeoutMillis. 0 disables the timeout
+     */
+    @Builder.Default
+    long httpIdleTimeoutMillis = 10 * 60 * 1000;
+
+    /**
+     * Timeout of a proxy or batch request, from the request headers until the response is sent.
+     * Disabled by default instead of Armeria's default (10 seconds), since the broker holds some requests longer
+     * (e.g. JoinGroup waits up to the consumer's max.poll.interval.ms, and Fetch up to fetch.max.wait.ms).
+     * A timed out request closes the broker connection like cancelled ones. 0 disables the timeout
+     */
+    @Builder.Default
+    long httpRequestTimeoutMillis = 0;
+
+    /**
+     * Max number of broker connections. Once exceeded, the least recently used connections are closed.
+     * 0 means unlimited
+     */
+    @Builder.Default
+    int maxBrokerConnections = 10000;
+
+    /**
+     * Initial delay before reconnecting to a broker after a connection failure,
+     * which grows exponentially on consecutive failures. Same as Kafka client's reconnect.backoff.ms
+     */
+    @Builder.Default
+    long brokerReconnectBackoffMillis = 50;
+
+    /**
+     * Max delay before reconnecting to a broker. Same as Kafka client's reconnect.backoff.max.ms
+     */
+    @Builder.Default
+    long brokerReconnectBackoffMaxMillis = 1000;
+
+    /**
+     * Max time to wait for the broker's response to a request, after which the broker connection is closed
+     * and the requests in flight on it fail. Should be longer than the longest request the broker holds
+     * (e.g. JoinGroup waits up to the consumer's max.poll.interval.ms). 0 disables the timeout
+     */
+    @Builder.Default
+    long brokerRequestTimeoutMillis = 0;
+
+    /**
+     * Share a small number of connections per broker among all clients instead of a connection per client,
+     * rewriting correlation ids so that responses are routed back to the right client.
+     * <p>
+     * Only requests which don't depend on connection state are supported: SASL authentication is rejected,
+     * and fetch requests are sent as sessionless full fetches. Requests are sent once fully received,
+     * in the order of each client's requests.
+     * <p>
+     * The broker processes requests on a connection one at a time, so a request the broker holds
+     * (a Fetch waiting for fetch.max.wait.ms, JoinGroup and SyncGroup waiting for the rebalance) delays
+     * the requests of all clients sharing the connection. This is meant for producers and admin clients;
+     * consumers should use dedicated connections
+     */
+    @Builder.Default
+    boolean brokerConnectionMultiplexing = false;
+
+    /**
+     * Number of connections per broker shared by clients when multiplexing is enabled
+     */
+    @Builder.Default
+    int multiplexedConnectionsPerBroker = 4;
+
+    /**
+     * Time to cache MetadataRequest and ApiVersionsRequest responses per broker, which are shared by clients
+     * sending the same request (except the client id and the correlation id).
+     * Concurrent identical requests are collapsed into a single request to the broker.
+     * Connections authenticated by SASL don't use the cache. 0 disables caching
+     */
+    @Builder.Default
+    long responseCacheTtlMillis = 0;
+
+    /**
+     * Port to serve server metrics in Prometheus format on at /metrics, separately from the tunnel port.
+     * Only used by the standalone server (i.e. {@link TunnelingServer#main}), since embedders pass
+     * their own registry. 0 disables metrics
+     */
+    @Builder.Default
+    int metricsPort = 0;
+
+    public static Config load(Path path) throws IOException {
+        return new ObjectMapper(new YAMLFactory()).readValue(path.toFile(), Config.class);
+    }
 }
@@ -0,0 +1,116 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.util.concurrent.ThreadFactory;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Netty transport used for connections to Kafka brokers.
+ * <p>
+ * io_uring is experimental and requires {@code netty-incubator-transport-native-io_uring} on the classpath,
+ * so it is loaded reflectively.
+ * <p>
+ * Same as the client's IoTransport except that it's chosen by {@link Config} rather than a system property.
+ */
+@Slf4j
+enum IoTransport {
+    NIO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends SocketChannel> socketChannelType() {
+            return NioSocketChannel.class;
+        }
+    },
+    EPOLL {
+        @Override
+        boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends SocketChannel> socketChannelType() {
+            return EpollSocketChannel.class;
+        }
+    },
+    IO_URING {
+        @Override
+        boolean isAvailable() {
+            try {
+                return (Boolean) Class.forName(IO_URING_PACKAGE + "IOUring").getMethod("isAvailable").invoke(null);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return false;
+            }
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            try {
+                return (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup")
+                                             .getConstructor(int.class, ThreadFactory.class)
+                                             .newInstance(threads, threadFactory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        Class<? extends SocketChannel> socketChannelType() {
+            try {
+                return Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel").asSubclass(SocketChannel.class);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    },
+    ;
+
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    abstract boolean isAvailable();
+
+    /**
+     * @param threads number of threads. 0 means Netty's default
+     */
+    abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    abstract Class<? extends SocketChannel> socketChannelType();
+
+    /**
+     * Returns the transport of the given name, or NIO if it's unknown or unavailable on this platform
+     */
+    static IoTransport of(String name) {
+        IoTransport transport;
+        try {
+            transport = valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown I/O transport: {}. Falling back to NIO", name);
+            return NIO;
+        }
+        if (!transport.isAvailable()) {
+            log.warn("I/O transport {} is not available. Falling back to NIO", transport);
+            return NIO;
+        }
+        return transport;
+    }
+}
@@ -1,49 +1,153 @@
 package com.mayreh.kafka.http.tunnel.server;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.mayreh.kafka.http.tunnel.server.ServerMetrics.BrokerMeters;
+import com.mayreh.kafka.http.tunnel.server.ServerMetrics.RequestTimer;
+
+import com.linecorp.armeria.common.Flags;
+import com.linecorp.armeria.common.util.EventLoopGroups;
+
+import io.micrometer.core.instrument.Gauge;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.util.AttributeKey;
-import io.netty.util.ReferenceCountUtil;
-import lombok.RequiredArgsConstructor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
 import lombok.Value;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 
-public class KafkaConnections {
+/**
+ * Manages connections to Kafka brokers on behalf of tunneled Kafka connections.
+ * <p>
+ * A connection is bound to the tunneled Kafka connection of the id for its lifetime. Once its channel is
+ * closed, either by the broker, by a failure or by eviction, requests of the same id keep failing instead of
+ * silently going to a new broker connection, which would lose the state of the Kafka connection
+ * (e.g. SASL authentication) without the client noticing. The client then reconnects with a new id.
+ * Connections closed by {@link #disconnect} are just removed, and multiplexed connections are replaced
+ * since they don't belong to a client.
+ * <p>
+ * Connections idle longer than the timeout are evicted, and the least recently used ones without requests
+ * in flight are evicted when the number of connections exceeds the limit.
+ * Reconnections to a broker which failed to connect are delayed with exponential backoff.
+ * <p>
+ * With event loop affinity, the event loops are shared with the HTTP server, and a connection is bound to
+ * the event loop of the HTTP request which established it. Requests and responses are then passed between
+ * the HTTP side and the broker side without hopping threads, as long as the client sticks to the same
+ * HTTP connection.
+ */
+@Slf4j
+public class KafkaConnections implements AutoCloseable {
+    // Longer than Kafka client's default connections.max.idle.ms (9 min), after which the client
+    // has closed the connection even if it didn't send any request since the failure
+    private static final long CLOSED_CONNECTION_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
     private final EventLoopGroup workerGroup;
+    private final boolean eventLoopAffinity;
     private final Bootstrap bootstrap;
     private final ConcurrentMap<ConnectionId, KafkaConnection> connectionMap;
+    // Closed connections whose ids must not be reconnected, until the client is surely gone
+    private final ConcurrentMap<ConnectionId, KafkaConnection> closedConnections = new ConcurrentHashMap<>();
+    // Brokers which failed to connect recently
+    private final ConcurrentMap<InetSocketAddress, ReconnectBackoff> backoffs = new ConcurrentHashMap<>();
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private final long idleTimeoutNanos;
+    private final int maxConnections;
+    private final long reconnectBackoffMillis;
+    private final long reconnectBackoffMaxMillis;
+    private final long requestTimeoutMillis;
+    // Number of connections per broker shared by all clients. 0 if multiplexing is disabled
+    private final int multiplexedConnectionsPerBroker;
+    // Null if response caching is disabled
+    private final ResponseCache responseCache;
+    private final ServerMetrics metrics;
 
     @Value
     @Accessors(fluent = true)
     public static class ConnectionId {
-        InetSocketAddress clientAddress;
+        // The remote address of the HTTP connection if the client didn't send a session id. Null otherwise,
+        // since requests of a session may come through different addresses (e.g. nodes of a load balancer)
+        InetSocketAddress remoteAddress;
+        // Identifies the Kafka connection of a client, which is minted by the client as a random UUID.
+        // HTTP connections don't identify it since they may be shared by Kafka connections
+        // (i.e. HTTP/2, or proxies and load balancers pooling connections). Null if the client didn't send it
+        String sessionId;
         InetSocketAddress brokerAddress;
+
+        /**
+         * Returns the id of a Kafka connection sharing this client's session, i.e. a channel of a batcher
+         */
+        ConnectionId channel(int channelId, InetSocketAddress brokerAddress) {
+            String channel = sessionId == null ? String.valueOf(channelId) : sessionId + '/' + channelId;
+            return new ConnectionId(remoteAddress, channel, brokerAddress);
+        }
     }
 
-    public KafkaConnections() {
+    @Value
+    @Accessors(fluent = true)
+    private static class ReconnectBackoff {
+        int failures;
+        long nextAttemptNanos;
+    }
+
+    public KafkaConnections(Config config, ServerMetrics metrics) {
         connectionMap = new ConcurrentHashMap<>();
-        workerGroup = new NioEventLoopGroup();
+        this.metrics = metrics;
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.brokerConnectionIdleTimeoutMillis());
+        maxConnections = config.maxBrokerConnections();
+        reconnectBackoffMillis = config.brokerReconnectBackoffMillis();
+        reconnectBackoffMaxMillis = config.brokerReconnectBackoffMaxMillis();
+        requestTimeoutMillis = config.brokerRequestTimeoutMillis();
+        multiplexedConnectionsPerBroker = config.brokerConnectionMultiplexing()
+                                          ? config.multiplexedConnectionsPerBroker() : 0;
+        responseCache = config.responseCacheTtlMillis() > 0
+                        ? new ResponseCache(config.responseCacheTtlMillis()) : null;
+        eventLoopAffinity = config.brokerEventLoopAffinity();
+        ThreadFactory threadFactory = new DefaultThreadFactory("kafka-connections");
+        Class<? extends SocketChannel> socketChannelType;
+        if (eventLoopAffinity) {
+            // Armeria accepts HTTP connections with its own transport, which the event loops must be of
+            workerGroup = EventLoopGroups.newEventLoopGroup(
+                    config.brokerIoThreads() > 0 ? config.brokerIoThreads() : Flags.numCommonWorkers(),
+                    threadFactory);
+            socketChannelType = EventLoopGroups.socketChannelType(workerGroup);
+        } else {
+            IoTransport transport = IoTransport.of(config.brokerIoTransport());
+            workerGroup = transport.newEventLoopGroup(config.brokerIoThreads(), threadFactory);
+            socketChannelType = transport.socketChannelType();
+        }
         bootstrap = new Bootstrap();
         bootstrap.group(workerGroup)
-                 .channel(NioSocketChannel.class)
+                 .channel(socketChannelType)
                  .option(ChannelOption.SO_KEEPALIVE, true)
                  .option(ChannelOption.TCP_NODELAY, true)
                  .handler(new ChannelInitializer<SocketChannel>() {
@@ -54,20 +158,67 @@ public class KafkaConnections {
                                  new KafkaResponseHandler());
                      }
                  });
+        if (idleTimeoutNanos > 0) {
+            // Idle connections are closed within 1.5 * idle timeout at the latest
+            long interval = Math.max(TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2, 1000);
+            workerGroup.scheduleWithFixedDelay(
+                    this::evictIdleConnections, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (metrics.enabled()) {
+            Gauge.builder(ServerMetrics.PREFIX + "connections", connectionMap, Map::size)
+                 .description("Number of broker connections")
+                 .register(metrics.registry());
+            Gauge.builder(ServerMetrics.PREFIX + "inflight.requests", this, KafkaConnections::inFlightRequests)
+                 .description("Number of requests waiting for the broker's response")
+                 .register(metrics.registry());
+        }
+    }
+
+    private int inFlightRequests() {
+        int count = 0;
+        for (KafkaConnection conn : connectionMap.values()) {
+            count += conn.inFlightRequests();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the event loops of broker connections, which the HTTP server should use as its worker group
+     * if event loop affinity is enabled. The group is shut down by {@link #close()}
+     */
+    public EventLoopGroup eventLoopGroup() {
+        return workerGroup;
+    }
+
+    @Override
+    public void close() {
+        workerGroup.shutdownGracefully().syncUninterruptibly();
     }
 
     @Slf4j
     static class KafkaResponseHandler extends ChannelInboundHandlerAdapter {
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            ByteBuf buf = (ByteBuf) msg;
-            byte[] response = new byte[buf.readableBytes()];
-            try {
-                buf.readBytes(response);
-                ctx.channel().attr(KafkaConnection.ATTR_KEY).get().complete(response);
-            } finally {
-                ReferenceCountUtil.release(msg);
+            // The frame is a retained slice of the decoder's cumulation (i.e. pooled), which is handed to
+            // the connection without copying. Whoever receives the response is responsible for releasing it
+            ctx.channel().attr(KafkaConnection.ATTR_KEY).get().complete((ByteBuf) msg);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                ctx.channel().attr(KafkaConnection.ATTR_KEY).get().onWritable();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            KafkaConnection conn = ctx.channel().attr(KafkaConnection.ATTR_KEY).get();
+            if (conn != null) {
+                conn.failAll(new ClosedChannelException());
             }
+            super.channelInactive(ctx);
         }
 
         @Override
@@ -77,24 +228,195 @@ public class KafkaConnections {
         }
     }
 
-    public KafkaConnection getOrConnect(ConnectionId id) {
-        return connectionMap.computeIfAbsent(id, key -> {
-            ChannelFuture future = bootstrap.connect(id.brokerAddress);
-            CompletableFuture<Void> connectFuture = new CompletableFuture<>();
-            future.addListener(f -> {
-                if (f.isSuccess()) {
-                    connectFuture.complete(null);
-                } else {
-                    connectFuture.completeExceptionally(f.cause());
+    /**
+     * Returns if connections to brokers are shared by clients.
+     * Multiplexed connections only accept requests via {@link KafkaConnection#send(CompletableFuture)}
+     */
+    public boolean multiplexing() {
+        return multiplexedConnectionsPerBroker > 0;
+    }
+
+    /**
+     * Returns the connection for the id, or establishes a new one if there's no usable connection.
+     * <p>
+     * If multiplexing is enabled, one of the connections to the broker shared by clients is returned instead.
+     * A client always gets the same connection, so that its requests are sent to the broker in order.
+     *
+     * @param eventLoop the event loop serving the HTTP request, which a new connection is bound to
+     *                  if event loop affinity is enabled
+     */
+    public KafkaConnection getOrConnect(ConnectionId id, EventLoop eventLoop) {
+        boolean multiplexed = multiplexing();
+        ConnectionId key = multiplexed
+                           ? new ConnectionId(
+                                   null,
+                                   "multiplexed-" + Math.floorMod(id.hashCode(), multiplexedConnectionsPerBroker),
+                                   id.brokerAddress)
+                           : id;
+        // Set if the connection for the id was closed, whose requests fail
+        KafkaConnection[] closed = new KafkaConnection[1];
+        KafkaConnection conn = connectionMap.compute(key, (k, existing) -> {
+            if (existing != null && (existing.isUsable() || !multiplexed)) {
+                return existing;
+            }
+            if (!multiplexed) {
+                closed[0] = closedConnections.get(k);
+                if (closed[0] != null) {
+                    return null;
+                }
+            }
+            return connect(k, multiplexed, eventLoop);
+        });
+        if (closed[0] != null) {
+            return closed[0];
+        }
+        if (maxConnections > 0 && connectionMap.size() > maxConnections
+            && evictionScheduled.compareAndSet(false, true)) {
+            workerGroup.execute(this::evictLeastRecentlyUsed);
+        }
+        return conn;
+    }
+
+    private KafkaConnection connect(ConnectionId id, boolean multiplexed, EventLoop eventLoop) {
+        // Register the channel first, so that the connection can accept requests (which are queued until
+        // connected) while the connect attempt is delayed by the backoff.
+        // The HTTP server's event loop may not be ours if it's configured with another worker group, whose
+        // transport may not be compatible with our channel type.
+        // Multiplexed connections are shared by clients, so they are just bound to the first client's loop
+        ChannelFuture registerFuture = eventLoopAffinity && eventLoop != null && eventLoop.parent() == workerGroup
+                                       ? bootstrap.clone(eventLoop).register()
+                                       : bootstrap.register();
+        Channel channel = registerFuture.channel();
+        CompletableFuture<Void> connectFuture = new CompletableFuture<>();
+        KafkaConnection conn = new KafkaConnection(
+                channel, connectFuture, multiplexed, id.brokerAddress, responseCache,
+                metrics.broker(id.brokerAddress), requestTimeoutMillis);
+        channel.attr(KafkaConnection.ATTR_KEY).set(conn);
+        channel.closeFuture().addListener(f -> {
+            connectFuture.completeExceptionally(new ClosedChannelException());
+            // Removed already if disconnected by the client. Moved atomically with getOrConnect of the id
+            connectionMap.computeIfPresent(id, (k, existing) -> {
+                if (existing != conn) {
+                    return existing;
                 }
+                if (!multiplexed && !workerGroup.isShuttingDown()) {
+                    log.debug("Connection {} is closed. Failing its further requests", id);
+                    closedConnections.put(id, conn);
+                    workerGroup.schedule(() -> closedConnections.remove(id, conn),
+                                         CLOSED_CONNECTION_RETENTION_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return null;
             });
-            KafkaConnection conn = new KafkaConnection(future.channel(), connectFuture);
-            future.channel().attr(KafkaConnection.ATTR_KEY).set(conn);
-            return conn;
         });
+        registerFuture.addListener(rf -> {
+            if (!rf.isSuccess()) {
+                connectFuture.completeExceptionally(rf.cause());
+                return;
+            }
+            long delayNanos = backoffDelayNanos(id.brokerAddress);
+            if (delayNanos > 0) {
+                log.debug("Delaying connect to {} by {} ms", id.brokerAddress,
+                          TimeUnit.NANOSECONDS.toMillis(delayNanos));
+                channel.eventLoop().schedule(
+                        () -> doConnect(channel, id.brokerAddress, connectFuture),
+                        delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                doConnect(channel, id.brokerAddress, connectFuture);
+            }
+        });
+        return conn;
+    }
+
+    private void doConnect(Channel channel, InetSocketAddress brokerAddress, CompletableFuture<Void> connectFuture) {
+        if (!channel.isOpen()) {
+            // Evicted or closed while waiting for the backoff
+            return;
+        }
+        channel.connect(brokerAddress).addListener(f -> {
+            if (f.isSuccess()) {
+                backoffs.remove(brokerAddress);
+                connectFuture.complete(null);
+            } else {
+                backoffs.compute(brokerAddress, (key, prev) -> {
+                    int failures = prev == null ? 1 : prev.failures + 1;
+                    return new ReconnectBackoff(failures, System.nanoTime() + backoffNanos(failures));
+                });
+                log.warn("Failed to connect to {}", brokerAddress, f.cause());
+                BrokerMeters meters = metrics.broker(brokerAddress);
+                if (meters != null) {
+                    meters.recordConnectFailure();
+                }
+                connectFuture.completeExceptionally(f.cause());
+                channel.close();
+            }
+        });
+    }
+
+    /**
+     * Returns the remaining time until the next connect attempt to the broker is allowed
+     */
+    private long backoffDelayNanos(InetSocketAddress brokerAddress) {
+        ReconnectBackoff backoff = backoffs.get(brokerAddress);
+        if (backoff == null) {
+            return 0;
+        }
+        return Math.max(backoff.nextAttemptNanos - System.nanoTime(), 0);
+    }
+
+    /**
+     * Exponential backoff with 20% jitter, same as Kafka client's reconnect backoff
+     */
+    long backoffNanos(int failures) {
+        long backoffMillis = Math.min(reconnectBackoffMillis << Math.min(failures - 1, 30),
+                                      reconnectBackoffMaxMillis);
+        double jitter = ThreadLocalRandom.current().nextDouble(0.8, 1.2);
+        return TimeUnit.MILLISECONDS.toNanos((long) (backoffMillis * jitter));
+    }
+
+    /**
+     * Close idle connections. They are removed by the close listener, so that their ids fail further requests
+     */
+    private void evictIdleConnections() {
+        long idleSince = System.nanoTime() - idleTimeoutNanos;
+        connectionMap.forEach((id, conn) -> {
+            if (conn.isIdleSince(idleSince)) {
+                log.debug("Closing idle connection {}", id);
+                conn.channel.close();
+            }
+        });
+    }
+
+    void evictLeastRecentlyUsed() {
+        evictionScheduled.set(false);
+        int excess = connectionMap.size() - maxConnections;
+        if (excess <= 0) {
+            return;
+        }
+        log.warn("Number of broker connections exceeded {}. Closing {} least recently used connections",
+                 maxConnections, excess);
+        connectionMap.values()
+                     .stream()
+                     // Closing a connection with requests in flight would fail them, while it's in use.
+                     // Already closed ones are about to be removed
+                     .filter(conn -> conn.isUsable() && conn.inFlightRequests() == 0)
+                     // Snapshot the last used time, since it may be updated while sorting
+                     .map(conn -> Map.entry(conn.lastUsedNanos, conn))
+                     .sorted(Entry.comparingByKey())
+                     .limit(excess)
+                     .forEach(e -> e.getValue().channel.close());
+    }
+
+    /**
+     * Close the connection for the id if exists, when the client no longer uses it
+     */
+    public void disconnect(ConnectionId id) {
+        closedConnections.remove(id);
+        KafkaConnection conn = connectionMap.remove(id);
+        if (conn != null) {
+            conn.channel.close();
+        }
     }
 
-    @RequiredArgsConstructor
     @Slf4j
     static class KafkaConnection {
         private static final AttributeKey<KafkaConnection> ATTR_KEY =
@@ -102,54 +424,536 @@ public class KafkaConnections {
 
         private final Channel channel;
         private final CompletableFuture<Void> connectFuture;
-        private CompletableFuture<byte[]> responseFuture;
+        // Whether the connection is shared by clients, whose correlation ids may collide.
+        // If so, correlation ids are rewritten to unique ones and restored in responses
+        private final boolean multiplexed;
+        private int nextCorrelationId;
+        private final InetSocketAddress brokerAddress;
+        // Null if response caching is disabled
+        private final ResponseCache responseCache;
+        // Null if metrics are disabled
+        private final BrokerMeters meters;
+        // 0 if requests don't time out
+        private final long requestTimeoutMillis;
+        // Set once a SASL request is sent. Responses on authenticated connections may depend on the principal
+        private boolean authenticated;
+        // The response of the last request which expects a response, to complete cached responses in order
+        private CompletableFuture<ByteBuf> lastResponseFuture = CompletableFuture.completedFuture(null);
+        // Requests which are sent to the broker and waiting for the response.
+        // Since Kafka broker processes requests on a connection one by one and sends back
+        // responses in the same order, the head of the queue always corresponds to the next response.
+        private final Deque<InFlightRequest> inFlightRequests = new ArrayDeque<>();
+        // Requests which arrived before the connection is established
+        private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+        // Tail of the chain of send operations, to preserve the order of send() calls
+        private CompletableFuture<Void> sendChain = CompletableFuture.completedFuture(null);
+        // The last request of each client being received, which its next request waits for before joining
+        // sendChain. Used only if multiplexed
+        private final Map<ConnectionId, CompletableFuture<Void>> clientChains = new HashMap<>();
+        private boolean connected;
+        // Pulls the next chunk of the request body being streamed, once the channel gets writable
+        private Runnable writabilityListener;
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        @Value
+        @Accessors(fluent = true)
+        private static class InFlightRequest {
+            int correlationId;
+            // The correlation id the client sent, which differs from correlationId if multiplexed
+            int clientCorrelationId;
+            CompletableFuture<ByteBuf> responseFuture;
+            RequestTimer timer;
+        }
+
+        @Value
+        @Accessors(fluent = true)
+        private static class PendingWrite {
+            ByteBuf request;
+            // Non-null only when the request doesn't expect a response
+            CompletableFuture<ByteBuf> noResponseFuture;
+            // Non-null only for the last part of a request
+            RequestTimer timer;
+        }
+
+        KafkaConnection(Channel channel,
+                        CompletableFuture<Void> connectFuture,
+                        boolean multiplexed,
+                        InetSocketAddress brokerAddress,
+                        ResponseCache responseCache,
+                        BrokerMeters meters,
+                        long requestTimeoutMillis) {
+            this.channel = channel;
+            this.connectFuture = connectFuture;
+            this.multiplexed = multiplexed;
+            this.brokerAddress = brokerAddress;
+            this.responseCache = responseCache;
+            this.meters = meters;
+            this.requestTimeoutMillis = requestTimeoutMillis;
+            connectFuture.whenComplete((v, t) -> {
+                if (t == null) {
+                    flushPendingWrites();
+                } else {
+                    failAll(t);
+                }
+            });
+        }
 
         /**
-         * Send request to Kafka broker and wait for response
+         * Send request to Kafka broker and wait for response.
+         * <p>
+         * Multiple requests can be in-flight at the same time. Requests are written to the broker
+         * in the order of the method calls (even if the request body of a later call becomes available first),
+         * and responses are completed in the same order.
+         * For requests that the broker doesn't respond to (i.e. acks=0 produce), the returned future
+         * is completed with an empty buffer once the request is written.
+         * <p>
+         * The request buffer (including its size prefix) is released once it's written to the broker.
+         * The response is the buffer read from the broker as is, which the caller must release.
+         * If the caller cancels the returned future, the response is released on arrival.
+         * See {@link #cancel(CompletableFuture)} to give up the request on the broker as well.
          */
-        public CompletableFuture<byte[]> send(byte[] request) {
+        public CompletableFuture<ByteBuf> send(CompletableFuture<ByteBuf> requestFuture) {
+            long startNanos = System.nanoTime();
+            // Requests given already received (e.g. WebSocket messages) don't have the receive time
+            return send(requestFuture, requestFuture.isDone() ? ServerMetrics.UNKNOWN_START_NANOS : startNanos);
+        }
+
+        /**
+         * Send a request of the client whose body may not be received yet.
+         * <p>
+         * Same as {@link #send(CompletableFuture)} on a dedicated connection. On a multiplexed connection,
+         * the request joins the order of writes only once its body is entirely received, so that a client
+         * slowly sending the body doesn't hold back other clients sharing the connection.
+         * Requests of the same client are still written in the order of the method calls.
+         */
+        public CompletableFuture<ByteBuf> send(ConnectionId client, CompletableFuture<ByteBuf> requestFuture) {
+            if (!multiplexed) {
+                return send(requestFuture);
+            }
+            long startNanos = requestFuture.isDone() ? ServerMetrics.UNKNOWN_START_NANOS : System.nanoTime();
+            CompletableFuture<ByteBuf> responseFuture = new CompletableFuture<>();
+            CompletableFuture<Void> handedOver = new CompletableFuture<>();
+            CompletableFuture<Void> previous;
             synchronized (this) {
-                if (responseFuture != null) {
-                    throw new IllegalStateException("Request is already in progress");
-                }
-                responseFuture = new CompletableFuture<>();
+                previous = clientChains.put(client, handedOver);
+            }
+            if (previous == null) {
+                previous = CompletableFuture.completedFuture(null);
             }
+            previous.thenCompose(ignore -> requestFuture).whenComplete((buf, t) -> {
+                CompletableFuture<ByteBuf> response = send(
+                        t != null ? CompletableFuture.failedFuture(t) : CompletableFuture.completedFuture(buf),
+                        startNanos);
+                synchronized (this) {
+                    clientChains.remove(client, handedOver);
+                }
+                handedOver.complete(null);
+                response.whenComplete((r, t2) -> {
+                    if (t2 != null) {
+                        responseFuture.completeExceptionally(t2);
+                    } else {
+                        completeOrRelease(responseFuture, r);
+                    }
+                });
+            });
+            return responseFuture;
+        }
 
-            return connectFuture.thenCompose(ignore -> {
-                ByteBuf buf = channel.alloc().buffer(request.length).writeBytes(request);
-                CompletableFuture<Void> writeFuture = new CompletableFuture<>();
-                channel.writeAndFlush(buf).addListener(f -> {
-                    if (f.isSuccess()) {
-                        writeFuture.complete(null);
+        /**
+         * @param startNanos the time the request headers arrived, or {@link ServerMetrics#UNKNOWN_START_NANOS}
+         */
+        private CompletableFuture<ByteBuf> send(CompletableFuture<ByteBuf> requestFuture, long startNanos) {
+            CompletableFuture<ByteBuf> responseFuture = new CompletableFuture<>();
+            lastUsedNanos = System.nanoTime();
+            // The time the body is received, which can be earlier than the preceding requests are sent
+            CompletableFuture<Long> receivedFuture = requestFuture.thenApply(ignore -> System.nanoTime());
+            synchronized (this) {
+                sendChain = sendChain.thenCompose(ignore -> receivedFuture.<Void>handle((receivedNanos, t) -> {
+                    if (t != null) {
+                        responseFuture.completeExceptionally(t);
                     } else {
-                        writeFuture.completeExceptionally(f.cause());
+                        ByteBuf buf = requestFuture.join();
+                        RequestTimer timer = newTimer(buf, startNanos);
+                        timer.received(receivedNanos);
+                        send(buf, timer).whenComplete((response, t2) -> {
+                            if (t2 != null) {
+                                responseFuture.completeExceptionally(t2);
+                            } else {
+                                completeOrRelease(responseFuture, response);
+                            }
+                        });
                     }
+                    return null;
+                }));
+            }
+            return responseFuture;
+        }
+
+        private CompletableFuture<ByteBuf> send(ByteBuf buf, RequestTimer timer) {
+            if (isCacheable(buf)) {
+                CompletableFuture<ByteBuf> responseFuture = new CompletableFuture<>();
+                sendCacheable(buf, responseFuture, timer);
+                return responseFuture;
+            }
+            return sendToBroker(buf, timer);
+        }
+
+        /**
+         * Start timing the request, whose header must be readable
+         *
+         * @param startNanos the time the request headers arrived, or {@link ServerMetrics#UNKNOWN_START_NANOS}
+         */
+        RequestTimer newTimer(ByteBuf request, long startNanos) {
+            if (meters == null) {
+                return RequestTimer.NOOP;
+            }
+            return meters.api(KafkaProtocol.apiKey(request))
+                         .start(4 + request.getInt(request.readerIndex()), startNanos);
+        }
+
+        synchronized int inFlightRequests() {
+            return inFlightRequests.size();
+        }
+
+        /**
+         * Write the request to the broker. Takes the ownership of the buffer
+         */
+        private CompletableFuture<ByteBuf> sendToBroker(ByteBuf buf, RequestTimer timer) {
+            CompletableFuture<ByteBuf> responseFuture = new CompletableFuture<>();
+            boolean expectResponse = KafkaProtocol.expectResponse(buf);
+            int clientCorrelationId = KafkaProtocol.requestCorrelationId(buf);
+            if (multiplexed) {
+                if (KafkaProtocol.isConnectionBound(buf)) {
+                    buf.release();
+                    return CompletableFuture.failedFuture(new UnsupportedOperationException(
+                            "ApiKey " + KafkaProtocol.apiKey(buf) + " can't be sent over a multiplexed connection"));
+                }
+                // Fetch sessions are bound to the client which created it
+                KafkaProtocol.disableFetchSession(buf);
+            }
+            synchronized (this) {
+                if (connectFuture.isCompletedExceptionally()) {
+                    buf.release();
+                    // propagate the connect failure
+                    return connectFuture.thenApply(v -> null);
+                }
+                if (KafkaProtocol.isConnectionBound(buf)) {
+                    authenticated = true;
+                }
+                int correlationId = clientCorrelationId;
+                if (multiplexed) {
+                    correlationId = nextCorrelationId++;
+                    KafkaProtocol.setRequestCorrelationId(buf, correlationId);
+                }
+                if (expectResponse) {
+                    inFlightRequests.addLast(new InFlightRequest(
+                            correlationId, clientCorrelationId, responseFuture, timer));
+                    lastResponseFuture = responseFuture;
+                    scheduleTimeout(responseFuture);
+                }
+                writeOrQueue(buf, expectResponse ? null : responseFuture, timer);
+            }
+            return responseFuture;
+        }
+
+        /**
+         * Returns if the response of the request may be served from the cache
+         */
+        synchronized boolean isCacheable(ByteBuf request) {
+            return responseCache != null && !authenticated && ResponseCache.isCacheable(request);
+        }
+
+        /**
+         * Send the entire request whose response may be served from the cache. Takes the ownership of the buffer.
+         * Even if cached, the response is completed after the responses of preceding requests, same as
+         * responses from the broker.
+         */
+        synchronized void sendCacheable(
+                ByteBuf request, CompletableFuture<ByteBuf> responseFuture, RequestTimer timer) {
+            CompletableFuture<ByteBuf> previous = lastResponseFuture;
+            CompletableFuture<ByteBuf> response;
+            // Whether the request is sent to the broker, which the timer is passed to. Otherwise it's a cache hit
+            boolean[] loaded = new boolean[1];
+            try {
+                response = responseCache.get(brokerAddress, request, () -> {
+                    loaded[0] = true;
+                    return sendToBroker(request.retain(), timer);
                 });
-                return writeFuture.thenCompose(f -> responseFuture);
+            } finally {
+                request.release();
+            }
+            boolean cached = !loaded[0];
+            lastResponseFuture = responseFuture;
+            previous.handle((r, t) -> null).thenCompose(ignore -> response).whenComplete((r, t) -> {
+                if (t != null) {
+                    responseFuture.completeExceptionally(t);
+                } else {
+                    if (cached) {
+                        timer.cached(r.readableBytes());
+                    }
+                    completeOrRelease(responseFuture, r);
+                }
             });
         }
 
         /**
-         * Complete in-flight request with response
+         * Send a request whose body is forwarded chunk by chunk as it arrives.
+         * Requests are written in the order of send() calls, same as {@link #send(CompletableFuture)}.
+         * <p>
+         * Bodies are not interleaved on the broker connection, so the body of a request is pulled only after
+         * the previous request is entirely written. Until then, a following request (e.g. pipelined in
+         * another HTTP/2 stream) is held in Armeria, bounded by the HTTP/2 flow-control window.
+         * Receiving bodies of the same Kafka connection is serialized this way, while the responses are
+         * still pipelined since they are awaited only after writing.
+         */
+        public CompletableFuture<ByteBuf> send(StreamingRequest request) {
+            if (multiplexed) {
+                throw new IllegalStateException("Streaming requests can't be sent over a multiplexed connection");
+            }
+            CompletableFuture<ByteBuf> responseFuture = new CompletableFuture<>();
+            lastUsedNanos = System.nanoTime();
+            synchronized (this) {
+                sendChain = sendChain.thenCompose(ignore -> request.start(this, responseFuture));
+            }
+            return responseFuture;
+        }
+
+        /**
+         * Start writing a streamed request with the first chunks, which contain the request header.
+         * Returns false if the connection is not usable.
+         */
+        synchronized boolean beginRequest(
+                ByteBuf head,
+                boolean expectResponse,
+                CompletableFuture<ByteBuf> responseFuture,
+                RequestTimer timer) {
+            if (connectFuture.isCompletedExceptionally()) {
+                head.release();
+                // propagate the connect failure
+                connectFuture.whenComplete((v, t) -> responseFuture.completeExceptionally(t));
+                return false;
+            }
+            if (KafkaProtocol.isConnectionBound(head)) {
+                authenticated = true;
+            }
+            if (expectResponse) {
+                int correlationId = KafkaProtocol.requestCorrelationId(head);
+                inFlightRequests.addLast(new InFlightRequest(correlationId, correlationId, responseFuture, timer));
+                lastResponseFuture = responseFuture;
+                scheduleTimeout(responseFuture);
+            }
+            writeOrQueue(head, null, null);
+            return true;
+        }
+
+        synchronized void writeBody(ByteBuf chunk) {
+            writeOrQueue(chunk, null, null);
+        }
+
+        /**
+         * Finish the streamed request. For a request without a response,
+         * noResponseFuture is completed once the entire request is written.
+         */
+        synchronized void endRequest(CompletableFuture<ByteBuf> noResponseFuture, RequestTimer timer) {
+            // An empty write to be notified when the entire request is written
+            writeOrQueue(Unpooled.EMPTY_BUFFER, noResponseFuture, timer);
+        }
+
+        /**
+         * Called when the streamed request fails in the middle.
+         * Since a partial request has been written, the connection is no longer usable.
+         */
+        void abort(Throwable cause) {
+            failAll(cause);
+            channel.close();
+        }
+
+        /**
+         * Close the connection if the broker doesn't respond to the request in time.
+         * Since responses can't be skipped, all requests in flight fail with the timeout.
+         */
+        private void scheduleTimeout(CompletableFuture<ByteBuf> responseFuture) {
+            if (requestTimeoutMillis <= 0) {
+                return;
+            }
+            ScheduledFuture<?> timeout = channel.eventLoop().schedule(() -> {
+                if (!responseFuture.isDone()) {
+                    log.warn("No response from {} in {} ms. Closing the connection",
+                             brokerAddress, requestTimeoutMillis);
+                    abort(new TimeoutException(
+                            "No response from " + brokerAddress + " in " + requestTimeoutMillis + " ms"));
+                }
+            }, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+            responseFuture.whenComplete((r, t) -> timeout.cancel(false));
+        }
+
+        /**
+         * Give up the request when the client no longer waits for the response (e.g. reset the HTTP stream).
+         * Kafka protocol can't cancel a request, so the connection is closed unless it's shared by other clients,
+         * in which case the response is just released on arrival.
+         */
+        void cancel(CompletableFuture<ByteBuf> responseFuture) {
+            if (responseFuture.cancel(false) && !multiplexed) {
+                log.debug("Request to {} is cancelled by the client. Closing the connection", brokerAddress);
+                abort(new CancellationException("Cancelled by the client"));
+            }
+        }
+
+        /**
+         * Run the task once the connection is established and the channel is writable.
+         * Only the latest task is kept, since a single request body (or WebSocket session) is streamed at a time.
+         */
+        void whenWritable(Runnable task) {
+            synchronized (this) {
+                if (!connected || !channel.isWritable()) {
+                    writabilityListener = task;
+                    return;
+                }
+            }
+            task.run();
+        }
+
+        private void onWritable() {
+            Runnable task;
+            synchronized (this) {
+                task = writabilityListener;
+                writabilityListener = null;
+            }
+            if (task != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Returns if new requests can be sent over the connection.
+         * A connection waiting for the connect (including the backoff) is considered usable.
+         */
+        boolean isUsable() {
+            return channel.isOpen() && !connectFuture.isCompletedExceptionally();
+        }
+
+        /**
+         * Returns if there's no request in progress and the connection hasn't been used since the given time
+         */
+        synchronized boolean isIdleSince(long nanos) {
+            return lastUsedNanos - nanos < 0
+                   && inFlightRequests.isEmpty()
+                   && pendingWrites.isEmpty()
+                   && sendChain.isDone();
+        }
+
+        /**
+         * Run the task once the connection is closed
+         */
+        void whenClosed(Runnable task) {
+            channel.closeFuture().addListener(f -> task.run());
+        }
+
+        /**
+         * Complete the oldest in-flight request with response
          */
-        public void complete(byte[] response) {
-            CompletableFuture<byte[]> responseFuture;
+        public void complete(ByteBuf response) {
+            int size = response.getInt(response.readerIndex());
+            int correlationId = KafkaProtocol.responseCorrelationId(response);
+            lastUsedNanos = System.nanoTime();
+            InFlightRequest request;
             synchronized (this) {
-                if (this.responseFuture == null) {
-                    throw new IllegalStateException("Request is not in progress");
+                request = inFlightRequests.pollFirst();
+            }
+            if (request == null) {
+                response.release();
+                throw new IllegalStateException("Request is not in progress");
+            }
+            if (request.correlationId != correlationId) {
+                response.release();
+                IllegalStateException e = new IllegalStateException(String.format(
+                        "Correlation id mismatch. Expected: %d, Actual: %d",
+                        request.correlationId, correlationId));
+                request.responseFuture.completeExceptionally(e);
+                failAll(e);
+                channel.close();
+                return;
+            }
+            log.debug("Received response. Size: {}, CorrelationId: {}", size, correlationId);
+            request.timer.responded(size + 4);
+            if (multiplexed) {
+                KafkaProtocol.setResponseCorrelationId(response, request.clientCorrelationId);
+            }
+            completeOrRelease(request.responseFuture, response);
+        }
+
+        private static void completeOrRelease(CompletableFuture<ByteBuf> future, ByteBuf response) {
+            if (!future.complete(response)) {
+                // Cancelled by the caller
+                response.release();
+            }
+        }
+
+        /**
+         * Fail all in-flight requests. Should be called when the connection is no longer usable
+         */
+        void failAll(Throwable cause) {
+            List<CompletableFuture<ByteBuf>> futures = new ArrayList<>();
+            synchronized (this) {
+                for (InFlightRequest request : inFlightRequests) {
+                    futures.add(request.responseFuture);
                 }
-                responseFuture = this.responseFuture;
-                this.responseFuture = null;
+                for (PendingWrite write : pendingWrites) {
+                    if (write.noResponseFuture != null) {
+                        futures.add(write.noResponseFuture);
+                    }
+                }
+                inFlightRequests.clear();
+                for (PendingWrite write : pendingWrites) {
+                    write.request.release();
+                }
+                pendingWrites.clear();
             }
-            if (log.isDebugEnabled()) {
-                ByteBuffer buf = ByteBuffer.allocate(4 + 4);
-                buf.put(response, 0, buf.capacity());
-                buf.flip();
-                log.debug("Received response. Size: {}, CorrelationId: {}",
-                          buf.getInt(),
-                          buf.getInt());
+            for (CompletableFuture<ByteBuf> future : futures) {
+                future.completeExceptionally(cause);
             }
-            responseFuture.complete(response);
+        }
+
+        private void flushPendingWrites() {
+            synchronized (this) {
+                connected = true;
+                PendingWrite write;
+                while ((write = pendingWrites.pollFirst()) != null) {
+                    write(write.request, write.noResponseFuture, write.timer);
+                }
+            }
+            onWritable();
+        }
+
+        // Should be called while holding the lock to preserve the order of requests
+        private void writeOrQueue(
+                ByteBuf buf, CompletableFuture<ByteBuf> noResponseFuture, RequestTimer timer) {
+            if (connected) {
+                write(buf, noResponseFuture, timer);
+            } else {
+                pendingWrites.addLast(new PendingWrite(buf, noResponseFuture, timer));
+            }
+        }
+
+        // Should be called while holding the lock to preserve the order of requests
+        private void write(ByteBuf buf, CompletableFuture<ByteBuf> noResponseFuture, RequestTimer timer) {
+            channel.writeAndFlush(buf).addListener(f -> {
+                if (f.isSuccess()) {
+                    if (timer != null) {
+                        timer.written();
+                    }
+                    if (noResponseFuture != null) {
+                        noResponseFuture.complete(Unpooled.EMPTY_BUFFER);
+                    }
+                } else {
+                    if (noResponseFuture != null) {
+                        noResponseFuture.completeExceptionally(f.cause());
+                    }
+                    log.warn("Failed to write request to the broker", f.cause());
+                    failAll(f.cause());
+                    channel.close();
+                }
+            });
         }
     }
 }
@@ -0,0 +1,419 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * Minimal helpers to peek Kafka protocol fields from a size-prefixed request/response frame
+ * without decoding the entire message.
+ * <p>
+ * All methods read by absolute index so the reader index of the given buffer is never changed.
+ * <p>
+ * Request header accessors and the produce request parsing overlap with the client's KafkaProtocol.
+ * Keep them in sync when changing either.
+ */
+final class KafkaProtocol {
+    static final short API_KEY_PRODUCE = 0;
+    static final short API_KEY_FETCH = 1;
+    static final short API_KEY_METADATA = 3;
+    static final short API_KEY_SASL_HANDSHAKE = 17;
+    static final short API_KEY_API_VERSIONS = 18;
+    static final short API_KEY_SASL_AUTHENTICATE = 36;
+
+    // First flexible (KIP-482) version of ProduceRequest
+    private static final short PRODUCE_FIRST_FLEXIBLE_VERSION = 9;
+    // First version of ProduceRequest which has transactional_id field
+    private static final short PRODUCE_FIRST_TRANSACTIONAL_VERSION = 3;
+    // First flexible versions of MetadataRequest and ApiVersionsRequest
+    private static final short METADATA_FIRST_FLEXIBLE_VERSION = 9;
+    private static final short API_VERSIONS_FIRST_FLEXIBLE_VERSION = 3;
+    // First flexible version of FetchRequest/FetchResponse
+    private static final short FETCH_FIRST_FLEXIBLE_VERSION = 12;
+    // First version of FetchRequest/FetchResponse which has fetch session (KIP-227) fields
+    private static final short FETCH_FIRST_SESSION_VERSION = 7;
+    // First version of FetchRequest which moved replica_id to a tagged field
+    private static final short FETCH_FIRST_REPLICA_STATE_VERSION = 15;
+    // First version of FetchResponse which identifies topics by topic id instead of name
+    private static final short FETCH_FIRST_TOPIC_ID_VERSION = 13;
+    // Enough size to read the attributes of both legacy message sets and record batches
+    private static final int RECORD_BATCH_MIN_SIZE = 8 + 4 + 4 + 1 + 4 + 2;
+    private static final int COMPRESSION_CODEC_MASK = 0x07;
+
+    private KafkaProtocol() {}
+
+    /**
+     * Request header fields which are needed after the request buffer is written (and released)
+     */
+    @Value
+    @Accessors(fluent = true)
+    static class RequestHeader {
+        int size;
+        short apiKey;
+        short apiVersion;
+        int correlationId;
+
+        static RequestHeader of(ByteBuf request) {
+            return new RequestHeader(request.getInt(request.readerIndex()),
+                                     KafkaProtocol.apiKey(request),
+                                     KafkaProtocol.apiVersion(request),
+                                     requestCorrelationId(request));
+        }
+    }
+
+    static short apiKey(ByteBuf request) {
+        return request.getShort(request.readerIndex() + 4);
+    }
+
+    static short apiVersion(ByteBuf request) {
+        return request.getShort(request.readerIndex() + 4 + 2);
+    }
+
+    static int requestCorrelationId(ByteBuf request) {
+        return request.getInt(request.readerIndex() + 4 + 2 + 2);
+    }
+
+    static int responseCorrelationId(ByteBuf response) {
+        return response.getInt(response.readerIndex() + 4);
+    }
+
+    static void setRequestCorrelationId(ByteBuf request, int correlationId) {
+        request.setInt(request.readerIndex() + 4 + 2 + 2, correlationId);
+    }
+
+    static void setResponseCorrelationId(ByteBuf response, int correlationId) {
+        response.setInt(response.readerIndex() + 4, correlationId);
+    }
+
+    /**
+     * Returns if the request depends on the state of the connection it's sent over,
+     * i.e. SASL authentication which authenticates the connection
+     */
+    static boolean isConnectionBound(ByteBuf request) {
+        short apiKey = apiKey(request);
+        return apiKey == API_KEY_SASL_HANDSHAKE || apiKey == API_KEY_SASL_AUTHENTICATE;
+    }
+
+    /**
+     * Returns the index of the request body following the request header, for MetadataRequest and
+     * ApiVersionsRequest, whose responses don't depend on the client. Returns -1 for other APIs.
+     */
+    static int cacheableRequestBodyIndex(ByteBuf request) {
+        short apiKey = apiKey(request);
+        short version = apiVersion(request);
+        boolean flexible;
+        if (apiKey == API_KEY_METADATA) {
+            flexible = version >= METADATA_FIRST_FLEXIBLE_VERSION;
+        } else if (apiKey == API_KEY_API_VERSIONS) {
+            flexible = version >= API_VERSIONS_FIRST_FLEXIBLE_VERSION;
+        } else {
+            return -1;
+        }
+        // skip size, api key, api version and correlation id
+        Reader reader = new Reader(request, request.readerIndex() + 4 + 2 + 2 + 4);
+        // client_id is always encoded as non-compact nullable string even in flexible header
+        reader.skipString(false);
+        if (flexible) {
+            reader.skipTaggedFields();
+        }
+        return reader.index;
+    }
+
+    /**
+     * Rewrite the fetch request in place to be a sessionless full fetch (session_id 0 and session_epoch -1),
+     * so that the broker doesn't create a fetch session for it.
+     * The client keeps sending full fetch requests since the response doesn't have a session id.
+     * Does nothing for other APIs or versions without fetch sessions.
+     */
+    static void disableFetchSession(ByteBuf request) {
+        if (apiKey(request) != API_KEY_FETCH) {
+            return;
+        }
+        short version = apiVersion(request);
+        if (version < FETCH_FIRST_SESSION_VERSION) {
+            return;
+        }
+        // skip size, api key, api version and correlation id
+        Reader reader = new Reader(request, request.readerIndex() + 4 + 2 + 2 + 4);
+        // client_id is always encoded as non-compact nullable string even in flexible header
+        reader.skipString(false);
+        if (version >= FETCH_FIRST_FLEXIBLE_VERSION) {
+            reader.skipTaggedFields();
+        }
+        // replica_id
+        reader.skip(version < FETCH_FIRST_REPLICA_STATE_VERSION ? 4 : 0);
+        // max_wait_ms, min_bytes, max_bytes and isolation_level
+        reader.skip(4 + 4 + 4 + 1);
+        request.setInt(reader.index, 0);
+        request.setInt(reader.index + 4, -1);
+    }
+
+    /**
+     * Returns if the broker sends back a response for the request.
+     * As of current Kafka protocol, only ProduceRequest with acks=0 doesn't have a response.
+     */
+    static boolean expectResponse(ByteBuf request) {
+        if (apiKey(request) != API_KEY_PRODUCE) {
+            return true;
+        }
+        return produceAcks(request) != 0;
+    }
+
+    /**
+     * Returns if the MetadataResponse or ApiVersionsResponse has a non-zero error code, at the top level or in
+     * any topic or partition. Such responses reflect a transient state (e.g. a leader election in progress),
+     * so they shouldn't be served to other clients. Also returns true if the response can't be parsed.
+     */
+    static boolean hasError(short apiKey, short version, ByteBuf response) {
+        try {
+            if (apiKey == API_KEY_API_VERSIONS) {
+                // ApiVersionsResponse always has the non-flexible response header.
+                // Skip size and correlation id
+                return response.getShort(response.readerIndex() + 4 + 4) != 0;
+            }
+            if (apiKey != API_KEY_METADATA) {
+                return false;
+            }
+            boolean flexible = version >= METADATA_FIRST_FLEXIBLE_VERSION;
+            Reader reader = new Reader(response, response.readerIndex() + 4 + 4);
+            if (flexible) {
+                reader.skipTaggedFields();
+            }
+            // throttle_time_ms
+            reader.skip(version >= 3 ? 4 : 0);
+            int numBrokers = reader.arrayLength(flexible);
+            for (int i = 0; i < numBrokers; i++) {
+                // node_id
+                reader.skip(4);
+                // host
+                reader.skipString(flexible);
+                // port
+                reader.skip(4);
+                if (version >= 1) {
+                    // rack
+                    reader.skipString(flexible);
+                }
+                if (flexible) {
+                    reader.skipTaggedFields();
+                }
+            }
+            if (version >= 2) {
+                // cluster_id
+                reader.skipString(flexible);
+            }
+            // controller_id
+            reader.skip(version >= 1 ? 4 : 0);
+            int numTopics = reader.arrayLength(flexible);
+            for (int i = 0; i < numTopics; i++) {
+                if (reader.readShort() != 0) {
+                    return true;
+                }
+                // name
+                reader.skipString(flexible);
+                // topic_id
+                reader.skip(version >= 10 ? 16 : 0);
+                // is_internal
+                reader.skip(version >= 1 ? 1 : 0);
+                int numPartitions = reader.arrayLength(flexible);
+                for (int j = 0; j < numPartitions; j++) {
+                    if (reader.readShort() != 0) {
+                        return true;
+                    }
+                    // partition_index and leader_id
+                    reader.skip(4 + 4);
+                    // leader_epoch
+                    reader.skip(version >= 7 ? 4 : 0);
+                    // replica_nodes, isr_nodes and offline_replicas
+                    for (int k = 0; k < (version >= 5 ? 3 : 2); k++) {
+                        reader.skip(4 * Math.max(reader.arrayLength(flexible), 0));
+                    }
+                    if (flexible) {
+                        reader.skipTaggedFields();
+                    }
+                }
+                // topic_authorized_operations
+                reader.skip(version >= 8 ? 4 : 0);
+                if (flexible) {
+                    reader.skipTaggedFields();
+                }
+            }
+            return false;
+        } catch (IndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns if the record data in the fetch response is mostly compressed by the producers already,
+     * judged by the compression type of the first batch in each partition.
+     * Always returns false for other APIs.
+     */
+    static boolean isCompressedFetchResponse(short apiKey, short version, ByteBuf response) {
+        if (apiKey != API_KEY_FETCH) {
+            return false;
+        }
+        boolean flexible = version >= FETCH_FIRST_FLEXIBLE_VERSION;
+        try {
+            // skip size and correlation id
+            Reader reader = new Reader(response, response.readerIndex() + 4 + 4);
+            if (flexible) {
+                reader.skipTaggedFields();
+            }
+            // throttle_time_ms
+            reader.skip(version >= 1 ? 4 : 0);
+            // error_code and session_id
+            reader.skip(version >= 7 ? 2 + 4 : 0);
+            long compressedBytes = 0;
+            int numTopics = reader.arrayLength(flexible);
+            for (int i = 0; i < numTopics; i++) {
+                if (version >= FETCH_FIRST_TOPIC_ID_VERSION) {
+                    reader.skip(16);
+                } else {
+                    reader.skipString(flexible);
+                }
+                int numPartitions = reader.arrayLength(flexible);
+                for (int j = 0; j < numPartitions; j++) {
+                    // partition_index, error_code and high_watermark
+                    reader.skip(4 + 2 + 8);
+                    // last_stable_offset
+                    reader.skip(version >= 4 ? 8 : 0);
+                    // log_start_offset
+                    reader.skip(version >= 5 ? 8 : 0);
+                    if (version >= 4) {
+                        int numAbortedTransactions = reader.arrayLength(flexible);
+                        for (int k = 0; k < numAbortedTransactions; k++) {
+                            // producer_id and first_offset
+                            reader.skip(8 + 8);
+                            if (flexible) {
+                                reader.skipTaggedFields();
+                            }
+                        }
+                    }
+                    // preferred_read_replica
+                    reader.skip(version >= 11 ? 4 : 0);
+                    int recordsSize = reader.bytesLength(flexible);
+                    if (recordsSize > 0) {
+                        if (isCompressedBatch(response, reader.index, recordsSize)) {
+                            compressedBytes += recordsSize;
+                        }
+                        reader.skip(recordsSize);
+                    }
+                    if (flexible) {
+                        reader.skipTaggedFields();
+                    }
+                }
+                if (flexible) {
+                    reader.skipTaggedFields();
+                }
+            }
+            return compressedBytes * 2 >= response.readableBytes();
+        } catch (IndexOutOfBoundsException e) {
+            // Unknown format. Just consider it as not compressed
+            return false;
+        }
+    }
+
+    /**
+     * Both of legacy message sets and record batches (magic v2) have the magic at offset 16,
+     * and the lowest 3 bits of attributes represent the compression type.
+     */
+    private static boolean isCompressedBatch(ByteBuf buf, int index, int size) {
+        if (size < RECORD_BATCH_MIN_SIZE) {
+            return false;
+        }
+        byte magic = buf.getByte(index + 16);
+        int attributes = magic >= 2 ? buf.getShort(index + 21) : buf.getByte(index + 17);
+        return (attributes & COMPRESSION_CODEC_MASK) != 0;
+    }
+
+    private static short produceAcks(ByteBuf request) {
+        short version = apiVersion(request);
+        boolean flexible = version >= PRODUCE_FIRST_FLEXIBLE_VERSION;
+
+        // skip size, api key, api version and correlation id
+        Reader reader = new Reader(request, request.readerIndex() + 4 + 2 + 2 + 4);
+        // client_id is always encoded as non-compact nullable string even in flexible header
+        reader.skipString(false);
+        if (flexible) {
+            reader.skipTaggedFields();
+        }
+        if (version >= PRODUCE_FIRST_TRANSACTIONAL_VERSION) {
+            reader.skipString(flexible);
+        }
+        return request.getShort(reader.index);
+    }
+
+    /**
+     * Reads fields sequentially from the given index without changing the reader index of the buffer
+     */
+    private static class Reader {
+        private final ByteBuf buf;
+        private int index;
+
+        Reader(ByteBuf buf, int index) {
+            this.buf = buf;
+            this.index = index;
+        }
+
+        void skip(int bytes) {
+            index += bytes;
+        }
+
+        short readShort() {
+            return buf.getShort(advance(2));
+        }
+
+        /**
+         * Skip nullable string. In flexible versions, it's encoded as compact string (length + 1, 0 means null)
+         */
+        void skipString(boolean flexible) {
+            int length = flexible ? readUnsignedVarint() - 1 : buf.getShort(advance(2));
+            index += Math.max(length, 0);
+        }
+
+        /**
+         * Read the length of nullable array. -1 means null
+         */
+        int arrayLength(boolean flexible) {
+            return flexible ? readUnsignedVarint() - 1 : buf.getInt(advance(4));
+        }
+
+        /**
+         * Read the length of nullable bytes. -1 means null
+         */
+        int bytesLength(boolean flexible) {
+            return arrayLength(flexible);
+        }
+
+        void skipTaggedFields() {
+            int numTaggedFields = readUnsignedVarint();
+            for (int i = 0; i < numTaggedFields; i++) {
+                // tag
+                readUnsignedVarint();
+                int size = readUnsignedVarint();
+                index += size;
+            }
+        }
+
+        /**
+         * Returns the current index and advance by the given bytes
+         */
+        private int advance(int bytes) {
+            int current = index;
+            index += bytes;
+            return current;
+        }
+
+        private int readUnsignedVarint() {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buf.getUnsignedByte(index++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
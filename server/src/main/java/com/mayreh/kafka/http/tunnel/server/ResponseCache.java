@@ -0,0 +1,132 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.Value;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Caches responses of MetadataRequest and ApiVersionsRequest for a short time, shared by all clients.
+ * <p>
+ * Responses are keyed by the broker, the api key, the api version and the request body (excluding the header,
+ * so that requests from different client ids and correlation ids share the response).
+ * A cached response is copied with the correlation id of each request.
+ * Concurrent requests for the same key while the response is not cached are collapsed into a single request
+ * to the broker. Responses with error codes are handed to the collapsed requests but not cached.
+ */
+@Slf4j
+class ResponseCache {
+    // Expired entries are purged once the number of entries exceeds this
+    private static final int MAX_ENTRIES = 10000;
+
+    private final long ttlNanos;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    @Value
+    @Accessors(fluent = true)
+    private static class Key {
+        InetSocketAddress brokerAddress;
+        short apiKey;
+        short apiVersion;
+        byte[] body;
+    }
+
+    @Value
+    @Accessors(fluent = true)
+    private static class Entry {
+        // The response without the size prefix, which is completed once the broker responds
+        CompletableFuture<byte[]> response;
+        long expiresAtNanos;
+    }
+
+    ResponseCache(long ttlMillis) {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns if the request is cacheable, which requires only the api key
+     */
+    static boolean isCacheable(ByteBuf request) {
+        return isCacheable(KafkaProtocol.apiKey(request));
+    }
+
+    static boolean isCacheable(short apiKey) {
+        return apiKey == KafkaProtocol.API_KEY_METADATA || apiKey == KafkaProtocol.API_KEY_API_VERSIONS;
+    }
+
+    /**
+     * Returns the response for the cacheable request from the cache, or sends the request by the loader
+     * if not cached. The request buffer is not released by this method.
+     */
+    CompletableFuture<ByteBuf> get(
+            InetSocketAddress brokerAddress, ByteBuf request, Supplier<CompletableFuture<ByteBuf>> loader) {
+        int bodyIndex;
+        try {
+            bodyIndex = KafkaProtocol.cacheableRequestBodyIndex(request);
+        } catch (IndexOutOfBoundsException e) {
+            // Malformed header. Let the broker handle it
+            return loader.get();
+        }
+        Key key = new Key(brokerAddress,
+                          KafkaProtocol.apiKey(request),
+                          KafkaProtocol.apiVersion(request),
+                          ByteBufUtil.getBytes(request, bodyIndex, request.writerIndex() - bodyIndex));
+        int correlationId = KafkaProtocol.requestCorrelationId(request);
+        if (entries.size() > MAX_ENTRIES) {
+            long now = System.nanoTime();
+            entries.values().removeIf(entry -> entry.expiresAtNanos - now < 0);
+            if (entries.size() > MAX_ENTRIES) {
+                return loader.get();
+            }
+        }
+
+        long now = System.nanoTime();
+        CompletableFuture<byte[]> loading = new CompletableFuture<>();
+        Entry entry = entries.compute(key, (k, existing) -> {
+            if (existing != null && existing.expiresAtNanos - now > 0) {
+                return existing;
+            }
+            return new Entry(loading, now + ttlNanos);
+        });
+        if (entry.response != loading) {
+            log.debug("Serving ApiKey {} (version {}) from cache", key.apiKey, key.apiVersion);
+            return entry.response.thenApply(response -> {
+                ByteBuf buf = Unpooled.buffer(4 + response.length);
+                buf.writeInt(response.length);
+                buf.writeBytes(response);
+                KafkaProtocol.setResponseCorrelationId(buf, correlationId);
+                return buf;
+            });
+        }
+
+        CompletableFuture<ByteBuf> responseFuture = new CompletableFuture<>();
+        loader.get().whenComplete((response, t) -> {
+            if (t != null) {
+                // Don't cache failures. Requests waiting for this one fail as well
+                entries.remove(key, entry);
+                loading.completeExceptionally(t);
+                responseFuture.completeExceptionally(t);
+                return;
+            }
+            if (KafkaProtocol.hasError(key.apiKey, key.apiVersion, response)) {
+                log.debug("Not caching ApiKey {} (version {}) with errors", key.apiKey, key.apiVersion);
+                entries.remove(key, entry);
+            }
+            // Copy before handing the response over, since the receiver releases it
+            loading.complete(ByteBufUtil.getBytes(response, response.readerIndex() + 4, response.readableBytes() - 4));
+            if (!responseFuture.complete(response)) {
+                response.release();
+            }
+        });
+        return responseFuture;
+    }
+}
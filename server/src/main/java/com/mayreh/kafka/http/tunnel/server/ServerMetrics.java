@@ -0,0 +1,233 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+
+/**
+ * Micrometer meters of the tunnel server's hot path.
+ * <p>
+ * Request meters are tagged by the broker and the Kafka api key, and looked up from arrays per broker
+ * instead of the registry for each request.
+ * Latency is split into stages: receiving the request body over HTTP, queueing until the request is
+ * entirely written to the broker, and waiting for the broker's response.
+ * Responses served from the response cache (including requests collapsed into another one) are timed
+ * from the request body is received instead, since they are not written to the broker.
+ * <p>
+ * Metrics are disabled without a registry, in which case requests are timed by {@link RequestTimer#NOOP}.
+ */
+class ServerMetrics {
+    static final String PREFIX = "kafka.tunnel.";
+    // Start time of requests which aren't received over HTTP individually (e.g. WebSocket messages)
+    static final long UNKNOWN_START_NANOS = Long.MIN_VALUE;
+    // Large enough to cover all api keys. Out of range api keys are recorded as unknown
+    private static final int MAX_API_KEYS = 128;
+    private static final Duration MIN_EXPECTED_LATENCY = Duration.ofMillis(1);
+    private static final Duration MAX_EXPECTED_LATENCY = Duration.ofSeconds(30);
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<InetSocketAddress, BrokerMeters> brokers = new ConcurrentHashMap<>();
+
+    /**
+     * @param registry the registry to register meters to, or null to disable metrics
+     */
+    ServerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        if (registry == null) {
+            return;
+        }
+        PooledByteBufAllocatorMetric allocator = PooledByteBufAllocator.DEFAULT.metric();
+        Gauge.builder(PREFIX + "buffer.pool.used", allocator, PooledByteBufAllocatorMetric::usedDirectMemory)
+             .description("Memory used by the pooled buffer allocator")
+             .baseUnit("bytes")
+             .tag("area", "direct")
+             .register(registry);
+        Gauge.builder(PREFIX + "buffer.pool.used", allocator, PooledByteBufAllocatorMetric::usedHeapMemory)
+             .description("Memory used by the pooled buffer allocator")
+             .baseUnit("bytes")
+             .tag("area", "heap")
+             .register(registry);
+    }
+
+    boolean enabled() {
+        return registry != null;
+    }
+
+    MeterRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Returns the meters of the broker, or null if metrics are disabled
+     */
+    BrokerMeters broker(InetSocketAddress brokerAddress) {
+        if (registry == null) {
+            return null;
+        }
+        return brokers.computeIfAbsent(brokerAddress, BrokerMeters::new);
+    }
+
+    class BrokerMeters {
+        private final String broker;
+        private final Counter connectFailures;
+        // The last slot is for unknown api keys
+        private final AtomicReferenceArray<ApiMeters> apis = new AtomicReferenceArray<>(MAX_API_KEYS + 1);
+
+        BrokerMeters(InetSocketAddress brokerAddress) {
+            broker = brokerAddress.getHostString() + ':' + brokerAddress.getPort();
+            connectFailures = Counter.builder(PREFIX + "connect.failures")
+                                     .description("Failed attempts to connect to the broker")
+                                     .tag("broker", broker)
+                                     .register(registry);
+        }
+
+        void recordConnectFailure() {
+            connectFailures.increment();
+        }
+
+        ApiMeters api(short apiKey) {
+            int index = apiKey >= 0 && apiKey < MAX_API_KEYS ? apiKey : MAX_API_KEYS;
+            ApiMeters meters = apis.get(index);
+            if (meters == null) {
+                // Registering the same meters is idempotent, so losing the race is harmless
+                meters = new ApiMeters(broker, index < MAX_API_KEYS ? String.valueOf(apiKey) : "unknown",
+                                       ResponseCache.isCacheable(apiKey));
+                if (!apis.compareAndSet(index, null, meters)) {
+                    meters = apis.get(index);
+                }
+            }
+            return meters;
+        }
+    }
+
+    class ApiMeters {
+        private final DistributionSummary requestSize;
+        private final DistributionSummary responseSize;
+        private final Timer receiveTime;
+        private final Timer queueTime;
+        private final Timer brokerTime;
+        // Null unless responses of the api may be served from the cache
+        private final Timer cacheTime;
+
+        ApiMeters(String broker, String api, boolean cacheable) {
+            requestSize = DistributionSummary.builder(PREFIX + "request.size")
+                                             .description("Size of Kafka requests")
+                                             .baseUnit("bytes")
+                                             .tag("broker", broker)
+                                             .tag("apiKey", api)
+                                             .register(registry);
+            responseSize = DistributionSummary.builder(PREFIX + "response.size")
+                                              .description("Size of Kafka responses")
+                                              .baseUnit("bytes")
+                                              .tag("broker", broker)
+                                              .tag("apiKey", api)
+                                              .register(registry);
+            receiveTime = timer("request.receive", "Time to receive the request body over HTTP", broker, api);
+            queueTime = timer("request.queue",
+                              "Time from the request body is received until it's written to the broker",
+                              broker, api);
+            brokerTime = timer("request.broker",
+                               "Time from the request is written until the broker responds", broker, api);
+            cacheTime = cacheable ? timer("request.cache",
+                                          "Time from the request body is received until the response is "
+                                          + "served from the cache", broker, api)
+                                  : null;
+        }
+
+        private Timer timer(String name, String description, String broker, String api) {
+            return Timer.builder(PREFIX + name)
+                        .description(description)
+                        .tag("broker", broker)
+                        .tag("apiKey", api)
+                        .publishPercentileHistogram()
+                        .minimumExpectedValue(MIN_EXPECTED_LATENCY)
+                        .maximumExpectedValue(MAX_EXPECTED_LATENCY)
+                        .register(registry);
+        }
+
+        /**
+         * Start timing a request of the given size
+         *
+         * @param startNanos the time the request headers arrived, or {@link #UNKNOWN_START_NANOS}
+         */
+        RequestTimer start(int requestBytes, long startNanos) {
+            requestSize.record(requestBytes);
+            return new RequestTimer(this, startNanos);
+        }
+    }
+
+    /**
+     * Tracks the stages of a single request.
+     * {@link #written()} and {@link #responded(int)} are called from the broker channel's event loop.
+     */
+    static class RequestTimer {
+        // Shared by all requests when metrics are disabled
+        static final RequestTimer NOOP = new RequestTimer(null, UNKNOWN_START_NANOS) {
+            @Override
+            void received(long nanos) {}
+
+            @Override
+            void written() {}
+
+            @Override
+            void responded(int bytes) {}
+
+            @Override
+            void cached(int bytes) {}
+        };
+
+        private final ApiMeters meters;
+        private final long startNanos;
+        private long readyNanos;
+        private long writtenNanos;
+        private boolean written;
+
+        private RequestTimer(ApiMeters meters, long startNanos) {
+            this.meters = meters;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Called when the request body is entirely received, before the last part of the request is written
+         */
+        void received(long nanos) {
+            readyNanos = nanos;
+            if (startNanos != UNKNOWN_START_NANOS) {
+                meters.receiveTime.record(nanos - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        void written() {
+            writtenNanos = System.nanoTime();
+            written = true;
+            meters.queueTime.record(writtenNanos - readyNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void responded(int bytes) {
+            meters.responseSize.record(bytes);
+            if (written) {
+                meters.brokerTime.record(System.nanoTime() - writtenNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Called instead of {@link #written()} and {@link #responded(int)} when the response is served
+         * from the cache, which only cacheable apis are
+         */
+        void cached(int bytes) {
+            meters.responseSize.record(bytes);
+            meters.cacheTime.record(System.nanoTime() - readyNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.KafkaConnection;
+import com.mayreh.kafka.http.tunnel.server.KafkaProtocol.RequestHeader;
+import com.mayreh.kafka.http.tunnel.server.ServerMetrics.RequestTimer;
+
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpObject;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.stream.SubscriptionOption;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.util.concurrent.EventExecutor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Forwards the body of a proxy request to the broker chunk by chunk as it arrives, instead of aggregating it.
+ * <p>
+ * Chunks are received as pooled buffers and written to the broker as is. The next chunk is pulled only when
+ * the broker channel is writable, so HTTP flow control holds back the client when the broker is slow.
+ * Chunks are accumulated only until the request header can be read, which is necessary to
+ * track the request on the connection before writing it.
+ */
+@Slf4j
+class StreamingRequest implements Subscriber<HttpObject> {
+    // Size, api key, api version and correlation id
+    private static final int REQUEST_HEADER_SIZE = 4 + 2 + 2 + 4;
+
+    private final HttpRequest request;
+    private final EventExecutor executor;
+    // The request is created once the headers arrive
+    private final long startNanos = System.nanoTime();
+    // Completes once the entire body is handed to the connection (or the request fails)
+    private final CompletableFuture<Void> written = new CompletableFuture<>();
+    private final CompletableFuture<RequestHeader> header = new CompletableFuture<>();
+    // Below fields are accessed only from the executor
+    private KafkaConnection connection;
+    private CompletableFuture<ByteBuf> responseFuture;
+    private Subscription subscription;
+    // Accumulates the first chunks until the request header is available. Null once the header is written
+    private CompositeByteBuf head = ByteBufAllocator.DEFAULT.compositeBuffer(Integer.MAX_VALUE);
+    private boolean expectResponse;
+    private RequestTimer timer;
+    // Set when the connection turned out to be unusable, to discard the rest of the body
+    private boolean discarding;
+
+    StreamingRequest(HttpRequest request, EventExecutor executor) {
+        this.request = request;
+        this.executor = executor;
+    }
+
+    /**
+     * The header of the Kafka request, which is available once the first chunks arrive
+     */
+    CompletableFuture<RequestHeader> header() {
+        return header;
+    }
+
+    /**
+     * Start forwarding the body to the connection. Called once all preceding requests are written.
+     */
+    CompletableFuture<Void> start(KafkaConnection connection, CompletableFuture<ByteBuf> responseFuture) {
+        this.connection = connection;
+        this.responseFuture = responseFuture;
+        request.subscribe(this, executor, SubscriptionOption.WITH_POOLED_OBJECTS);
+        return written;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        subscription = s;
+        s.request(1);
+    }
+
+    @Override
+    public void onNext(HttpObject obj) {
+        if (!(obj instanceof HttpData)) {
+            // Trailers
+            subscription.request(1);
+            return;
+        }
+        ByteBuf chunk = ((HttpData) obj).byteBuf();
+        if (discarding) {
+            chunk.release();
+            subscription.request(1);
+            return;
+        }
+        if (head != null) {
+            head.addComponent(true, chunk);
+            if (!writeHead() || discarding) {
+                subscription.request(1);
+                return;
+            }
+        } else {
+            connection.writeBody(chunk);
+        }
+        connection.whenWritable(() -> subscription.request(1));
+    }
+
+    /**
+     * Write the accumulated chunks if the request header is available. Returns false if more chunks are needed
+     */
+    private boolean writeHead() {
+        if (head.readableBytes() < REQUEST_HEADER_SIZE) {
+            return false;
+        }
+        if (connection.isCacheable(head)) {
+            return sendCacheable();
+        }
+        try {
+            // Produce requests need the header and the following fields up to acks
+            expectResponse = KafkaProtocol.expectResponse(head);
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+        RequestHeader requestHeader = RequestHeader.of(head);
+        timer = connection.newTimer(head, startNanos);
+        ByteBuf buf = head;
+        head = null;
+        if (!connection.beginRequest(buf, expectResponse, responseFuture, timer)) {
+            discarding = true;
+            written.complete(null);
+        }
+        header.complete(requestHeader);
+        log.debug("Received request. {}", requestHeader);
+        return true;
+    }
+
+    /**
+     * Cacheable requests are small, so the entire request is accumulated to look up the cache with
+     */
+    private boolean sendCacheable() {
+        if (head.readableBytes() < 4 + head.getInt(head.readerIndex())) {
+            return false;
+        }
+        header.complete(RequestHeader.of(head));
+        timer = connection.newTimer(head, startNanos);
+        timer.received(System.nanoTime());
+        ByteBuf buf = head;
+        head = null;
+        connection.sendCacheable(buf, responseFuture, timer);
+        // Nothing is left to write
+        discarding = true;
+        written.complete(null);
+        return true;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (head != null) {
+            head.release();
+            head = null;
+        } else if (!discarding) {
+            // A part of the request is written to the broker already
+            connection.abort(t);
+        }
+        responseFuture.completeExceptionally(t);
+        header.completeExceptionally(t);
+        written.complete(null);
+    }
+
+    @Override
+    public void onComplete() {
+        if (head != null) {
+            onError(new IllegalArgumentException("Request body is shorter than the Kafka request header"));
+            return;
+        }
+        if (!discarding) {
+            timer.received(System.nanoTime());
+            connection.endRequest(expectResponse ? null : responseFuture, timer);
+        }
+        written.complete(null);
+    }
+}
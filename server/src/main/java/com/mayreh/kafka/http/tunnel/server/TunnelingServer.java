@@ -1,79 +1,225 @@
 package com.mayreh.kafka.http.tunnel.server;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+import com.mayreh.kafka.http.tunnel.server.CompressionPolicy.Codings;
 import com.mayreh.kafka.http.tunnel.server.KafkaConnections.ConnectionId;
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.KafkaConnection;
+import com.mayreh.kafka.http.tunnel.server.KafkaProtocol.RequestHeader;
 
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpHeaderNames;
 import com.linecorp.armeria.common.HttpResponse;
 import com.linecorp.armeria.common.HttpStatus;
-import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.ResponseHeadersBuilder;
 import com.linecorp.armeria.common.SessionProtocol;
 import com.linecorp.armeria.server.HttpService;
 import com.linecorp.armeria.server.Server;
 import com.linecorp.armeria.server.ServerBuilder;
+import com.linecorp.armeria.server.ServiceRequestContext;
 import com.linecorp.armeria.server.logging.LoggingService;
+import com.linecorp.armeria.server.metric.PrometheusExpositionService;
+import com.linecorp.armeria.server.websocket.WebSocketService;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.netty.buffer.ByteBuf;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class TunnelingServer implements AutoCloseable {
+    // Identifies the Kafka connection (or the batcher for batch requests) of a client
+    static final String SESSION_ID_HEADER = "x-kafka-tunnel-session-id";
     private final Server server;
-    private final KafkaConnections connections = new KafkaConnections();
+    private final KafkaConnections connections;
+    private final CompressionPolicy compressionPolicy;
 
     public TunnelingServer(int port) {
-        this(builder -> {
+        this(Config.builder().build(), port);
+    }
+
+    public TunnelingServer(Config config, int port) {
+        this(config, builder -> {
             builder.http(port);
         });
     }
 
     public TunnelingServer(Consumer<ServerBuilder> serverConfigurator) {
+        this(Config.builder().build(), serverConfigurator);
+    }
+
+    public TunnelingServer(Config config, Consumer<ServerBuilder> serverConfigurator) {
+        this(config, null, serverConfigurator);
+    }
+
+    /**
+     * @param meterRegistry the registry to record the server's metrics to, along with Armeria's own metrics.
+     *                      It's not closed by the server. Null disables the server's metrics
+     */
+    public TunnelingServer(Config config, MeterRegistry meterRegistry, Consumer<ServerBuilder> serverConfigurator) {
+        connections = new KafkaConnections(config, new ServerMetrics(meterRegistry));
+        compressionPolicy = new CompressionPolicy(config.compressionTypes(), config.compressionThresholdBytes());
         HttpService proxyService = (ctx, req) -> {
-            String host = req.headers().get("Host");
-            String brokerHost = host.substring(0, host.indexOf(':'));
-            int brokerPort = Integer.parseInt(host.substring(host.indexOf(':') + 1));
+            String host = req.headers().authority();
+            String brokerHost = host.substring(0, host.lastIndexOf(':'));
+            int brokerPort = Integer.parseInt(host.substring(host.lastIndexOf(':') + 1));
             InetSocketAddress brokerAddress = new InetSocketAddress(brokerHost, brokerPort);
-            ConnectionId id = new ConnectionId(ctx.remoteAddress(), brokerAddress);
-            return HttpResponse.of(req.aggregate().thenCompose(agg -> {
-                if (log.isDebugEnabled()) {
-                    ByteBuffer buf = ByteBuffer.allocate(4 + 2 + 2 + 4);
-                    buf.put(agg.content().array(), 0, buf.capacity());
-                    buf.flip();
-                    log.debug("Received request. Size: {}, ApiKey: {}, ApiVersion: {}, CorrelationId: {}",
-                              buf.getInt(),
-                              buf.getShort(),
-                              buf.getShort(),
-                              buf.getInt());
-                }
+            ConnectionId id = connectionId(ctx, req.headers().get(SESSION_ID_HEADER), brokerAddress);
+            Codings codings = compressionPolicy.codings(req.headers());
+            if (codings == null) {
+                return HttpResponse.of(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+            }
+            // The request is passed to the connection as soon as the headers arrive, instead of after
+            // the body is fully received, so that the order of requests multiplexed over an HTTP/2 connection
+            // (each in its own stream) is preserved when writing to the broker.
+            // This also lets the broker connection be established while receiving the body.
+            KafkaConnection connection = connections.getOrConnect(id, ctx.eventLoop().withoutContext());
+            // Multiplexed connections rewrite the request, so it has to be received entirely
+            if (codings.request() == null && !connections.multiplexing()) {
+                StreamingRequest request = new StreamingRequest(req, ctx.eventLoop());
+                CompletableFuture<ByteBuf> response = connection.send(request);
+                ctx.whenRequestCancelling().thenRun(() -> connection.cancel(response));
+                return HttpResponse.of(response.thenCombine(request.header(), (res, header) -> {
+                    return newProxyResponse(codings.response(), header.apiKey(), header.apiVersion(), res);
+                }));
+            }
 
-                return connections
-                        .getOrConnect(id)
-                        .send(agg.content().array())
-                        .thenApply(res -> {
-                            return HttpResponse.of(HttpStatus.OK,
-                                                   MediaType.OCTET_STREAM,
-                                                   res);
-                        });
+            // Compressed body can't be forwarded until it's entirely received and decompressed
+            // (and neither can requests over multiplexed connections)
+            // Captured along with the body, since the connection releases the body once it's written
+            CompletableFuture<RequestHeader> header = new CompletableFuture<>();
+            CompletableFuture<ByteBuf> request = req.aggregate().thenApply(agg -> {
+                ByteBuf body = CompressionPolicy.decode(codings.request(), agg);
+                RequestHeader requestHeader;
+                try {
+                    requestHeader = RequestHeader.of(body);
+                } catch (RuntimeException e) {
+                    body.release();
+                    throw e;
+                }
+                header.complete(requestHeader);
+                log.debug("Received request. {}", requestHeader);
+                return body;
+            });
+            CompletableFuture<ByteBuf> response = connection.send(id, request);
+            // e.g. the client reset the stream, or Armeria's request timeout
+            ctx.whenRequestCancelling().thenRun(() -> connection.cancel(response));
+            return HttpResponse.of(response.thenCombine(header, (res, requestHeader) -> {
+                return newProxyResponse(codings.response(), requestHeader.apiKey(), requestHeader.apiVersion(), res);
             }));
         };
 
+        HttpService batchService = new BatchService(connections, compressionPolicy);
+
+        WebSocketService webSocketService =
+                WebSocketService.builder(new WebSocketTunnelHandler(connections))
+                                .maxFramePayloadLength(config.webSocketMaxFramePayloadLength())
+                                // The client isn't a browser, so it sends no Origin header to check
+                                .allowedOrigins("*")
+                                .build();
+
+        // Session ids are kept out of access logs, since anyone presenting one can use its Kafka connection
+        Function<? super HttpService, LoggingService> loggingDecorator =
+                LoggingService.builder()
+                              .requestHeadersSanitizer((ctx, headers) -> {
+                                  if (!headers.contains(SESSION_ID_HEADER)) {
+                                      return headers;
+                                  }
+                                  return headers.toBuilder().set(SESSION_ID_HEADER, "****").build();
+                              })
+                              .newDecorator();
         ServerBuilder builder = Server.builder()
-                                      .service("/proxy", proxyService.decorate(LoggingService.newDecorator()));
+                                      .idleTimeoutMillis(config.httpIdleTimeoutMillis())
+                                      .service("/ws", webSocketService);
+        builder.route()
+               .path("/proxy")
+               .requestTimeoutMillis(config.httpRequestTimeoutMillis())
+               .build(proxyService.decorate(loggingDecorator));
+        builder.route()
+               .path("/batch")
+               .requestTimeoutMillis(config.httpRequestTimeoutMillis())
+               .build(batchService.decorate(loggingDecorator));
+        if (config.brokerEventLoopAffinity()) {
+            // Shut down by the connections after the server stops
+            builder.workerGroup(connections.eventLoopGroup(), false);
+        }
+        if (meterRegistry != null) {
+            builder.meterRegistry(meterRegistry);
+        }
         serverConfigurator.accept(builder);
         server = builder.build();
         server.start().join();
     }
 
-    public static void main(String[] args) {
+    /**
+     * Identifies the Kafka connection of a request by the session id,
+     * or by the remote address of the HTTP connection if the client didn't send a session id
+     */
+    static ConnectionId connectionId(
+            ServiceRequestContext ctx, String sessionId, InetSocketAddress brokerAddress) {
+        if (sessionId == null) {
+            return new ConnectionId(ctx.remoteAddress(), null, brokerAddress);
+        }
+        return new ConnectionId(null, sessionId, brokerAddress);
+    }
+
+    /**
+     * Build the response with the broker's response buffer, which is released by Armeria
+     * once it's written or the response is aborted (e.g. the client reset the stream)
+     */
+    private HttpResponse newProxyResponse(
+            Compression compression, short apiKey, short apiVersion, ByteBuf response) {
+        ResponseHeadersBuilder headers = compressionPolicy.responseHeaders();
+        try {
+            ByteBuf compressed = compressionPolicy.compress(compression, apiKey, apiVersion, response);
+            if (compressed != null) {
+                response.release();
+                headers.set(HttpHeaderNames.CONTENT_ENCODING, compression.id());
+                return HttpResponse.of(headers.build(), HttpData.wrap(compressed));
+            }
+        } catch (IOException e) {
+            response.release();
+            throw new UncheckedIOException(e);
+        }
+        return HttpResponse.of(headers.build(), HttpData.wrap(response));
+    }
+
+    public static void main(String[] args) throws IOException {
         int port = 0;
         if (args.length > 0) {
             port = Integer.parseInt(args[0]);
         }
-        TunnelingServer server = new TunnelingServer(port);
+        Config config = Config.builder().build();
+        if (args.length > 1) {
+            config = Config.load(Paths.get(args[1]));
+        }
+        TunnelingServer server = newStandalone(config, port);
         Runtime.getRuntime().addShutdownHook(new Thread(server::close));
     }
 
+    /**
+     * The server run by {@link #main}, which serves metrics on {@link Config#metricsPort()} if it's set
+     */
+    static TunnelingServer newStandalone(Config config, int port) {
+        if (config.metricsPort() == 0) {
+            return new TunnelingServer(config, port);
+        }
+        PrometheusMeterRegistry meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        return new TunnelingServer(config, meterRegistry, builder -> {
+            builder.http(port).http(config.metricsPort());
+            // Port-based virtual host, so that metrics aren't served on the tunnel port and vice versa
+            builder.virtualHost(config.metricsPort())
+                   .service("/metrics", PrometheusExpositionService.of(meterRegistry.getPrometheusRegistry()));
+        });
+    }
+
     public int httpPort() {
         return server.activeLocalPort(SessionProtocol.HTTP);
     }
@@ -86,5 +232,6 @@ public class TunnelingServer implements AutoCloseable {
     public void close() {
         server.stop().join();
         server.close();
+        connections.close();
     }
 }
@@ -0,0 +1,146 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.ConnectionId;
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.KafkaConnection;
+
+import com.linecorp.armeria.common.websocket.WebSocket;
+import com.linecorp.armeria.common.websocket.WebSocketFrame;
+import com.linecorp.armeria.common.websocket.WebSocketFrameType;
+import com.linecorp.armeria.common.websocket.WebSocketWriter;
+import com.linecorp.armeria.server.ServiceRequestContext;
+import com.linecorp.armeria.server.websocket.WebSocketServiceHandler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bridges a WebSocket session to a dedicated broker connection.
+ * <p>
+ * The broker is specified by the authority of the upgrade request, same as the proxy endpoint.
+ * Each binary message from the client carries a single Kafka request (including the size prefix), and
+ * each Kafka response is sent back as a binary message in the order of the requests.
+ * The broker connection is closed when the session ends, and vice versa (e.g. the broker closed the connection
+ * or it's evicted), so that the Kafka client notices the disconnection.
+ * <p>
+ * The next message is pulled only once the broker connection is writable, so that a slow broker
+ * holds back the client by the flow control of the WebSocket connection.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class WebSocketTunnelHandler implements WebSocketServiceHandler {
+    private final KafkaConnections connections;
+
+    @Override
+    public WebSocket handle(ServiceRequestContext ctx, WebSocket in) {
+        String host = ctx.request().headers().authority();
+        InetSocketAddress brokerAddress = new InetSocketAddress(
+                host.substring(0, host.lastIndexOf(':')),
+                Integer.parseInt(host.substring(host.lastIndexOf(':') + 1)));
+        String sessionId = ctx.request().headers().get(TunnelingServer.SESSION_ID_HEADER);
+        if (sessionId == null) {
+            // A WebSocket session is dedicated to a Kafka connection, so the request identifies it as well
+            sessionId = ctx.id().text();
+        }
+        ConnectionId id = TunnelingServer.connectionId(ctx, sessionId, brokerAddress);
+        WebSocketWriter out = WebSocket.streaming();
+        KafkaConnection connection = connections.getOrConnect(id, ctx.eventLoop().withoutContext());
+        connection.whenClosed(() -> out.close());
+        in.subscribe(new FrameSubscriber(id, connection, out));
+        return out;
+    }
+
+    @RequiredArgsConstructor
+    private class FrameSubscriber implements Subscriber<WebSocketFrame> {
+        private final ConnectionId id;
+        private final KafkaConnection connection;
+        private final WebSocketWriter out;
+        // Accumulates a fragmented message. Accessed only from the subscriber's executor
+        private ByteArrayOutputStream fragments;
+        private Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(WebSocketFrame frame) {
+            byte[] request;
+            try {
+                request = toRequest(frame);
+            } finally {
+                frame.close();
+            }
+            if (request == null) {
+                subscription.request(1);
+                return;
+            }
+            send(request);
+            connection.whenWritable(() -> subscription.request(1));
+        }
+
+        /**
+         * Returns the Kafka request once the message is complete, or null otherwise
+         */
+        private byte[] toRequest(WebSocketFrame frame) {
+            WebSocketFrameType type = frame.type();
+            if (type != WebSocketFrameType.BINARY && type != WebSocketFrameType.CONTINUATION) {
+                return null;
+            }
+            if (frame.isFinalFragment() && fragments == null) {
+                return frame.array();
+            }
+            if (fragments == null) {
+                fragments = new ByteArrayOutputStream();
+            }
+            fragments.writeBytes(frame.array());
+            if (!frame.isFinalFragment()) {
+                return null;
+            }
+            byte[] request = fragments.toByteArray();
+            fragments = null;
+            return request;
+        }
+
+        private void send(byte[] request) {
+            // Responses are completed in the order of the requests, so they are written to the session in order.
+            // Requests without responses (i.e. acks=0 produce) are completed with an empty buffer
+            ByteBuf buf = Unpooled.wrappedBuffer(request);
+            connection.send(CompletableFuture.completedFuture(buf)).whenComplete((response, t) -> {
+                if (t != null) {
+                    log.warn("Failed to proxy request to {}", id.brokerAddress(), t);
+                    out.close(t);
+                } else if (response.isReadable()) {
+                    // The broker's buffer is written as is and released by Armeria
+                    WebSocketFrame frame = WebSocketFrame.ofPooledBinary(response);
+                    if (!out.tryWrite(frame)) {
+                        frame.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.debug("WebSocket session failed", t);
+            connections.disconnect(id);
+            out.close(t);
+        }
+
+        @Override
+        public void onComplete() {
+            connections.disconnect(id);
+            out.close();
+        }
+    }
+}
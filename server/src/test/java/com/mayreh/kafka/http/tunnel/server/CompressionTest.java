@@ -0,0 +1,35 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+public class CompressionTest {
+    @ParameterizedTest
+    @EnumSource(Compression.class)
+    public void testRoundTrip(Compression compression) throws IOException {
+        byte[] payload = new byte[256 * 1024];
+        new Random(0).nextBytes(payload);
+        ByteBuf data = Unpooled.wrappedBuffer(payload);
+
+        ByteBuf compressed = compression.compress(data, ByteBufAllocator.DEFAULT);
+        ByteBuf decompressed = compression.decompress(compressed, ByteBufAllocator.DEFAULT);
+        try {
+            assertArrayEquals(payload, ByteBufUtil.getBytes(decompressed));
+            // Neither the input nor the reader index is consumed
+            assertArrayEquals(payload, ByteBufUtil.getBytes(data));
+        } finally {
+            compressed.release();
+            decompressed.release();
+        }
+    }
+}
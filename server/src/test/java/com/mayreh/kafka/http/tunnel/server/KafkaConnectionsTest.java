@@ -0,0 +1,419 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.requests.MetadataRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.ConnectionId;
+import com.mayreh.kafka.http.tunnel.server.KafkaConnections.KafkaConnection;
+import com.mayreh.kafka.http.tunnel.server.ServerMetrics.RequestTimer;
+
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.server.ServiceRequestContext;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+
+public class KafkaConnectionsTest {
+    private KafkaConnections connections;
+
+    @AfterEach
+    public void tearDown() {
+        if (connections != null) {
+            connections.close();
+        }
+    }
+
+    private static KafkaConnections newConnections(Config config) {
+        return new KafkaConnections(config, new ServerMetrics(new SimpleMeterRegistry()));
+    }
+
+    private static ByteBuf request() {
+        return KafkaProtocolTest.requestHeader(ApiKeys.FETCH, (short) 12);
+    }
+
+    /**
+     * Request which can be sent over multiplexed connections as is, unlike a fetch request without the body
+     */
+    private static ByteBuf metadataRequest() {
+        return KafkaProtocolTest.requestHeader(ApiKeys.METADATA, (short) 12);
+    }
+
+    /**
+     * Address nobody listens on, which refuses connections immediately
+     */
+    private static InetSocketAddress refusingAddress() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        }
+    }
+
+    private static void awaitClosed(KafkaConnection conn) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (conn.isUsable() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(conn.isUsable());
+    }
+
+    @Test
+    public void testBackoffNanos() {
+        connections = newConnections(Config.builder()
+                                           .brokerReconnectBackoffMillis(100)
+                                           .brokerReconnectBackoffMaxMillis(1000)
+                                           .build());
+        // Doubled per failure with 20% jitter, up to the max
+        assertBetween(80, 120, connections.backoffNanos(1));
+        assertBetween(160, 240, connections.backoffNanos(2));
+        assertBetween(320, 480, connections.backoffNanos(3));
+        assertBetween(800, 1200, connections.backoffNanos(5));
+        // Doesn't overflow however many times it fails
+        assertBetween(800, 1200, connections.backoffNanos(100));
+    }
+
+    private static void assertBetween(long minMillis, long maxMillis, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        assertTrue(minMillis <= millis && millis <= maxMillis,
+                   millis + " ms is not in [" + minMillis + ", " + maxMillis + ']');
+    }
+
+    @Test
+    public void testReconnectAfterConnectFailureIsDelayed() throws Exception {
+        connections = newConnections(Config.builder()
+                                           .brokerReconnectBackoffMillis(500)
+                                           .brokerReconnectBackoffMaxMillis(500)
+                                           .build());
+        InetSocketAddress broker = refusingAddress();
+        ConnectionId session1 = new ConnectionId(null, "session-1", broker);
+        CompletableFuture<ByteBuf> first = connections.getOrConnect(session1, null)
+                                                      .send(CompletableFuture.completedFuture(request()));
+        assertThrows(ExecutionException.class, () -> first.get(10, TimeUnit.SECONDS));
+
+        long startNanos = System.nanoTime();
+        ConnectionId session2 = new ConnectionId(null, "session-2", broker);
+        CompletableFuture<ByteBuf> second = connections.getOrConnect(session2, null)
+                                                       .send(CompletableFuture.completedFuture(request()));
+        assertThrows(ExecutionException.class, () -> second.get(10, TimeUnit.SECONDS));
+        // 500 ms with 20% jitter, minus the time elapsed since the first failure
+        assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void testClosedConnectionIsNotReplaced() throws Exception {
+        connections = newConnections(Config.builder().build());
+        ConnectionId id = new ConnectionId(null, "session-1", refusingAddress());
+        KafkaConnection conn = connections.getOrConnect(id, null);
+        CompletableFuture<ByteBuf> response = conn.send(CompletableFuture.completedFuture(request()));
+        assertThrows(ExecutionException.class, () -> response.get(10, TimeUnit.SECONDS));
+        awaitClosed(conn);
+
+        // The Kafka connection of the session is broken, so further requests fail
+        assertSame(conn, connections.getOrConnect(id, null));
+        CompletableFuture<ByteBuf> next = connections.getOrConnect(id, null)
+                                                     .send(CompletableFuture.completedFuture(request()));
+        assertThrows(ExecutionException.class, () -> next.get(10, TimeUnit.SECONDS));
+
+        // Until the client disconnects it
+        connections.disconnect(id);
+        assertNotSame(conn, connections.getOrConnect(id, null));
+    }
+
+    @Test
+    public void testMetricsDisabled() throws Exception {
+        connections = new KafkaConnections(Config.builder().build(), new ServerMetrics(null));
+        KafkaConnection conn = connections.getOrConnect(new ConnectionId(null, "session-1", refusingAddress()), null);
+        assertSame(RequestTimer.NOOP, conn.newTimer(request(), ServerMetrics.UNKNOWN_START_NANOS));
+        CompletableFuture<ByteBuf> response = conn.send(CompletableFuture.completedFuture(request()));
+        assertThrows(ExecutionException.class, () -> response.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSessionIdentifiesConnectionAcrossAddresses() throws Exception {
+        connections = newConnections(Config.builder().build());
+        InetSocketAddress broker = refusingAddress();
+        // Requests of a session through different nodes of a load balancer
+        ServiceRequestContext viaNode1 = ServiceRequestContext.builder(HttpRequest.of(HttpMethod.POST, "/proxy"))
+                                                              .remoteAddress(new InetSocketAddress("192.0.2.1", 50000))
+                                                              .build();
+        ServiceRequestContext viaNode2 = ServiceRequestContext.builder(HttpRequest.of(HttpMethod.POST, "/proxy"))
+                                                              .remoteAddress(new InetSocketAddress("192.0.2.2", 50000))
+                                                              .build();
+        ConnectionId id = TunnelingServer.connectionId(viaNode1, "session-1", broker);
+        assertEquals(id, TunnelingServer.connectionId(viaNode2, "session-1", broker));
+        assertSame(connections.getOrConnect(id, null),
+                   connections.getOrConnect(TunnelingServer.connectionId(viaNode2, "session-1", broker), null));
+        assertNotEquals(id, TunnelingServer.connectionId(viaNode1, "session-2", broker));
+
+        // Without a session id, HTTP connections identify Kafka connections
+        assertNotEquals(TunnelingServer.connectionId(viaNode1, null, broker),
+                        TunnelingServer.connectionId(viaNode2, null, broker));
+
+        // Channels of a batcher are identified within its session, or its HTTP connection without a session
+        assertEquals(new ConnectionId(null, "session-1/3", broker),
+                     new ConnectionId(null, "session-1", null).channel(3, broker));
+        InetSocketAddress remote = new InetSocketAddress(InetAddress.getLoopbackAddress(), 50000);
+        assertEquals(new ConnectionId(remote, "3", broker), new ConnectionId(remote, null, null).channel(3, broker));
+    }
+
+    @Test
+    public void testEvictionSkipsConnectionsWithInFlightRequests() throws Exception {
+        connections = newConnections(Config.builder().maxBrokerConnections(1).build());
+        // Accepts connections by the backlog but never responds
+        try (ServerSocket broker = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(broker.getInetAddress(), broker.getLocalPort());
+            KafkaConnection busy = connections.getOrConnect(new ConnectionId(null, "busy", address), null);
+            CompletableFuture<ByteBuf> response = busy.send(CompletableFuture.completedFuture(request()));
+            assertFalse(response.isDone());
+
+            // Exceeds the limit, while the least recently used one is waiting for the response
+            ConnectionId idleId = new ConnectionId(null, "idle", address);
+            KafkaConnection idle = connections.getOrConnect(idleId, null);
+            awaitClosed(idle);
+            assertTrue(busy.isUsable());
+            assertFalse(response.isDone());
+            assertSame(idle, connections.getOrConnect(idleId, null));
+        }
+    }
+
+    @Test
+    public void testRequestTimeoutFailsAllInFlightRequests() throws Exception {
+        connections = newConnections(Config.builder().brokerRequestTimeoutMillis(200).build());
+        // Accepts connections by the backlog but never responds
+        try (ServerSocket broker = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            ConnectionId id = new ConnectionId(
+                    null, "session-1", new InetSocketAddress(broker.getInetAddress(), broker.getLocalPort()));
+            KafkaConnection conn = connections.getOrConnect(id, null);
+            CompletableFuture<ByteBuf> first = conn.send(CompletableFuture.completedFuture(request()));
+            CompletableFuture<ByteBuf> second = conn.send(CompletableFuture.completedFuture(request()));
+
+            // The response of the first can't be skipped, so the second fails along with it
+            for (CompletableFuture<ByteBuf> response : List.of(first, second)) {
+                ExecutionException e = assertThrows(ExecutionException.class,
+                                                     () -> response.get(10, TimeUnit.SECONDS));
+                assertInstanceOf(TimeoutException.class, e.getCause());
+            }
+            awaitClosed(conn);
+
+            // Further requests of the Kafka connection fail instead of going to a new broker connection
+            assertSame(conn, connections.getOrConnect(id, null));
+            CompletableFuture<ByteBuf> next = connections.getOrConnect(id, null)
+                                                         .send(CompletableFuture.completedFuture(request()));
+            assertThrows(ExecutionException.class, () -> next.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCancelClosesDedicatedConnection() throws Exception {
+        connections = newConnections(Config.builder().build());
+        // Accepts connections by the backlog but never responds
+        try (ServerSocket broker = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            ConnectionId id = new ConnectionId(
+                    null, "session-1", new InetSocketAddress(broker.getInetAddress(), broker.getLocalPort()));
+            KafkaConnection conn = connections.getOrConnect(id, null);
+            CompletableFuture<ByteBuf> cancelled = conn.send(CompletableFuture.completedFuture(request()));
+            CompletableFuture<ByteBuf> following = conn.send(CompletableFuture.completedFuture(request()));
+            conn.send(CompletableFuture.completedFuture(request()));
+
+            conn.cancel(cancelled);
+            assertTrue(cancelled.isCancelled());
+            // Other requests in flight fail along with it, since the connection is closed
+            assertThrows(CancellationException.class, () -> following.get(10, TimeUnit.SECONDS));
+            awaitClosed(conn);
+
+            // Further requests of the Kafka connection fail instead of going to a new broker connection
+            assertSame(conn, connections.getOrConnect(id, null));
+            CompletableFuture<ByteBuf> next = connections.getOrConnect(id, null)
+                                                         .send(CompletableFuture.completedFuture(request()));
+            assertThrows(ExecutionException.class, () -> next.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCancelKeepsMultiplexedConnection() throws Exception {
+        connections = newConnections(Config.builder()
+                                           .brokerConnectionMultiplexing(true)
+                                           .multiplexedConnectionsPerBroker(1)
+                                           .build());
+        // Responds only when the test tells to
+        try (ServerSocket broker = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(broker.getInetAddress(), broker.getLocalPort());
+            ConnectionId client1 = new ConnectionId(null, "client-1", address);
+            ConnectionId client2 = new ConnectionId(null, "client-2", address);
+            KafkaConnection conn = connections.getOrConnect(client1, null);
+            CompletableFuture<ByteBuf> cancelled =
+                    conn.send(client1, CompletableFuture.completedFuture(metadataRequest()));
+            CompletableFuture<ByteBuf> other = conn.send(client2, CompletableFuture.completedFuture(metadataRequest()));
+
+            try (Socket socket = broker.accept();
+                 DataInputStream in = new DataInputStream(socket.getInputStream());
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                int firstCorrelationId = readRequest(in);
+                int secondCorrelationId = readRequest(in);
+                conn.cancel(cancelled);
+                assertTrue(cancelled.isCancelled());
+
+                // The response of the cancelled request is discarded on arrival, and the other client's follows
+                respond(out, firstCorrelationId);
+                respond(out, secondCorrelationId);
+                ByteBuf response = other.get(10, TimeUnit.SECONDS);
+                assertEquals(1, KafkaProtocol.responseCorrelationId(response));
+                response.release();
+                assertTrue(conn.isUsable());
+                assertSame(conn, connections.getOrConnect(client1, null));
+            }
+        }
+    }
+
+    @Test
+    public void testCachedResponsesAreTimed() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        connections = new KafkaConnections(Config.builder().responseCacheTtlMillis(60_000).build(),
+                                           new ServerMetrics(registry));
+        try (ServerSocket broker = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            ConnectionId id = new ConnectionId(
+                    null, "session-1", new InetSocketAddress(broker.getInetAddress(), broker.getLocalPort()));
+            KafkaConnection conn = connections.getOrConnect(id, null);
+            MetadataRequest request = MetadataRequest.Builder.allTopics().build((short) 12);
+            CompletableFuture<ByteBuf> loaded =
+                    conn.send(CompletableFuture.completedFuture(KafkaProtocolTest.serialize(request, 1)));
+            // Collapsed into the first one, which is waiting for the response
+            CompletableFuture<ByteBuf> collapsed =
+                    conn.send(CompletableFuture.completedFuture(KafkaProtocolTest.serialize(request, 2)));
+            try (Socket socket = broker.accept();
+                 DataInputStream in = new DataInputStream(socket.getInputStream());
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                assertEquals(1, readRequest(in));
+                ByteBuf response = KafkaProtocolTest.metadataResponse((short) 12, Errors.NONE, Errors.NONE);
+                out.write(response.array(), response.arrayOffset(), response.readableBytes());
+                out.flush();
+                loaded.get(10, TimeUnit.SECONDS).release();
+                collapsed.get(10, TimeUnit.SECONDS).release();
+            }
+            // Served from the cache
+            conn.send(CompletableFuture.completedFuture(KafkaProtocolTest.serialize(request, 3)))
+                .get(10, TimeUnit.SECONDS).release();
+        }
+
+        String apiKey = String.valueOf(ApiKeys.METADATA.id);
+        assertEquals(3, registry.get("kafka.tunnel.response.size").tag("apiKey", apiKey).summary().count());
+        assertEquals(1, registry.get("kafka.tunnel.request.broker").tag("apiKey", apiKey).timer().count());
+        assertEquals(2, registry.get("kafka.tunnel.request.cache").tag("apiKey", apiKey).timer().count());
+    }
+
+    /**
+     * Read a request on the broker side, returning its correlation id
+     */
+    private static int readRequest(DataInputStream in) throws IOException {
+        byte[] request = new byte[in.readInt()];
+        in.readFully(request);
+        return ((request[4] & 0xff) << 24) | ((request[5] & 0xff) << 16)
+               | ((request[6] & 0xff) << 8) | (request[7] & 0xff);
+    }
+
+    /**
+     * Write a response with an empty body on the broker side
+     */
+    private static void respond(DataOutputStream out, int correlationId) throws IOException {
+        out.writeInt(4);
+        out.writeInt(correlationId);
+        out.flush();
+    }
+
+    /**
+     * Responds to each request with an empty body, recording the correlation ids it received
+     */
+    private static class EchoBroker implements AutoCloseable {
+        private final ServerSocket socket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        private final List<Integer> correlationIds = new CopyOnWriteArrayList<>();
+
+        EchoBroker() throws IOException {
+            Thread thread = new Thread(() -> {
+                try (Socket conn = socket.accept();
+                     DataInputStream in = new DataInputStream(conn.getInputStream());
+                     DataOutputStream out = new DataOutputStream(conn.getOutputStream())) {
+                    while (true) {
+                        int correlationId = readRequest(in);
+                        correlationIds.add(correlationId);
+                        respond(out, correlationId);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }, "echo-broker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testMultiplexedConnection() throws Exception {
+        connections = newConnections(Config.builder()
+                                           .brokerConnectionMultiplexing(true)
+                                           .multiplexedConnectionsPerBroker(1)
+                                           .build());
+        try (EchoBroker broker = new EchoBroker()) {
+            ConnectionId client1 = new ConnectionId(null, "client-1", broker.address());
+            ConnectionId client2 = new ConnectionId(null, "client-2", broker.address());
+            KafkaConnection conn = connections.getOrConnect(client1, null);
+            assertSame(conn, connections.getOrConnect(client2, null));
+
+            // Both clients use correlation id 1, and client-1 is still sending its first request body
+            CompletableFuture<ByteBuf> slowBody = new CompletableFuture<>();
+            CompletableFuture<ByteBuf> slow = conn.send(client1, slowBody);
+            CompletableFuture<ByteBuf> following =
+                    conn.send(client1, CompletableFuture.completedFuture(metadataRequest()));
+            CompletableFuture<ByteBuf> other = conn.send(client2, CompletableFuture.completedFuture(metadataRequest()));
+
+            // client-2 doesn't wait for client-1's body, while client-1's requests stay in order
+            ByteBuf otherResponse = other.get(10, TimeUnit.SECONDS);
+            assertFalse(following.isDone());
+            slowBody.complete(metadataRequest());
+            ByteBuf slowResponse = slow.get(10, TimeUnit.SECONDS);
+            ByteBuf followingResponse = following.get(10, TimeUnit.SECONDS);
+
+            // Correlation ids are unique on the connection, and restored in responses
+            assertEquals(3, new HashSet<>(broker.correlationIds).size());
+            for (ByteBuf response : List.of(otherResponse, slowResponse, followingResponse)) {
+                assertEquals(1, KafkaProtocol.responseCorrelationId(response));
+                response.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import org.apache.kafka.common.TopicIdPartition;
+import org.apache.kafka.common.Uuid;
+import org.apache.kafka.common.message.ApiVersionsResponseData;
+import org.apache.kafka.common.message.FetchRequestData;
+import org.apache.kafka.common.message.FetchResponseData;
+import org.apache.kafka.common.message.MetadataResponseData;
+import org.apache.kafka.common.message.MetadataResponseData.MetadataResponsePartition;
+import org.apache.kafka.common.message.MetadataResponseData.MetadataResponseTopic;
+import org.apache.kafka.common.message.MetadataResponseData.MetadataResponseTopicCollection;
+import org.apache.kafka.common.message.ProduceRequestData;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceDataCollection;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.protocol.MessageUtil;
+import org.apache.kafka.common.protocol.ObjectSerializationCache;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.AbstractRequest;
+import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.ApiVersionsRequest;
+import org.apache.kafka.common.requests.ApiVersionsResponse;
+import org.apache.kafka.common.requests.FetchRequest;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.requests.MetadataRequest;
+import org.apache.kafka.common.requests.MetadataResponse;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.requests.ResponseHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class KafkaProtocolTest {
+    static ByteBuf sizePrefixed(ByteBuffer serialized) {
+        ByteBuf buf = Unpooled.buffer(4 + serialized.remaining());
+        buf.writeInt(serialized.remaining());
+        buf.writeBytes(serialized);
+        return buf;
+    }
+
+    static ByteBuf serialize(AbstractRequest request, int correlationId) {
+        return sizePrefixed(request.serializeWithHeader(
+                new RequestHeader(request.apiKey(), request.version(), "client", correlationId)));
+    }
+
+    /**
+     * Only the request header, which is enough for the APIs judging by the api key and version
+     */
+    static ByteBuf requestHeader(ApiKeys apiKey, short version) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeInt(2 + 2 + 4);
+        buf.writeShort(apiKey.id);
+        buf.writeShort(version);
+        buf.writeInt(1);
+        return buf;
+    }
+
+    static ByteBuf serialize(AbstractResponse response, short version, int correlationId) {
+        return serializeWithHeader(
+                response, new ResponseHeader(correlationId, response.apiKey().responseHeaderVersion(version)), version);
+    }
+
+    // AbstractResponse#serializeWithHeader is not public
+    private static ByteBuf serializeWithHeader(AbstractResponse response, ResponseHeader header, short version) {
+        ByteBuffer headerBuffer = MessageUtil.toByteBuffer(header.data(), header.headerVersion());
+        ByteBuffer bodyBuffer = MessageUtil.toByteBuffer(response.data(), version);
+        ByteBuf buf = Unpooled.buffer(4 + headerBuffer.remaining() + bodyBuffer.remaining());
+        buf.writeInt(headerBuffer.remaining() + bodyBuffer.remaining());
+        buf.writeBytes(headerBuffer);
+        buf.writeBytes(bodyBuffer);
+        return buf;
+    }
+
+    static ByteBuf metadataResponse(short version, Errors topicError, Errors partitionError) {
+        MetadataResponseTopic topic = new MetadataResponseTopic()
+                .setErrorCode(topicError.code())
+                .setName("topic")
+                .setPartitions(Arrays.asList(
+                        new MetadataResponsePartition().setPartitionIndex(0).setReplicaNodes(Arrays.asList(1, 2)),
+                        new MetadataResponsePartition().setPartitionIndex(1)
+                                                       .setErrorCode(partitionError.code())));
+        MetadataResponseData data = new MetadataResponseData()
+                .setTopics(new MetadataResponseTopicCollection(Collections.singletonList(topic).iterator()));
+        data.brokers().add(new MetadataResponseData.MetadataResponseBroker()
+                                   .setNodeId(1).setHost("broker-1").setPort(9092).setRack("rack-1"));
+        return serialize(new MetadataResponse(data, version), version, 1);
+    }
+
+    static ByteBuf apiVersionsResponse(short version, Errors error) {
+        return serialize(new ApiVersionsResponse(new ApiVersionsResponseData().setErrorCode(error.code())),
+                         version, 1);
+    }
+
+    static MemoryRecords records(CompressionType compressionType) {
+        byte[] value = new byte[4096];
+        new Random(0).nextBytes(value);
+        return MemoryRecords.withRecords(compressionType, new SimpleRecord(value));
+    }
+
+    private static ByteBuf produceRequest(short version, short acks) {
+        ProduceRequestData data = new ProduceRequestData()
+                .setAcks(acks)
+                .setTimeoutMs(30000)
+                .setTopicData(new TopicProduceDataCollection(Collections.singletonList(
+                        new TopicProduceData()
+                                .setName("topic")
+                                .setPartitionData(Collections.singletonList(
+                                        new PartitionProduceData()
+                                                .setIndex(0)
+                                                .setRecords(records(CompressionType.NONE)))))
+                        .iterator()));
+        return serialize(ProduceRequest.forMagic(RecordBatch.CURRENT_MAGIC_VALUE, data).build(version), 1);
+    }
+
+    private static ByteBuf fetchResponse(short version, CompressionType compressionType) {
+        LinkedHashMap<TopicIdPartition, FetchResponseData.PartitionData> partitions = new LinkedHashMap<>();
+        partitions.put(new TopicIdPartition(Uuid.randomUuid(), 0, "topic"),
+                       new FetchResponseData.PartitionData()
+                               .setPartitionIndex(0)
+                               .setHighWatermark(1)
+                               .setRecords(records(compressionType)));
+        FetchResponse response = FetchResponse.of(Errors.NONE, 0, 0, partitions);
+        return serialize(response, version, 1);
+    }
+
+    @Test
+    public void testCorrelationId() {
+        ByteBuf request = produceRequest((short) 9, (short) 1);
+        assertEquals(1, KafkaProtocol.requestCorrelationId(request));
+        KafkaProtocol.setRequestCorrelationId(request, 42);
+        assertEquals(42, KafkaProtocol.requestCorrelationId(request));
+        assertEquals(ApiKeys.PRODUCE.id, KafkaProtocol.apiKey(request));
+        assertEquals(9, KafkaProtocol.apiVersion(request));
+        assertEquals(new KafkaProtocol.RequestHeader(request.getInt(0), ApiKeys.PRODUCE.id, (short) 9, 42),
+                     KafkaProtocol.RequestHeader.of(request));
+        // Peeking never changes the reader index
+        assertEquals(0, request.readerIndex());
+
+        ByteBuf response = fetchResponse((short) 12, CompressionType.NONE);
+        assertEquals(1, KafkaProtocol.responseCorrelationId(response));
+        KafkaProtocol.setResponseCorrelationId(response, 42);
+        assertEquals(42, KafkaProtocol.responseCorrelationId(response));
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 3, 8, 9 })
+    public void testExpectResponse(short version) {
+        assertTrue(KafkaProtocol.expectResponse(produceRequest(version, (short) 1)));
+        assertFalse(KafkaProtocol.expectResponse(produceRequest(version, (short) 0)));
+        assertTrue(KafkaProtocol.expectResponse(requestHeader(ApiKeys.FETCH, (short) 12)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 4, 11, 12, 13 })
+    public void testCompressedFetchResponse(short version) {
+        short fetch = ApiKeys.FETCH.id;
+        assertTrue(KafkaProtocol.isCompressedFetchResponse(
+                fetch, version, fetchResponse(version, CompressionType.GZIP)));
+        assertFalse(KafkaProtocol.isCompressedFetchResponse(
+                fetch, version, fetchResponse(version, CompressionType.NONE)));
+        assertFalse(KafkaProtocol.isCompressedFetchResponse(
+                ApiKeys.METADATA.id, (short) 12, fetchResponse(version, CompressionType.GZIP)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 7, 12, 15 })
+    public void testDisableFetchSession(short version) {
+        FetchRequestData data = new FetchRequestData()
+                .setMaxWaitMs(500)
+                .setMinBytes(1)
+                .setMaxBytes(1024)
+                .setSessionId(42)
+                .setSessionEpoch(3);
+        ByteBuf request = serialize(new FetchRequest(data, version), 1);
+        KafkaProtocol.disableFetchSession(request);
+
+        ByteBuffer buf = request.nioBuffer(4, request.readableBytes() - 4);
+        RequestHeader.parse(buf);
+        FetchRequestData rewritten = FetchRequest.parse(buf, version).data();
+        assertEquals(0, rewritten.sessionId());
+        assertEquals(-1, rewritten.sessionEpoch());
+        // Other fields are intact
+        assertEquals(500, rewritten.maxWaitMs());
+        assertEquals(1024, rewritten.maxBytes());
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 1, 8, 9, 12 })
+    public void testCacheableRequestBodyIndexOfMetadata(short version) {
+        MetadataRequest request = new MetadataRequest.Builder(Collections.singletonList("topic"), true)
+                .build(version);
+        assertBodyIndex(request, version);
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 0, 2, 3 })
+    public void testCacheableRequestBodyIndexOfApiVersions(short version) {
+        assertBodyIndex(new ApiVersionsRequest.Builder().build(version), version);
+    }
+
+    private static void assertBodyIndex(AbstractRequest request, short version) {
+        ByteBuf buf = serialize(request, 1);
+        int bodySize = request.data().size(new ObjectSerializationCache(), version);
+        assertEquals(buf.readableBytes() - bodySize, KafkaProtocol.cacheableRequestBodyIndex(buf));
+    }
+
+    @Test
+    public void testCacheableRequestBodyIndexOfOtherApis() {
+        assertEquals(-1, KafkaProtocol.cacheableRequestBodyIndex(produceRequest((short) 9, (short) 1)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 1, 5, 7, 9, 10, 12 })
+    public void testMetadataResponseError(short version) {
+        short metadata = ApiKeys.METADATA.id;
+        assertFalse(KafkaProtocol.hasError(metadata, version, metadataResponse(version, Errors.NONE, Errors.NONE)));
+        assertTrue(KafkaProtocol.hasError(
+                metadata, version, metadataResponse(version, Errors.LEADER_NOT_AVAILABLE, Errors.NONE)));
+        assertTrue(KafkaProtocol.hasError(
+                metadata, version, metadataResponse(version, Errors.NONE, Errors.LEADER_NOT_AVAILABLE)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(shorts = { 0, 3 })
+    public void testApiVersionsResponseError(short version) {
+        short apiVersions = ApiKeys.API_VERSIONS.id;
+        assertFalse(KafkaProtocol.hasError(apiVersions, version, apiVersionsResponse(version, Errors.NONE)));
+        assertTrue(KafkaProtocol.hasError(
+                apiVersions, version, apiVersionsResponse(version, Errors.UNSUPPORTED_VERSION)));
+    }
+}
@@ -0,0 +1,86 @@
+package com.mayreh.kafka.http.tunnel.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.requests.MetadataRequest;
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+public class ResponseCacheTest {
+    private static final InetSocketAddress BROKER = InetSocketAddress.createUnresolved("broker-1", 9092);
+    private static final short VERSION = 12;
+
+    private final ResponseCache cache = new ResponseCache(60_000);
+    private final AtomicInteger loads = new AtomicInteger();
+    private CompletableFuture<ByteBuf> loading;
+
+    private static ByteBuf metadataRequest(int correlationId) {
+        return KafkaProtocolTest.serialize(MetadataRequest.Builder.allTopics().build(VERSION), correlationId);
+    }
+
+    private final Supplier<CompletableFuture<ByteBuf>> loader = () -> {
+        loads.incrementAndGet();
+        loading = new CompletableFuture<>();
+        return loading;
+    };
+
+    @Test
+    public void testConcurrentRequestsAreCollapsed() {
+        CompletableFuture<ByteBuf> first = cache.get(BROKER, metadataRequest(1), loader);
+        CompletableFuture<ByteBuf> second = cache.get(BROKER, metadataRequest(2), loader);
+        assertEquals(1, loads.get());
+        assertFalse(second.isDone());
+
+        ByteBuf response = KafkaProtocolTest.metadataResponse(VERSION, Errors.NONE, Errors.NONE);
+        byte[] expected = ByteBufUtil.getBytes(response, 8, response.readableBytes() - 8);
+        loading.complete(response);
+
+        // Each gets the same response with its own correlation id
+        ByteBuf firstResponse = first.join();
+        ByteBuf secondResponse = second.join();
+        assertEquals(1, KafkaProtocol.responseCorrelationId(firstResponse));
+        assertEquals(2, KafkaProtocol.responseCorrelationId(secondResponse));
+        assertEquals(ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(secondResponse, 8, expected.length));
+
+        // Served from the cache afterwards
+        assertEquals(3, KafkaProtocol.responseCorrelationId(cache.get(BROKER, metadataRequest(3), loader).join()));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testResponseWithErrorIsNotCached() {
+        CompletableFuture<ByteBuf> first = cache.get(BROKER, metadataRequest(1), loader);
+        CompletableFuture<ByteBuf> collapsed = cache.get(BROKER, metadataRequest(2), loader);
+        loading.complete(KafkaProtocolTest.metadataResponse(VERSION, Errors.NONE, Errors.LEADER_NOT_AVAILABLE));
+        // Requests already waiting get the response as is
+        assertEquals(1, KafkaProtocol.responseCorrelationId(first.join()));
+        assertEquals(2, KafkaProtocol.responseCorrelationId(collapsed.join()));
+
+        cache.get(BROKER, metadataRequest(3), loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testFailureIsNotCached() {
+        CompletableFuture<ByteBuf> first = cache.get(BROKER, metadataRequest(1), loader);
+        CompletableFuture<ByteBuf> collapsed = cache.get(BROKER, metadataRequest(2), loader);
+        loading.completeExceptionally(new IOException("connection closed"));
+        assertThrows(CompletionException.class, first::join);
+        assertThrows(CompletionException.class, collapsed::join);
+
+        cache.get(BROKER, metadataRequest(3), loader);
+        assertEquals(2, loads.get());
+    }
+}